@@ -0,0 +1,118 @@
+// Copyright (C) 2019 Toitware ApS. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package com.toitware.immutable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/** Converts elements to and from bytes, for use with ImmutableArrayCodec.
+ *  An implementation just writes to or reads from the buffer.  If there is
+ *  not enough room, or not enough data, the buffer throws
+ *  BufferOverflowException or BufferUnderflowException, and the caller
+ *  flushes or refills the buffer and calls again.  The methods must
+ *  therefore not have side effects other than on the buffer.
+ *  @see ImmutableArrayCodec
+ */
+public interface ElementCodec<E> {
+  /** Write an element to the buffer.
+   *  @param element The element to write.
+   *  @param buffer The buffer to write to, at its current position.
+   */
+  void write(E element, ByteBuffer buffer);
+
+  /** Read an element from the buffer.
+   *  @param buffer The buffer to read from, at its current position.
+   *  @return The element.
+   */
+  E read(ByteBuffer buffer);
+
+  /** Integers as 4 bytes each. */
+  public static final ElementCodec<Integer> INTS = new ElementCodec<Integer>() {
+    public void write(Integer element, ByteBuffer buffer) { buffer.putInt(element); }
+    public Integer read(ByteBuffer buffer) { return buffer.getInt(); }
+  };
+
+  /** Integers as zigzag varints, so small values of either sign take one
+   *  byte.
+   */
+  public static final ElementCodec<Integer> VAR_INTS = new ElementCodec<Integer>() {
+    public void write(Integer element, ByteBuffer buffer) { writeVarLong(element, buffer); }
+    public Integer read(ByteBuffer buffer) { return (int)readVarLong(buffer); }
+  };
+
+  /** Longs as 8 bytes each. */
+  public static final ElementCodec<Long> LONGS = new ElementCodec<Long>() {
+    public void write(Long element, ByteBuffer buffer) { buffer.putLong(element); }
+    public Long read(ByteBuffer buffer) { return buffer.getLong(); }
+  };
+
+  /** Longs as zigzag varints, so small values of either sign take one
+   *  byte.
+   */
+  public static final ElementCodec<Long> VAR_LONGS = new ElementCodec<Long>() {
+    public void write(Long element, ByteBuffer buffer) { writeVarLong(element, buffer); }
+    public Long read(ByteBuffer buffer) { return readVarLong(buffer); }
+  };
+
+  /** Doubles as 8 bytes each. */
+  public static final ElementCodec<Double> DOUBLES = new ElementCodec<Double>() {
+    public void write(Double element, ByteBuffer buffer) { buffer.putDouble(element); }
+    public Double read(ByteBuffer buffer) { return buffer.getDouble(); }
+  };
+
+  /** Strings as UTF-8, preceded by their length in bytes.  Null is allowed. */
+  public static final ElementCodec<String> STRINGS = new ElementCodec<String>() {
+    public void write(String element, ByteBuffer buffer) {
+      if (element == null) {
+        writeVarLong(-1, buffer);
+        return;
+      }
+      byte bytes[] = element.getBytes(StandardCharsets.UTF_8);
+      writeVarLong(bytes.length, buffer);
+      buffer.put(bytes);
+    }
+
+    public String read(ByteBuffer buffer) {
+      int length = (int)readVarLong(buffer);
+      if (length == -1) return null;
+      byte bytes[] = new byte[length];
+      buffer.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  };
+
+  /** Write a long as a zigzag varint: 7 bits per byte, least significant
+   *  first, with the sign moved to the lowest bit.  Takes 1 to 10 bytes.
+   *  @param value The value to write.
+   *  @param buffer The buffer to write to.
+   */
+  public static void writeVarLong(long value, ByteBuffer buffer) {
+    long zigzag = (value << 1) ^ (value >> 63);
+    while ((zigzag & ~0x7fL) != 0) {
+      buffer.put((byte)((zigzag & 0x7f) | 0x80));
+      zigzag >>>= 7;
+    }
+    buffer.put((byte)zigzag);
+  }
+
+  /** Read a long that was written with writeVarLong.
+   *  @param buffer The buffer to read from.
+   *  @return The value.
+   *  @throws UncheckedIOException If the varint is longer than 10 bytes.
+   *      ImmutableArrayCodec.read() throws the IOException that it wraps.
+   */
+  public static long readVarLong(ByteBuffer buffer) {
+    long zigzag = 0;
+    for (int shift = 0; true; shift += 7) {
+      if (shift == 70) throw new UncheckedIOException(new IOException("Corrupt varint"));
+      byte b = buffer.get();
+      zigzag |= (long)(b & 0x7f) << shift;
+      if (b >= 0) break;
+    }
+    return (zigzag >>> 1) ^ -(zigzag & 1);
+  }
+}
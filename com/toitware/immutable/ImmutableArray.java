@@ -9,9 +9,14 @@ import com.toitware.immutable.RebuildIterator;
 import java.util.AbstractCollection;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.ListIterator;
+import java.util.Spliterator;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+import java.util.stream.Collector;
 
 /** A concrete implementation of ImmutableCollection.
  *  @see ImmutableCollection
@@ -19,21 +24,86 @@ import java.util.function.Consumer;
 public class ImmutableArray<E> extends ImmutableCollection<E> {
   protected final long size;
 
-  // Branching factor.
-  static final int M = 16;
-  static final int MASK = 15;
-  static final int SHIFT = 4;
-  static final int SHIFTSHIFT = 2;  // Only used if SHIFT is a power of two.
+  // Branching factor.  Each family of arrays has its own: ImmutableArray
+  // itself has 16, and the subclasses at the end of this file have 8, 32
+  // and 64.  Wider nodes make the trees shallower, so get() is faster, but
+  // every atPut() copies more.  All arrays made from an array, by push(),
+  // atPut(), subList() and so on, are in the same family.  The tree code
+  // gets the number of index bits per level from _bits(), which each family
+  // overrides with a constant, and get() is overridden too, so that the JIT
+  // sees a literal on the hot path of each family.
+  static final int DEFAULT_BITS = 4;
 
   // A tree that is 199 large has three full trees of 64 each in the leftmost
   // _powers entry.  The next _powers entry points at a zero length array, and
   // the last points at an array with M - 1 elements.  If we add one element
   // then the medium _powers entry gets a pointer to a 1-element array that
   // points to the M-entry leaf.
-  private Object _powers[];  // Should really have type Object[][].
-  private Object _tail[];
+  private final Object _powers[];  // Should really have type Object[][].
+  private final Object _tail[];
+  // The focus is a leaf that has been changed by atPut, but not yet written
+  // into the tree, or null.  It replaces the leaf that starts at _focusStart.
+  // Further atPut calls on the same leaf only have to copy the focus, not
+  // the whole path to it.  Only get() and atPut() know about the focus, so
+  // everything else starts by calling _flush(), which writes it into the
+  // tree.
+  private Object _focus[];
+  private long _focusStart;
+  // The result of _flush(), made the first time it is needed, so that the
+  // path to the focus is only copied once per array.  Two threads can race
+  // to set it, but they make equal arrays, and the final fields above make
+  // it safe to publish either one.
+  private ImmutableArray<E> _flushed;
+
+  static final Object _zero[] = new Object[0];
+
+  // The number of index bits used at each level of the tree, so the
+  // branching factor is 1 << _bits().
+  int _bits() {
+    return DEFAULT_BITS;
+  }
+
+  // Makes an array in the same family as this one.
+  <T> ImmutableArray<T> _make(long size, Object powers[], Object tail[], Object focus[], long focus_start) {
+    return new ImmutableArray<T>(size, powers, tail, focus, focus_start);
+  }
 
-  static private final Object _zero[] = new Object[0];
+  <T> ImmutableArray<T> _make(long size, Object powers[], Object tail[]) {
+    return _make(size, powers, tail, null, 0);
+  }
+
+  // An empty array in the same family as this one.
+  <T> ImmutableArray<T> _empty() {
+    return _make(0, _zero, _zero, null, 0);
+  }
+
+  /** Create an empty ImmutableArray with a given branching factor.  The
+   *  arrays made from it by push(), atPut(), subList() and the other
+   *  operations have the same branching factor, as do its Builders.  Wider
+   *  trees are shallower, so get() is faster, while narrower trees make
+   *  atPut() copy less.  The arrays made with the constructors have a
+   *  branching factor of 16.
+   *  @param branching_factor 8, 16, 32 or 64.
+   *  @return An empty ImmutableArray.
+   */
+  public static <E> ImmutableArray<E> empty(int branching_factor) {
+    switch (branching_factor) {
+      case 8: return new Branching8<E>(0, _zero, _zero, null, 0);
+      case 16: return new ImmutableArray<E>();
+      case 32: return new Branching32<E>(0, _zero, _zero, null, 0);
+      case 64: return new Branching64<E>(0, _zero, _zero, null, 0);
+      default:
+        throw new IllegalArgumentException(
+            "The branching factor must be 8, 16, 32 or 64, not " + branching_factor);
+    }
+  }
+
+  /** The branching factor of the tree of this array.
+   *  @return 8, 16, 32 or 64.
+   */
+  public int branchingFactor() {
+    return 1 << _bits();
+  }
 
   /** Create an empty ImmutableArray. */
   public ImmutableArray() {
@@ -46,31 +116,35 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
    *  @param array The array to be copied
    */
   public ImmutableArray(E array[]) {
+    int mask = (1 << DEFAULT_BITS) - 1;
     size = array.length;
     _tail = (size == 0) ?
         _zero :
-        Arrays.copyOfRange(array, array.length & ~MASK, array.length);
+        Arrays.copyOfRange(array, array.length & ~mask, array.length);
     _powers = _newPushHelper(
-        _zero, 0, Arrays.asList(array).iterator(), size & ~MASK);
+        DEFAULT_BITS, _zero, 0, Arrays.asList(array).iterator(), size & ~mask);
   }
 
   /** Make an ImmutableArray that is a shallow copy of another collection.
+   *  The trees of ImmutableArrays with the same branching factor are
+   *  shared.
    *  @param collection The collection to be copied
    */
   public ImmutableArray(Collection<? extends E> collection) {
-    if (collection instanceof ImmutableArray) {
-      ImmutableArray other = (ImmutableArray)collection;
+    if (collection instanceof ImmutableArray && ((ImmutableArray)collection)._bits() == DEFAULT_BITS) {
+      ImmutableArray other = ((ImmutableArray)collection)._flush();
       size = other.size;
       _powers = other._powers;
       _tail = other._tail;
     } else {
+      int mask = (1 << DEFAULT_BITS) - 1;
       size = collection.size();
       Iterator<?> it = collection.iterator();
-      _powers = _newPushHelper(_zero, 0, it, size & ~MASK);
-      if ((size & MASK) == 0) {
+      _powers = _newPushHelper(DEFAULT_BITS, _zero, 0, it, size & ~mask);
+      if ((size & mask) == 0) {
         _tail = _zero;
       } else {
-        _tail = new Object[(int)(size & MASK)];
+        _tail = new Object[(int)(size & mask)];
         for (int i = 0; i < _tail.length; i++) _tail[i] = it.next();
       }
     }
@@ -85,73 +159,276 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
   }
 
   public ListIterator<E> listIterator() {
+    if (_focus != null) return _flush().listIterator();
     return new ImmutableArrayListIterator<E>(size, _powers, _tail);
   }
 
   public ListIterator<E> listIterator(int index) {
+    if (_focus != null) return _flush().listIterator(index);
     return new ImmutableArrayListIterator<E>(size, _powers, _tail, index, 0);
   }
 
   public ListIterator<E> listIterator(long index) {
+    if (_focus != null) return _flush().listIterator(index);
     return new ImmutableArrayListIterator<E>(size, _powers, _tail, index, 0);
   }
 
   protected ListIterator<E> listIterator(long index, long leftMost) {
+    if (_focus != null) return _flush().listIterator(index, leftMost);
     return new ImmutableArrayListIterator<E>(size, _powers, _tail, index, leftMost);
   }
 
   public ImmutableArrayIterator<E> iterator() {
+    if (_focus != null) return _flush().iterator();
     return new ImmutableArrayIterator<E>(size, _powers, _tail);
   }
 
   protected ImmutableArrayIterator<E> iterator(long startAt) {
+    if (_focus != null) return _flush().iterator(startAt);
     return new ImmutableArrayIterator<E>(size, _powers, _tail, startAt);
   }
 
+  /** Create a spliterator over the entire ImmutableArray.  It splits along
+   *  the boundaries of the subtrees, so that the parts are balanced and each
+   *  part can be iterated one leaf at a time.
+   *  @return A fresh spliterator that is IMMUTABLE, ORDERED, SIZED and
+   *      SUBSIZED.
+   */
+  public Spliterator<E> spliterator() {
+    if (_focus != null) return _flush().spliterator();
+    return new ImmutableArraySpliterator<E>(_bits(), size, _powers, _tail, 0, size);
+  }
+
+  protected Spliterator<E> spliterator(long startAt) {
+    if (_focus != null) return _flush().spliterator(startAt);
+    if (startAt < 0 || startAt > size) throw new IndexOutOfBoundsException();
+    return new ImmutableArraySpliterator<E>(_bits(), size, _powers, _tail, startAt, size);
+  }
+
+  long _bound(E key, Comparator<? super E> comparator, boolean upper) {
+    return _bound(key, comparator, upper, 0);
+  }
+
+  // The first position at or after start whose element is after the key, or
+  // size if there is none.  The _powers entries are tried from the left by
+  // their last elements, and then the first one that ends after the key is
+  // descended.
+  @SuppressWarnings("unchecked")
+  long _bound(E key, Comparator<? super E> comparator, boolean upper, long start) {
+    if (_focus != null) return _flush()._bound(key, comparator, upper, start);
+    int bits = _bits();
+    long index = 0;
+    for (int p = _powers.length; p >= 1; p--) {
+      Object node[] = (Object[])_powers[p - 1];
+      long span = (long)node.length << (bits * p);
+      if (node.length != 0 && index + span > start && _isAfter((E)_last(node, p), key, comparator, upper)) {
+        return _bound(bits, node, p, index, start, key, comparator, upper);
+      }
+      index += span;
+    }
+    int low = (int)Math.max(start - index, 0);
+    int high = _tail.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (_isAfter((E)_tail[mid], key, comparator, upper)) {
+        high = mid;
+      } else {
+        low = mid + 1;
+      }
+    }
+    return index + low;
+  }
+
+  // The last element of the array is known to be after the key.  Children
+  // that are entirely before start are not looked at, since they may be
+  // nulled out in the backing of an ImmutableDeque.
+  @SuppressWarnings("unchecked")
+  private static <E> long _bound(int bits, Object array[], int depth, long index, long start, E key, Comparator<? super E> comparator, boolean upper) {
+    while (true) {
+      int shift = bits * depth;
+      int low = start > index ? (int)((start - index) >>> shift) : 0;
+      int high = array.length - 1;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        Object last = depth == 0 ? array[mid] : _last((Object[])array[mid], depth - 1);
+        if (_isAfter((E)last, key, comparator, upper)) {
+          high = mid;
+        } else {
+          low = mid + 1;
+        }
+      }
+      index += (long)low << shift;
+      if (depth == 0) return index;
+      array = (Object[])array[low];
+      depth--;
+    }
+  }
+
+  // The last element of the subtree, which is at the given depth.
+  private static Object _last(Object array[], int depth) {
+    for (; depth != 0; depth--) array = (Object[])array[array.length - 1];
+    return array[array.length - 1];
+  }
+
+  public void forEachChunk(ChunkConsumer action) {
+    _forEachChunk(0, size, action);
+  }
+
+  // Chunks for the positions from (inclusive) to to (exclusive) of the tree.
+  void _forEachChunk(long from, long to, ChunkConsumer action) {
+    if (_focus != null) {
+      _flush()._forEachChunk(from, to, action);
+      return;
+    }
+    if (from < 0 || from > to || to > size) throw new IndexOutOfBoundsException();
+    int bits = _bits();
+    long index = 0;
+    for (int p = _powers.length; p >= 1 && index < to; p--) {
+      Object[] power = (Object[])_powers[p - 1];
+      long span = (long)power.length << (bits * p);
+      if (index + span > from) _forEachChunk(bits, power, p, from, to, index, action);
+      index += span;
+    }
+    if (index < to) _forEachChunk(bits, _tail, 0, from, to, index, action);
+  }
+
+  // Like _forEachInRange, this skips the subtrees to the left of the range,
+  // which may be nulled out in the backing of an ImmutableDeque.
+  private static void _forEachChunk(int bits, Object[] array, int depth, long from, long to, long index, ChunkConsumer action) {
+    if (depth == 0) {
+      int start = (int)Math.max(from - index, 0);
+      int end = (int)Math.min(to - index, array.length);
+      action.accept(array, start, end - start);
+      return;
+    }
+    long child_span = 1L << (bits * depth);
+    for (int i = 0; i < array.length && index < to; i++) {
+      if (index + child_span > from) {
+        _forEachChunk(bits, (Object[])array[i], depth - 1, from, to, index, action);
+      }
+      index += child_span;
+    }
+  }
+
+  public ChunkIterator chunkIterator() {
+    if (_focus != null) return _flush().chunkIterator();
+    return new ImmutableArrayChunkIterator(_bits(), size, _powers, _tail, 0, size);
+  }
+
+  ChunkIterator _chunkIterator(long from, long to) {
+    if (_focus != null) return _flush()._chunkIterator(from, to);
+    if (from < 0 || from > to || to > size) throw new IndexOutOfBoundsException();
+    return new ImmutableArrayChunkIterator(_bits(), size, _powers, _tail, from, to);
+  }
+
   private ImmutableArray(long len, Object[] pow, Object[] pow0) {
     size = len;
     _powers = pow;
     _tail = pow0;
   }
 
+  private ImmutableArray(long len, Object[] pow, Object[] pow0, Object[] focus, long focus_start) {
+    size = len;
+    _powers = pow;
+    _tail = pow0;
+    _focus = focus;
+    _focusStart = focus_start;
+  }
+
+  // An ImmutableArray with the same elements and no focus.  This copies the
+  // path to the focus, which atPut put off.  The result does not keep the
+  // leaf that the focus replaces alive.
+  ImmutableArray<E> _flush() {
+    if (_focus == null) return this;
+    ImmutableArray<E> flushed = _flushed;
+    if (flushed == null) {
+      int bits = _bits();
+      int power_posn = _powerPosn(bits, _focusStart ^ size);
+      Object powers[] = _copyBut(
+          _powers,
+          power_posn - 1,
+          _withLeaf(bits, power_posn, _focusStart, (Object[])_powers[power_posn - 1], _focus));
+      flushed = _make(size, powers, _tail);
+      _flushed = flushed;
+    }
+    return flushed;
+  }
+
+  // Copies the path to the leaf at the given index, and replaces the leaf.
+  private static Object[] _withLeaf(int bits, int depth, long index, Object array[], Object leaf[]) {
+    int idx = (int)(index >>> (depth * bits)) & ((1 << bits) - 1);
+    if (depth == 1) return _copyBut(array, idx, leaf);
+    return _copyBut(array, idx, _withLeaf(bits, depth - 1, index, (Object[])array[idx], leaf));
+  }
+
   public E get(int index) {
     return get((long)index);
   }
 
-  private static int _powerPosn(long index) {
-    if (M == 8) {
+  // The position in _powers of the subtree that holds an index, where the
+  // argument is the index xor the size.  0 means the tail.
+  static int _powerPosn(int bits, long index) {
+    int top_bit = 63 - Long.numberOfLeadingZeros(index);
+    switch (bits) {
       // Multiplying by 43 and shifting down by 7 is just a way to divide by 3.
-      return ((63 - Long.numberOfLeadingZeros(index)) * 43) >> 7;
-    } else if (M == 32) {
-      return ((63 - Long.numberOfLeadingZeros(index)) * 13) >> 6;
-    } else {
-      assert SHIFT == 1 << SHIFTSHIFT;
-      return (63 - Long.numberOfLeadingZeros(index)) >> SHIFTSHIFT;
+      case 3: return (top_bit * 43) >> 7;
+      case 4: return top_bit >> 2;
+      case 5: return (top_bit * 13) >> 6;
+      // Multiplying by 43 and shifting down by 8 is a way to divide by 6.
+      default: return (top_bit * 43) >> 8;
     }
   }
 
-  @SuppressWarnings("unchecked")
   public E get(long index) {
+    return _get(index, DEFAULT_BITS);
+  }
+
+  // Called by get() in each family with the constant for that family.
+  @SuppressWarnings("unchecked")
+  final E _get(long index, int bits) {
     if (index < 0 || index >= size) throw new IndexOutOfBoundsException();
-    int power_posn = _powerPosn(index ^ size);
-    if (power_posn == 0) return (E)_tail[(int)(index & MASK)];
+    int mask = (1 << bits) - 1;
+    if (_focus != null && (index & ~mask) == _focusStart) return (E)_focus[(int)(index & mask)];
+    int power_posn = _powerPosn(bits, index ^ size);
+    if (power_posn == 0) return (E)_tail[(int)(index & mask)];
     Object array[] = (Object[])_powers[power_posn - 1];
-    int shift = power_posn * SHIFT;
+    int shift = power_posn * bits;
     while (true) {
-      if (shift == 0) return (E)array[(int)(index & MASK)];
+      if (shift == 0) return (E)array[(int)(index & mask)];
       int idx = (int)(index >>> shift);
-      array = (Object[])array[idx & MASK];
-      shift -= SHIFT;
+      array = (Object[])array[idx & mask];
+      shift -= bits;
+    }
+  }
+
+  // The leaf, or the tail, that contains the given index, including the
+  // change of a pending atPut.
+  Object[] _leafAt(long index) {
+    int bits = _bits();
+    if (_focus != null && (index & -(1L << bits)) == _focusStart) return _focus;
+    return _leafAt(bits, _powers, _tail, size, index);
+  }
+
+  // Finds the leaf that contains the given index in a tree with the given
+  // size.
+  static Object[] _leafAt(int bits, Object powers[], Object tail[], long size, long index) {
+    int power_posn = _powerPosn(bits, index ^ size);
+    if (power_posn == 0) return tail;
+    Object array[] = (Object[])powers[power_posn - 1];
+    int mask = (1 << bits) - 1;
+    for (int shift = power_posn * bits; shift != 0; shift -= bits) {
+      array = (Object[])array[(int)(index >>> shift) & mask];
     }
+    return array;
   }
 
-  static private Object[] _copyPad(Object old[], int new_length) {
+  static Object[] _copyPad(Object old[], int new_length) {
     Object[] new_array = Arrays.copyOf(old, new_length);
     for (int i = old.length; i < new_length; i++) new_array[i] = _zero;
     return new_array;
   }
 
-  static private Object[] _copyBut(Object old[], int index, Object value) {
+  static Object[] _copyBut(Object old[], int index, Object value) {
     Object[] new_array = Arrays.copyOf(old, old.length);
     new_array[index] = value;
     return new_array;
@@ -240,47 +517,386 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
     return new_array;
   }
 
+  /** Makes a copy, but at the given index the given value is substituted.
+   *  Takes O(1) time if the element is near the end, or in the same leaf as
+   *  the previous atPut, otherwise O(log size).  The leaf that was changed
+   *  last is kept to the side, so the path to it is only copied when another
+   *  leaf is changed, or another operation needs the tree.  Until then the
+   *  returned array also keeps the old leaf, and the element that was
+   *  replaced, alive.  The collections made from it after that do not.
+   *  @param index Offset of the element where substitution should happen
+   *  @param value The new element to be placed at offset index
+   *  @return A new ImmutableArray differing at one position from this one.
+   */
   public ImmutableArray<E> atPut(long index, E value) {
     long len = size;
     if (index < 0 || index >= len) throw new IndexOutOfBoundsException();
-    int power_posn = _powerPosn(index ^ size);
+    int bits = _bits();
+    int mask = (1 << bits) - 1;
+    int power_posn = _powerPosn(bits, index ^ size);
     if (power_posn == 0) {
-      return new ImmutableArray<E>(
+      return _make(
           size,
           _powers,
-          _copyBut(_tail, (int)(index & MASK), value));
+          _copyBut(_tail, (int)(index & mask), value),
+          _focus,
+          _focusStart);
     }
-    return new ImmutableArray<E>(
+    long leaf_start = index & ~mask;
+    if (_focus != null && leaf_start == _focusStart) {
+      return _make(
+          size,
+          _powers,
+          _tail,
+          _copyBut(_focus, (int)(index & mask), value),
+          leaf_start);
+    }
+    Object powers[] = _flush()._powers;
+    Object leaf[] = _leafOrNull(bits, powers, power_posn, index);
+    if (leaf == null) {
+      // Subtrees that were nulled out by trimLeft have to be recreated, so
+      // we copy the path right away.
+      return _make(
+          size,
+          _copyBut(
+              powers,
+              power_posn - 1,
+              _atPut(bits, power_posn, value, index, (Object[])powers[power_posn - 1])),
+          _tail);
+    }
+    return _make(
         size,
-        _copyBut(
-            _powers,
-            power_posn - 1,
-            _atPut(power_posn, value, index, (Object[])_powers[power_posn - 1])),
-        _tail);
+        powers,
+        _tail,
+        _copyBut(leaf, (int)(index & mask), value),
+        leaf_start);
   }
 
-  private Object[] _atPut(int tribbles, Object value, long index, Object array[]) {
-    if (tribbles == 0) return _copyBut(array, (int)(index & MASK), value);
-    int idx = (int)(index >>> (tribbles * SHIFT)) & MASK;
+  // The leaf with the given index, or null if it is in a subtree that was
+  // nulled out by trimLeft.
+  private static Object[] _leafOrNull(int bits, Object powers[], int power_posn, long index) {
+    Object array[] = (Object[])powers[power_posn - 1];
+    int mask = (1 << bits) - 1;
+    for (int shift = power_posn * bits; shift != 0 && array != null; shift -= bits) {
+      array = (Object[])array[(int)(index >>> shift) & mask];
+    }
+    return array;
+  }
+
+  private static Object[] _atPut(int bits, int tribbles, Object value, long index, Object array[]) {
+    int mask = (1 << bits) - 1;
+    if (tribbles == 0) return _copyBut(array, (int)(index & mask), value);
+    int idx = (int)(index >>> (tribbles * bits)) & mask;
     // We need to check for subtrees that have been deleted because they are
     // the backing of a Deque.
     Object sub_array = array[(int)idx];
-    if (sub_array == null) sub_array = new Object[M];
+    if (sub_array == null) sub_array = new Object[1 << bits];
     return _copyBut(
         array,
         idx,
-        _atPut(tribbles - 1, value, index, (Object[])sub_array));
+        _atPut(bits, tribbles - 1, value, index, (Object[])sub_array));
+  }
+
+  public ImmutableArray<E> atPutAll(long indices[], E values[]) {
+    return _putAll(indices, values, 0);
+  }
+
+  public ImmutableArray<E> updateRange(long from, long to, LongFunction<? extends E> function) {
+    return _updateRange(from, to, function, 0);
+  }
+
+  // The offset is used by ImmutableDeque, where index 0 is at a position
+  // other than 0 in the tree.
+  ImmutableArray<E> _updateRange(long from, long to, LongFunction<? extends E> function, long offset) {
+    if (from < 0 || from > to || to > size - offset) throw new IndexOutOfBoundsException();
+    if (to - from > Integer.MAX_VALUE) throw new IndexOutOfBoundsException();
+    Object values[] = new Object[(int)(to - from)];
+    for (int i = 0; i < values.length; i++) values[i] = function.apply(from + i);
+    return _putRange(from + offset, to + offset, values, 0);
+  }
+
+  ImmutableArray<E> _putAll(long indices[], Object values[], long offset) {
+    if (_focus != null) return _flush()._putAll(indices, values, offset);
+    if (indices.length != values.length) throw new IllegalArgumentException();
+    if (indices.length == 0) return this;
+    long positions[] = new long[indices.length];
+    boolean sorted = true;
+    for (int i = 0; i < indices.length; i++) {
+      if (indices[i] < 0 || indices[i] >= size - offset) throw new IndexOutOfBoundsException();
+      positions[i] = indices[i] + offset;
+      if (i != 0 && positions[i] < positions[i - 1]) sorted = false;
+    }
+    if (!sorted) values = _sortByPosition(positions, values, size);
+    // Give each _powers entry the run of positions that fall inside it.
+    int bits = _bits();
+    Object new_powers[] = _powers;
+    long index = 0;
+    int j = 0;
+    for (int p = _powers.length; p >= 1 && j < positions.length; p--) {
+      Object power[] = (Object[])_powers[p - 1];
+      long end = index + ((long)power.length << (bits * p));
+      int k = j;
+      while (k < positions.length && positions[k] < end) k++;
+      if (k != j) {
+        if (new_powers == _powers) new_powers = Arrays.copyOf(_powers, _powers.length);
+        new_powers[p - 1] = _putAll(bits, power, p, index, positions, values, j, k);
+      }
+      j = k;
+      index = end;
+    }
+    Object new_tail[] = _tail;
+    if (j < positions.length) new_tail = _putAll(bits, _tail, 0, index, positions, values, j, positions.length);
+    return _make(size, new_powers, new_tail);
+  }
+
+  // Sorts the positions in place, and returns the values in the same order.
+  // The sort is stable so that the last value for a position still wins.
+  // All positions are less than the limit.  Also used by ImmutableRope.
+  static Object[] _sortByPosition(long positions[], Object values[], long limit) {
+    int count = positions.length;
+    Object sorted_values[] = new Object[count];
+    int order_bits = 64 - Long.numberOfLeadingZeros(count);
+    if (64 - Long.numberOfLeadingZeros(limit) + order_bits < 64) {
+      // Usually the position and the original order fit in one long, so we
+      // can sort primitives, which is much faster.
+      long keys[] = new long[count];
+      for (int i = 0; i < count; i++) keys[i] = (positions[i] << order_bits) | i;
+      Arrays.sort(keys);
+      long order_mask = (1L << order_bits) - 1;
+      for (int i = 0; i < count; i++) {
+        positions[i] = keys[i] >>> order_bits;
+        sorted_values[i] = values[(int)(keys[i] & order_mask)];
+      }
+      return sorted_values;
+    }
+    Integer order[] = new Integer[count];
+    for (int i = 0; i < count; i++) order[i] = i;
+    Arrays.sort(order, (a, b) -> Long.compare(positions[a], positions[b]));
+    long sorted_positions[] = new long[count];
+    for (int i = 0; i < count; i++) {
+      sorted_positions[i] = positions[order[i]];
+      sorted_values[i] = values[order[i]];
+    }
+    System.arraycopy(sorted_positions, 0, positions, 0, count);
+    return sorted_values;
+  }
+
+  // The array holds subtrees of M**depth positions each, or elements if depth
+  // is 0.  The first of them is at the given index.  The positions from from
+  // (inclusive) to to (exclusive) are sorted and all inside the array.
+  private static Object[] _putAll(int bits, Object array[], int depth, long index, long positions[], Object values[], int from, int to) {
+    Object result[] = Arrays.copyOf(array, array.length);
+    if (depth == 0) {
+      for (int j = from; j < to; j++) result[(int)(positions[j] - index)] = values[j];
+      return result;
+    }
+    int shift = bits * depth;
+    int j = from;
+    while (j < to) {
+      int i = (int)((positions[j] - index) >>> shift);
+      int k = j + 1;
+      while (k < to && (int)((positions[k] - index) >>> shift) == i) k++;
+      // Subtrees that were nulled out by trimLeft are recreated.
+      Object child[] = (Object[])array[i];
+      if (child == null) child = new Object[1 << bits];
+      result[i] = _putAll(bits, child, depth - 1, index + ((long)i << shift), positions, values, j, k);
+      j = k;
+    }
+    return result;
+  }
+
+  public <R> ImmutableArray<R> map(Function<? super E, ? extends R> function) {
+    return _map(0, (index, element) -> function.apply(element));
+  }
+
+  public <R> ImmutableArray<R> mapIndexed(IndexedFunction<? super E, ? extends R> function) {
+    return _map(0, function);
+  }
+
+  // Makes a tree of the same shape with the function applied to the
+  // elements.  Positions before start are not part of the collection (this is
+  // used by ImmutableDeque) so they are set to null, and the function gets
+  // the index relative to start.
+  <R> ImmutableArray<R> _map(long start, IndexedFunction<? super E, ? extends R> function) {
+    if (_focus != null) return _flush()._map(start, function);
+    int bits = _bits();
+    Object new_powers[] = _powers.length == 0 ? _zero : new Object[_powers.length];
+    long index = 0;
+    for (int p = _powers.length; p >= 1; p--) {
+      Object power[] = (Object[])_powers[p - 1];
+      new_powers[p - 1] = power.length == 0 ? _zero : _map(bits, power, p, index, start, function);
+      index += (long)power.length << (bits * p);
+    }
+    Object new_tail[] = _tail.length == 0 ? _zero : _map(bits, _tail, 0, index, start, function);
+    return _make(size, new_powers, new_tail);
+  }
+
+  // The array holds subtrees of M**depth positions each, or elements if depth
+  // is 0.  The first of them is at the given index.
+  @SuppressWarnings("unchecked")
+  private static <E, R> Object[] _map(int bits, Object array[], int depth, long index, long start, IndexedFunction<? super E, ? extends R> function) {
+    Object result[] = new Object[array.length];
+    if (depth == 0) {
+      for (int i = (int)Math.max(0, Math.min(start - index, array.length)); i < array.length; i++) {
+        result[i] = function.apply(index + i - start, (E)array[i]);
+      }
+      return result;
+    }
+    long child_span = 1L << (bits * depth);
+    for (int i = 0; i < array.length; i++) {
+      // Subtrees entirely to the left of start stay null.
+      if (array[i] != null && index + child_span > start) {
+        result[i] = _map(bits, (Object[])array[i], depth - 1, index, start, function);
+      }
+      index += child_span;
+    }
+    return result;
+  }
+
+  boolean _sameElements(ImmutableCollection<?> other) {
+    if (_sameFamily(other)) return _sameElements((ImmutableArray<?>)other, 0);
+    return super._sameElements(other);
+  }
+
+  // Whether the other collection is an ImmutableArray whose tree has the
+  // same branching factor, so that the trees can be compared node by node.
+  boolean _sameFamily(Collection<?> other) {
+    return other instanceof ImmutableArray && ((ImmutableArray<?>)other)._bits() == _bits();
+  }
+
+  // Compares the positions from start on with another tree of the same
+  // size and family, and so of the same shape.  Shared subtrees are skipped.
+  boolean _sameElements(ImmutableArray<?> other, long start) {
+    if (_focus != null || other._focus != null) return _flush()._sameElements(other._flush(), start);
+    assert size == other.size && _bits() == other._bits();
+    int bits = _bits();
+    long index = 0;
+    for (int p = Math.max(_powers.length, other._powers.length); p >= 1; p--) {
+      Object power[] = p <= _powers.length ? (Object[])_powers[p - 1] : _zero;
+      Object other_power[] = p <= other._powers.length ? (Object[])other._powers[p - 1] : _zero;
+      if (power != other_power && !_sameElements(bits, power, other_power, p, index, start)) return false;
+      index += (long)power.length << (bits * p);
+    }
+    return _sameElements(bits, _tail, other._tail, 0, index, start);
+  }
+
+  // The arrays hold subtrees of M**depth positions each, or elements if
+  // depth is 0.  The first of them is at the given index.
+  private static boolean _sameElements(int bits, Object array[], Object other[], int depth, long index, long start) {
+    if (array == other) return true;
+    if (depth == 0) {
+      for (int i = (int)Math.max(0, Math.min(start - index, array.length)); i < array.length; i++) {
+        Object element = array[i];
+        if (element == null ? other[i] != null : !element.equals(other[i])) return false;
+      }
+      return true;
+    }
+    long child_span = 1L << (bits * depth);
+    for (int i = 0; i < array.length; i++) {
+      if (index + child_span > start && array[i] != other[i]) {
+        // Subtrees that were nulled out by trimLeft only hold nulls.
+        Object child[] = array[i] == null ? new Object[1 << bits] : (Object[])array[i];
+        Object other_child[] = other[i] == null ? new Object[1 << bits] : (Object[])other[i];
+        if (!_sameElements(bits, child, other_child, depth - 1, index, start)) return false;
+      }
+      index += child_span;
+    }
+    return true;
+  }
+
+  public ImmutableArray<Range> diff(ImmutableCollection<?> other) {
+    if (_sameFamily(other)) return _diff((ImmutableArray<?>)other, 0);
+    return super.diff(other);
+  }
+
+  // Diffs with another tree.  Positions before start are not part of the
+  // collections (this is used by ImmutableDeque), and the ranges are
+  // reported relative to start.
+  ImmutableArray<Range> _diff(ImmutableArray<?> other, long start) {
+    if (_focus != null || other._focus != null) return _flush()._diff(other._flush(), start);
+    RangeBuilder changes = new RangeBuilder();
+    long common = Math.min(size, other.size);
+    if (common > start) {
+      // A block of M**d positions that covers everything in common.
+      int d = Math.max(1, _powerPosn(_bits(), common - 1) + 1);
+      _diff(other, 0, d, null, null, start, common, changes);
+    }
+    long end = Math.max(size, other.size);
+    if (common < end) changes.add(Math.max(common, start) - start, end - start);
+    return changes.build();
+  }
+
+  // Compares the aligned blocks of M**d positions at block_start in the two
+  // trees.  Shared nodes are skipped.  The nodes are null if they are not
+  // known yet, or if the block is not a complete node in that tree.
+  private void _diff(ImmutableArray<?> other, long block_start, int d, Object node[], Object other_node[], long start, long common, RangeBuilder changes) {
+    if (node == null) node = _nodeAt(block_start, d);
+    if (other_node == null) other_node = other._nodeAt(block_start, d);
+    if (node != null && node == other_node) return;
+    int bits = _bits();
+    int mask = (1 << bits) - 1;
+    if (d == 1) {
+      Object leaf[] = node != null ? node : _leafAt(bits, _powers, _tail, size, block_start);
+      Object other_leaf[] = other_node != null ? other_node : _leafAt(bits, other._powers, other._tail, other.size, block_start);
+      long to = Math.min(block_start + mask + 1, common);
+      for (long i = Math.max(block_start, start); i < to; i++) {
+        Object element = leaf[(int)(i & mask)];
+        Object other_element = other_leaf[(int)(i & mask)];
+        if (element == null ? other_element != null : !element.equals(other_element)) {
+          changes.add(i - start, i + 1 - start);
+        }
+      }
+      return;
+    }
+    long child_span = 1L << (bits * (d - 1));
+    for (int i = 0; i <= mask; i++) {
+      long child_start = block_start + i * child_span;
+      if (child_start >= common) break;
+      if (child_start + child_span <= start) continue;
+      _diff(
+          other,
+          child_start,
+          d - 1,
+          node == null ? null : (Object[])node[i],
+          other_node == null ? null : (Object[])other_node[i],
+          start,
+          common,
+          changes);
+    }
+  }
+
+  // The node that holds the aligned block of M**d positions starting at
+  // block_start, or null if the block is not a complete node in this tree.
+  // A block of M positions is a leaf.  Does not know about the focus, so it
+  // is only called on flushed arrays.
+  Object[] _nodeAt(long block_start, int d) {
+    assert _focus == null;
+    int bits = _bits();
+    if (block_start + (1L << (bits * d)) > size) return null;
+    int power_posn = _powerPosn(bits, block_start ^ size);
+    // The _powers entry only has smaller subtrees.
+    if (power_posn < d) return null;
+    Object node[] = (Object[])_powers[power_posn - 1];
+    for (int level = power_posn; level >= d; level--) {
+      node = (Object[])node[(int)(block_start >>> (level * bits)) & ((1 << bits) - 1)];
+      // Subtrees that were nulled out by trimLeft.
+      if (node == null) return null;
+    }
+    return node;
   }
 
   protected ImmutableArray<E> _newWithSpaceOnLeft() {
-    if (size <= M - 1) {
+    if (_focus != null) return _flush()._newWithSpaceOnLeft();
+    int bits = _bits();
+    int m = 1 << bits;
+    if (size <= m - 1) {
       Object new_tail[] = new Object[(int)(size + 1)];
       for (int i = 0; i < size; i++) new_tail[i + 1] = _tail[i];
-      if (size == M - 1) {
+      if (size == m - 1) {
         Object new_powers[] = new Object[] { new Object[] { new_tail } };
-        return new ImmutableArray<E>(size + 1, new_powers, _zero);
+        return _make(size + 1, new_powers, _zero);
       } else {
-        return new ImmutableArray<E>(size + 1, _powers, new_tail);
+        return _make(size + 1, _powers, new_tail);
       }
     }
     assert _powers.length >= 1;
@@ -290,9 +906,9 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
     for (int i = 0; i < arraylet.length; i++) {
       new_arraylet[i + 1] = arraylet[i];
     }
-    long extra_space = 1L << (shift * SHIFT);
+    long extra_space = 1L << (shift * bits);
     Object new_powers[];
-    if (arraylet.length == M - 1)  {
+    if (arraylet.length == m - 1)  {
       // We have to extend the powers array.
       new_powers = _copyAppend(_powers, 1, new Object[] { new_arraylet }, null);
       new_powers[shift - 1] = _zero;
@@ -300,7 +916,56 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
       // There is space in the top of the powers array for a new entry.
       new_powers = _copyBut(_powers, shift - 1, new_arraylet);
     }
-    return new ImmutableArray<E>(size + extra_space, new_powers, _tail);
+    return _make(size + extra_space, new_powers, _tail);
+  }
+
+  // Makes a copy where the positions from index from (inclusive) to to
+  // (exclusive) are replaced with consecutive values from the array,
+  // starting at values[position].  Like _newPushHelper on the right hand
+  // side, this fills whole subtrees at a time: every node that is touched is
+  // copied only once, so it takes O(to - from + log size) time.  Subtrees that
+  // were nulled out by trimLeft are recreated.
+  protected ImmutableArray<E> _putRange(long from, long to, Object values[], int position) {
+    if (_focus != null) return _flush()._putRange(from, to, values, position);
+    assert 0 <= from && from <= to && to <= size;
+    if (from == to) return this;
+    int bits = _bits();
+    Object new_powers[] = _powers;
+    long index = 0;
+    for (int p = _powers.length; p >= 1 && index < to; p--) {
+      Object power[] = (Object[])_powers[p - 1];
+      long span = (long)power.length << (bits * p);
+      if (index + span > from) {
+        if (new_powers == _powers) new_powers = Arrays.copyOf(_powers, _powers.length);
+        new_powers[p - 1] = _putRange(bits, power, p, index, from, to, values, position);
+      }
+      index += span;
+    }
+    Object new_tail[] = _tail;
+    if (index < to) new_tail = _putRange(bits, _tail, 0, index, from, to, values, position);
+    return _make(size, new_powers, new_tail);
+  }
+
+  // The array holds subtrees of M**depth positions each, or elements if depth
+  // is 0.  The first of them is at the given index.
+  private static Object[] _putRange(int bits, Object array[], int depth, long index, long from, long to, Object values[], int position) {
+    Object result[] = Arrays.copyOf(array, array.length);
+    if (depth == 0) {
+      int start = (int)Math.max(from - index, 0);
+      int end = (int)Math.min(to - index, array.length);
+      System.arraycopy(values, (int)(position + index + start - from), result, start, end - start);
+      return result;
+    }
+    long child_span = 1L << (bits * depth);
+    for (int i = 0; i < array.length && index < to; i++) {
+      if (index + child_span > from) {
+        Object child[] = (Object[])array[i];
+        if (child == null) child = new Object[1 << bits];
+        result[i] = _putRange(bits, child, depth - 1, index, from, to, values, position);
+      }
+      index += child_span;
+    }
+    return result;
   }
 
   // Null out all entries to the left of the given index. This is used by
@@ -308,42 +973,46 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
   // retained for GC purposes.
   // Time taken is O(log size).
   protected ImmutableArray<E> trimLeft(long index) {
+    if (_focus != null) return _flush().trimLeft(index);
     assert 0 < index && index < size;
-    if ((size ^ index) < M) {
+    int bits = _bits();
+    int mask = (1 << bits) - 1;
+    if ((size ^ index) <= mask) {
       Object[] tail = new Object[(int)(size - index)];
       for (int i = 0; i < tail.length; i++) {
-        tail[i] = _tail[(int)(i + (index & MASK))];
+        tail[i] = _tail[(int)(i + (index & mask))];
       }
-      return new ImmutableArray<E>(size - index, _powers, tail);
+      return _make(size - index, _zero, tail);
     }
     assert _powers.length >= 1;
     long len = size;
-    int length_tribbles = _powerPosn(size);
+    int length_tribbles = _powerPosn(bits, size);
     while (true) {
-      long top_index_digit = index >>> (SHIFT * length_tribbles);
-      long top_length_digit = len >>> (SHIFT * length_tribbles);
+      long top_index_digit = index >>> (bits * length_tribbles);
+      long top_length_digit = len >>> (bits * length_tribbles);
       if (top_index_digit < top_length_digit) {
         Object new_powers[] = Arrays.copyOf(_powers, length_tribbles);
         new_powers[length_tribbles - 1] = _trimLeft(
+            bits,
             length_tribbles,
             index,
             (Object[])_powers[length_tribbles - 1]);
-        return new ImmutableArray<E>(len, new_powers, _tail);
+        return _make(len, new_powers, _tail);
       }
-      index -= top_index_digit << (SHIFT * length_tribbles);
-      len -= top_index_digit << (SHIFT * length_tribbles);
+      index -= top_index_digit << (bits * length_tribbles);
+      len -= top_index_digit << (bits * length_tribbles);
       length_tribbles--;
     }
   }
 
-  private Object[] _trimLeft(int tribbles, long index, Object array[]) {
-    long idx = index >>> (tribbles * SHIFT);
+  private static Object[] _trimLeft(int bits, int tribbles, long index, Object array[]) {
+    long idx = index >>> (tribbles * bits);
     return _nullToTheLeft(
         array,
         idx,
         tribbles == 0 ?
             array[(int)idx] :
-            _trimLeft(tribbles - 1, index - (idx << (tribbles * SHIFT)), (Object[])array[(int)idx]));
+            _trimLeft(bits, tribbles - 1, index - (idx << (tribbles * bits)), (Object[])array[(int)idx]));
   }
 
   public ImmutableArray<E> push(E value) {
@@ -370,94 +1039,102 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
   }
 
   private ImmutableArray<E> _pushAll(Collection<? extends E> collection, long length) {
+    if (_focus != null) return _flush()._pushAll(collection, length);
     if (length == 0) return this;
     Iterator<? extends E> it = collection.iterator();
     if (length == 1) return push(it.next());
+    int bits = _bits();
+    int m = 1 << bits;
+    int mask = m - 1;
     long new_size = size;
     Object new_powers[];
-    if ((size & MASK) != 0 || length < MASK) {
-      long mod = M - (size & MASK);
+    if ((size & mask) != 0 || length < mask) {
+      long mod = m - (size & mask);
       if (mod > length) mod = length;
       Object new_tail[] = Arrays.copyOf(_tail, (int)(_tail.length + mod));
       for (int i = 0; i < mod; i++) {
         new_tail[_tail.length + i] = it.next();
       }
-      if (new_tail.length < M) {
-        return new ImmutableArray<E>(size + length, _powers, new_tail);
+      if (new_tail.length < m) {
+        return _make(size + length, _powers, new_tail);
       }
-      new_powers = _copyPad(_powers, _powerPosn(size + length));
-      new_powers = _insertSubtree(new_powers, new_tail, 0);
+      new_powers = _copyPad(_powers, _powerPosn(bits, size + length));
+      new_powers = _insertSubtree(bits, new_powers, new_tail, 0);
       new_size += mod;
       length -= mod;
     } else {
       new_powers = _powers;
     }
     // We have extended to a multiple of M.
-    new_powers = _newPushHelper(new_powers, new_size, it, length & ~MASK);
+    new_powers = _newPushHelper(bits, new_powers, new_size, it, length & ~mask);
     // Take care of the rest.
     Object new_tail[] = _zero;
-    if ((length & MASK) != 0) {
-      new_tail = new Object[(int)(length & MASK)];
+    if ((length & mask) != 0) {
+      new_tail = new Object[(int)(length & mask)];
       for (int i = 0; i < new_tail.length; i++) new_tail[i] = it.next();
     }
-    return new ImmutableArray<E>(new_size + length, new_powers, new_tail);
+    return _make(new_size + length, new_powers, new_tail);
   }
 
   // Creates a mutable powers array and pushes items in groups of powers of M in
   // order to make things more efficient.  The collection always has a size
   // divisible with M before and after.
-  private static Object[] _newPushHelper(Object old_powers[], long size, Iterator it, long remaining) {
+  private static Object[] _newPushHelper(int bits, Object old_powers[], long size, Iterator it, long remaining) {
     if (remaining == 0) return old_powers;
-    int new_powers_length = _powerPosn(size + remaining);
+    int new_powers_length = _powerPosn(bits, size + remaining);
     Object[] powers = _copyPad(old_powers, new_powers_length);
     // We have a power of M size.  Try to push M at a time, or M*M, or M*M*M...
-    long at_a_time = M;
+    long at_a_time = 1 << bits;
     int shift = 1;
     while (remaining != 0) {
       assert(at_a_time != 1);
       if (at_a_time <= remaining) {
-        long next_aat = at_a_time << SHIFT;
+        long next_aat = at_a_time << bits;
         if (next_aat <= remaining && ((size & (next_aat - 1)) == 0)) {
           at_a_time = next_aat;
           shift++;
         } else {
-          Object subtree[] = _createSubtree(at_a_time, it);
-          powers = _insertSubtree(powers, subtree, shift - 1);
+          Object subtree[] = _createSubtree(bits, at_a_time, it);
+          powers = _insertSubtree(bits, powers, subtree, shift - 1);
           remaining -= at_a_time;
           size += at_a_time;
         }
       } else {
-        at_a_time >>= SHIFT;
+        at_a_time >>= bits;
         shift--;
       }
     }
     return powers;
   }
 
-  private static Object[] _createSubtree(long at_a_time, Iterator it) {
-    Object arraylet[] = new Object[M];
-    for (int i = 0; i < M; i++) {
-      if (at_a_time == M) {
+  private static Object[] _createSubtree(int bits, long at_a_time, Iterator it) {
+    int m = 1 << bits;
+    Object arraylet[] = new Object[m];
+    for (int i = 0; i < m; i++) {
+      if (at_a_time == m) {
         arraylet[i] = it.next();
       } else {
-        arraylet[i] = _createSubtree(at_a_time >> SHIFT, it);
+        arraylet[i] = _createSubtree(bits, at_a_time >> bits, it);
       }
     }
     return arraylet;
   }
 
+  // Moving the tail into the tree does not change the positions of the
+  // leaves, so the focus is kept.
   private ImmutableArray<E> _push(int count, Object value1, Object value2) {
     Object powers[] = _powers;
     Object tail[] = _copyAppend(_tail, count, value1, value2);
-    if (tail.length == M) {
-      powers = _copyPad(_powers, _powerPosn(size + count));
-      powers = _insertSubtree(powers, tail, 0);
+    int bits = _bits();
+    if (tail.length == 1 << bits) {
+      powers = _copyPad(_powers, _powerPosn(bits, size + count));
+      powers = _insertSubtree(bits, powers, tail, 0);
       tail = _zero;
     }
-    return new ImmutableArray<E>(size + count, powers, tail);
+    return _make(size + count, powers, tail, _focus, _focusStart);
   }
 
-  static private Object[] _insertSubtree(Object powers[], Object value, int shift) {
+  static Object[] _insertSubtree(int bits, Object powers[], Object value, int shift) {
     assert shift >= 0;
     if (powers.length < shift + 1) {
       powers = _copyPad(powers, shift + 1);
@@ -465,7 +1142,7 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
     for (int i = shift; i < powers.length; i++) {
       Object new_value[] = _copyAppend((Object[])powers[i], 1, value, null);
       powers[i] = new_value;
-      if (new_value.length != M) return powers;
+      if (new_value.length != 1 << bits) return powers;
       value = powers[i];
       powers[i] = _zero;
     }
@@ -478,7 +1155,7 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
     if (size < 16) {
       // For small collections, the ImmutableArray is more memory efficient
       // than the ImmutableDeque.
-      return new ImmutableArray<E>().push(value).pushAll(this);
+      return this.<E>_empty().push(value).pushAll(this);
     }
     return new ImmutableDeque<E>(0, this).unshift(value);
   }
@@ -487,7 +1164,7 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
     if (size + array.length <= 16) {
       // For small collections, the ImmutableArray is more memory efficient
       // than the ImmutableDeque.
-      return new ImmutableArray<E>(array).pushAll(this);
+      return this.<E>_empty().pushAll(array).pushAll(this);
     }
     return new ImmutableDeque<E>(0, this).unshiftAll(array);
   }
@@ -497,18 +1174,18 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
     if (size + collection.size() <= 16) {
       // For small collections, the ImmutableArray is more memory efficient
       // than the ImmutableDeque.
-      if (collection instanceof ImmutableArray) {
+      if (_sameFamily(collection)) {
         return ((ImmutableArray)collection).pushAll(this);
       }
-      return new ImmutableArray(collection).pushAll(this);
+      return this.<E>_empty().pushAll(collection).pushAll(this);
     }
     if ((size >> 2) < collection.size()) {
       // Reverse the operation unless we are prepending a small thing onto a
       // much larger thing.
       if (collection instanceof ImmutableCollection) {
-        return ((ImmutableCollection)collection).pushAll(this);
+        return ((ImmutableCollection<E>)collection).concat(this);
       } else {
-        return new ImmutableArray<E>(collection).pushAll(this);
+        return this.<E>_empty().pushAll(collection).pushAll(this);
       }
     }
     return new ImmutableDeque<E>(0, this).unshiftAll(collection);
@@ -520,13 +1197,14 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
 
   public ImmutableCollection<E> subList(long from) {
     if (from == 0) return this;
-    if (from == size) return new ImmutableArray<E>();
+    if (from == size) return _empty();
     return new ImmutableDeque<E>(from, this);
   }
 
   public ImmutableCollection<E> subList(long from, long to) {
     if (from == 0) return trim(size - to);
-    if (from == size) return new ImmutableArray<E>();
+    if (from == to) return _empty();
+    if (from == size) return _empty();
     if (to == size) return new ImmutableDeque<E>(from, this);
     return new ImmutableDeque<E>(from, trim(size - to));
   }
@@ -536,14 +1214,17 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
   }
 
   public ImmutableArray<E> trim(long by) {
+    if (_focus != null) return _flush().trim(by);
     if (by < 0 || by > size) throw new IndexOutOfBoundsException();
     if (by == 0) return this;
-    if (by == size) return new ImmutableArray<E>();
+    if (by == size) return _empty();
+    int bits = _bits();
+    int mask = (1 << bits) - 1;
     long new_size = size - by;
-    if (by < (size & MASK)) {
-      return new ImmutableArray<E>(new_size, _powers, Arrays.copyOf(_tail, (int)((size - by) & MASK)));
-    } else if (by == (size & MASK)) {
-      return new ImmutableArray<E>(new_size, _powers, _zero);
+    if (by < (size & mask)) {
+      return _make(new_size, _powers, Arrays.copyOf(_tail, (int)((size - by) & mask)));
+    } else if (by == (size & mask)) {
+      return _make(new_size, _powers, _zero);
     }
     // At this point we know that powers needs to change.
     Object new_powers[] = null;
@@ -551,8 +1232,8 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
     Object[] borrow = _zero;
     // One digit at a time, from most significant to least significant.
     for (int i = _powers.length; i >= 0; i--) {
-      int old_digit = (int)((size >> (i * SHIFT)) & MASK);
-      int new_digit = (int)((new_size >> (i * SHIFT)) & MASK);
+      int old_digit = (int)((size >> (i * bits)) & mask);
+      int new_digit = (int)((new_size >> (i * bits)) & mask);
       Object input[] = i == 0 ? _tail : (Object[])_powers[i - 1];
       int borrow_len = borrow.length;
       int input_len = borrow_len + input.length;
@@ -583,16 +1264,444 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
         }
       }
     }
-    return new ImmutableArray<E>(new_size, new_powers, new_tail);
+    return _make(new_size, new_powers, new_tail);
+  }
+
+  /** Create a Builder that starts out with the elements of this
+   *  ImmutableArray.  The ImmutableArray itself is not affected by pushes on
+   *  the Builder.  Takes O(log size) time.
+   *  @return A new Builder containing the elements of this ImmutableArray.
+   */
+  public Builder<E> asTransient() {
+    if (_focus != null) return _flush().asTransient();
+    Builder<E> builder = new Builder<E>(_empty());
+    int m = 1 << _bits();
+    builder._size = size;
+    builder._tail = Arrays.copyOf(_tail, m);
+    builder._spine = new Object[_powers.length][];
+    for (int i = 0; i < _powers.length; i++) {
+      builder._spine[i] = Arrays.copyOf((Object[])_powers[i], m);
+    }
+    return builder;
+  }
+
+  /** A mutable helper for building large ImmutableArrays quickly.  Unlike
+   *  push() on an ImmutableArray, which has to copy the tail and sometimes the
+   *  spine for every new element, the Builder owns its partially filled
+   *  arrays and appends to them in place.  Complete leaves and subtrees are
+   *  handed over to the spine and never touched again, so build() only has to
+   *  copy the partially filled arrays, which takes O(log size) time and is
+   *  independent of the number of elements pushed.  The Builder can still be
+   *  used after build(), and the ImmutableArrays it has built are not
+   *  affected.  A Builder is not thread safe.
+   */
+  public static class Builder<E> {
+    // An empty array of the family that build() makes.
+    private final ImmutableArray<?> _family;
+    private final int _bits;
+    private final int _mask;
+    private long _size = 0;
+    // Always M long.  Only the first (_size & MASK) entries are in use.
+    private Object _tail[];
+    // Each entry is M long, and only the first few entries are in use,
+    // corresponding to the digits of _size, like the _powers of an
+    // ImmutableArray.
+    private Object _spine[][] = new Object[0][];
+
+    /** Create an empty Builder for ImmutableArrays with a branching factor
+     *  of 16.
+     */
+    public Builder() {
+      this(new ImmutableArray<E>());
+    }
+
+    /** Create an empty Builder for ImmutableArrays with the given branching
+     *  factor.
+     *  @param branching_factor 8, 16, 32 or 64.
+     *  @see ImmutableArray#empty
+     */
+    public Builder(int branching_factor) {
+      this(empty(branching_factor));
+    }
+
+    Builder(ImmutableArray<?> family) {
+      _family = family;
+      _bits = family._bits();
+      _mask = (1 << _bits) - 1;
+      _tail = new Object[_mask + 1];
+    }
+
+    public int size() {
+      return _longTruncator(_size);
+    }
+
+    public long longSize() {
+      return _size;
+    }
+
+    /** Append a value at the end.  Takes amortized O(1) time and does not
+     *  allocate except when a leaf is complete.
+     *  @param value The element to append.
+     *  @return The receiver.
+     */
+    public Builder<E> push(E value) {
+      int posn = (int)(_size & _mask);
+      _tail[posn] = value;
+      _size++;
+      if (posn == _mask) _pushLeaf();
+      return this;
+    }
+
+    /** Append all elements of an array at the end.
+     *  @param array The elements to append.
+     *  @return The receiver.
+     */
+    public Builder<E> pushAll(E array[]) {
+      for (E value : array) push(value);
+      return this;
+    }
+
+    /** Append all elements of a collection at the end.
+     *  @param collection The elements to append.
+     *  @return The receiver.
+     */
+    public Builder<E> pushAll(Collection<? extends E> collection) {
+      collection.forEach(this::push);
+      return this;
+    }
+
+    // The tail is full and _size is divisible by M.  Move it to the spine,
+    // carrying complete subtrees upwards as needed.
+    private void _pushLeaf() {
+      Object node = _tail;
+      _tail = new Object[_mask + 1];
+      _carry(node, 0);
+    }
+
+    // Append a complete subtree of an ImmutableArray without copying it.
+    // Depth 0 is a leaf.  Like the other nodes in the spine, it is never
+    // written to.  _size must be divisible by the size of the subtree.
+    void _pushSharedNode(Object node[], int depth) {
+      long node_size = 1L << ((depth + 1) * _bits);
+      assert (_size & (node_size - 1)) == 0 && node.length == _mask + 1;
+      _size += node_size;
+      _carry(node, depth);
+    }
+
+    private void _carry(Object node, int start_level) {
+      for (int level = start_level; true; level++) {
+        if (level >= _spine.length) {
+          int old_length = _spine.length;
+          _spine = Arrays.copyOf(_spine, level + 1);
+          for (int i = old_length; i <= level; i++) _spine[i] = new Object[_mask + 1];
+        }
+        Object buffer[] = _spine[level];
+        int digit = (int)((_size >>> ((level + 1) * _bits)) & _mask);
+        if (digit != 0) {
+          buffer[digit - 1] = node;
+          return;
+        }
+        // This level wrapped around, so together with the new node it forms a
+        // complete subtree that belongs one level up.
+        buffer[_mask] = node;
+        node = buffer;
+        _spine[level] = new Object[_mask + 1];
+      }
+    }
+
+    /** Create an ImmutableArray with the elements pushed so far.
+     *  @return A new ImmutableArray.
+     */
+    public ImmutableArray<E> build() {
+      if (_size == 0) return _family._empty();
+      int levels = _powerPosn(_bits, _size);
+      Object powers[] = levels == 0 ? _zero : new Object[levels];
+      for (int i = 0; i < levels; i++) {
+        int digit = (int)((_size >>> ((i + 1) * _bits)) & _mask);
+        powers[i] = digit == 0 ? _zero : Arrays.copyOf(_spine[i], digit);
+      }
+      int tail_length = (int)(_size & _mask);
+      Object tail[] = tail_length == 0 ? _zero : Arrays.copyOf(_tail, tail_length);
+      return _family._make(_size, powers, tail);
+    }
+  }
+
+  /** A Collector for Stream.collect() that gives an ImmutableCollection
+   *  with the elements of the stream, in order.  Each part of a parallel
+   *  stream is collected into its own Builder, and the parts are joined with
+   *  concat, which shares their trees instead of copying the elements.  The
+   *  result of a sequential stream is an ImmutableArray, the result of a
+   *  parallel stream is usually an ImmutableRope.
+   *  @return A new Collector.
+   */
+  public static <E> Collector<E, ?, ImmutableCollection<E>> collector() {
+    return _collector(new ImmutableArray<E>());
+  }
+
+  /** A Collector like collector(), whose ImmutableArrays have the given
+   *  branching factor.
+   *  @param branching_factor 8, 16, 32 or 64.
+   *  @return A new Collector.
+   *  @see ImmutableArray#empty
+   */
+  public static <E> Collector<E, ?, ImmutableCollection<E>> collector(int branching_factor) {
+    return _collector(empty(branching_factor));
+  }
+
+  static <E> Collector<E, ?, ImmutableCollection<E>> _collector(ImmutableArray<?> family) {
+    return Collector.of(
+        () -> new Collecting<E>(family),
+        Collecting<E>::push,
+        Collecting<E>::join,
+        Collecting<E>::result);
+  }
+
+  // The state of a collector().  The elements collected so far are the ones
+  // in _done, if any, followed by the ones in the Builder.
+  private static final class Collecting<E> {
+    private final ImmutableArray<?> _family;
+    private ImmutableCollection<E> _done;
+    private Builder<E> _builder;
+
+    Collecting(ImmutableArray<?> family) {
+      _family = family;
+      _builder = new Builder<E>(family);
+    }
+
+    void push(E value) {
+      _builder.push(value);
+    }
+
+    Collecting<E> join(Collecting<E> other) {
+      _done = result().concat(other.result());
+      _builder = new Builder<E>(_family);
+      return this;
+    }
+
+    ImmutableCollection<E> result() {
+      if (_done == null) return _builder.build();
+      if (_builder.longSize() == 0) return _done;
+      return _done.concat(_builder.build());
+    }
+  }
+
+  /** A spliterator that splits at the boundaries of the subtrees.  The
+   *  subtrees under each _powers entry are complete and aligned on a multiple
+   *  of their size, so splitting at the largest power of M that is inside the
+   *  remaining range gives parts that share no leaves, and are as balanced as
+   *  the tree allows.
+   */
+  protected static class ImmutableArraySpliterator<E> implements Spliterator<E> {
+    private final int _bits;
+    private final long _size;
+    private final Object _powers[];
+    private final Object _tail[];
+    private long _index;
+    private final long _end;
+    // The leaf containing _index, or null if it has not been looked up yet.
+    private Object _leaf[];
+
+    protected ImmutableArraySpliterator(int bits, long size, Object powers[], Object tail[], long from, long to) {
+      _bits = bits;
+      _size = size;
+      _powers = powers;
+      _tail = tail;
+      _index = from;
+      _end = to;
+    }
+
+    @SuppressWarnings("unchecked")
+    public boolean tryAdvance(Consumer<? super E> action) {
+      if (_index == _end) return false;
+      if (_leaf == null) _leaf = _leafAt(_bits, _powers, _tail, _size, _index);
+      int mask = (1 << _bits) - 1;
+      E result = (E)_leaf[(int)(_index & mask)];
+      _index++;
+      if ((_index & mask) == 0) _leaf = null;
+      action.accept(result);
+      return true;
+    }
+
+    public void forEachRemaining(Consumer<? super E> action) {
+      long from = _index;
+      _index = _end;
+      _leaf = null;
+      if (from != _end) _forEachInRange(_bits, _powers, _tail, from, _end, action);
+    }
+
+    public Spliterator<E> trySplit() {
+      if (_end - _index <= 1 << _bits) return null;
+      // The largest power of M such that the range contains a multiple of it
+      // that is not at the start.
+      int level = _powerPosn(_bits, _index ^ (_end - 1));
+      if (level == 0) return null;
+      long mask = (1L << (level * _bits)) - 1;
+      long split = (_index + ((_end - _index) >> 1)) & ~mask;
+      if (split <= _index) split += mask + 1;
+      Spliterator<E> prefix = new ImmutableArraySpliterator<E>(_bits, _size, _powers, _tail, _index, split);
+      _index = split;
+      _leaf = null;
+      return prefix;
+    }
+
+    public long estimateSize() {
+      return _end - _index;
+    }
+
+    public long getExactSizeIfKnown() {
+      return _end - _index;
+    }
+
+    public int characteristics() {
+      return IMMUTABLE | ORDERED | SIZED | SUBSIZED;
+    }
+  }
+
+  /** Random access that is fast when consecutive indices are near each
+   *  other, as in strided or windowed loops.  The cursor remembers the path
+   *  from the top of the tree to the last leaf it used.  An index in the
+   *  same leaf takes O(1) time, as does one in a neighbouring leaf with the
+   *  same parent.  In general the path is only redone from the lowest
+   *  common ancestor, so an access takes O(log distance) time, where
+   *  ImmutableArray.get() takes O(log(size - index)).<p>
+   *
+   *  A cursor is a view of one version of the collection, so later changes
+   *  to the collection do not affect it.  It is not thread safe.
+   */
+  public static final class Cursor<E> {
+    private final int _bits;
+    private final long _size;
+    private final Object _powers[];
+    private final Object _tail[];
+    private final long _start;
+    // _path[d] is the array at depth d on the path to the current leaf, so
+    // _path[0] is the leaf.
+    private final Object _path[][];
+    // The _powers position of the path, 0 for the tail, -1 for no path yet.
+    private int _posn = -1;
+    // A position in the current leaf.
+    private long _index;
+
+    Cursor(int bits, long size, Object powers[], Object tail[], long start) {
+      _bits = bits;
+      _size = size;
+      _powers = powers;
+      _tail = tail;
+      _start = start;
+      _path = new Object[powers.length + 1][];
+    }
+
+    /** The number of elements.
+     *  @return The number of elements.
+     */
+    public long longSize() {
+      return _size - _start;
+    }
+
+    /** Get an element.
+     *  @param index The index of the element.
+     *  @return The element.
+     */
+    @SuppressWarnings("unchecked")
+    public E get(long index) {
+      if (index < 0 || index >= _size - _start) throw new IndexOutOfBoundsException();
+      index += _start;
+      int mask = (1 << _bits) - 1;
+      if (_posn < 0 || (index ^ _index) > mask) _moveTo(index);
+      return (E)_path[0][(int)(index & mask)];
+    }
+
+    private void _moveTo(long index) {
+      int posn = _powerPosn(_bits, index ^ _size);
+      int depth;
+      if (posn != _posn) {
+        _posn = posn;
+        if (posn == 0) {
+          _path[0] = _tail;
+          _index = index;
+          return;
+        }
+        depth = posn;
+        _path[depth] = (Object[])_powers[posn - 1];
+      } else {
+        // The digits above this one are the same as for the current leaf,
+        // so the arrays above this depth are too.
+        depth = _powerPosn(_bits, index ^ _index);
+      }
+      int mask = (1 << _bits) - 1;
+      for (; depth != 0; depth--) {
+        _path[depth - 1] = (Object[])_path[depth][(int)(index >>> (_bits * depth)) & mask];
+      }
+      _index = index;
+    }
+  }
+
+  /** Create a cursor for fast random access to nearby elements.
+   *  @return A new cursor, positioned nowhere in particular.
+   */
+  public Cursor<E> cursor() {
+    if (_focus != null) return _flush().cursor();
+    return new Cursor<E>(_bits(), size, _powers, _tail, 0);
+  }
+
+  Cursor<E> _cursor(long start) {
+    if (_focus != null) return _flush()._cursor(start);
+    return new Cursor<E>(_bits(), size, _powers, _tail, start);
+  }
+
+  // Finds each leaf from the top, like ImmutableArraySpliterator.  That takes
+  // O(log(size - index)) per leaf, which is small compared to the M elements
+  // of the leaf.
+  private static final class ImmutableArrayChunkIterator implements ChunkIterator {
+    private final int _bits;
+    private final long _size;
+    private final Object _powers[];
+    private final Object _tail[];
+    private long _index;
+    private final long _end;
+    private Object _chunk[];
+    private int _offset;
+    private int _length;
+
+    ImmutableArrayChunkIterator(int bits, long size, Object powers[], Object tail[], long from, long to) {
+      _bits = bits;
+      _size = size;
+      _powers = powers;
+      _tail = tail;
+      _index = from;
+      _end = to;
+    }
+
+    public boolean advance() {
+      if (_index == _end) {
+        _chunk = null;
+        return false;
+      }
+      _chunk = _leafAt(_bits, _powers, _tail, _size, _index);
+      _offset = (int)(_index & ((1 << _bits) - 1));
+      _length = (int)Math.min(_chunk.length - _offset, _end - _index);
+      _index += _length;
+      return true;
+    }
+
+    public Object[] chunk() { return _chunk; }
+    public int offset() { return _offset; }
+    public int length() { return _length; }
   }
 
   protected class ImmutableArrayIterator<E> implements Iterator<E> {
+    protected final int _shift = _bits();
+    protected final int _mask = (1 << _shift) - 1;
     protected long _remaining;
     protected long _index;
     protected Object _stack[][];
     protected Object _powers[];
     protected Object _tail[];
     protected int _powers_posn;
+    // The bottom of the stack, and the position of _index in it, so that
+    // next() does not depend on the branching factor.
+    protected Object _leaf[];
+    protected int _leaf_posn;
 
     public ImmutableArrayIterator(long length, Object[] powers, Object[] tail) {
       _powers = powers;
@@ -617,6 +1726,7 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
         _index = length - 1;
         _init();  // Set stack for the last position it makes sense.
         _index = starting;
+        _leaf_posn++;
       } else {
         _index = starting;
         _init();
@@ -626,13 +1736,13 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
     protected void _init() {
       long starting = _index;
       if (size != 0) {
-        int len = _powerPosn(size);
+        int len = _powerPosn(_shift, size);
         if (starting == 0) {
           _powers_posn = len;
         } else {
           for (_powers_posn = len; _powers_posn >= 0; _powers_posn--) {
             Object arraylet[] = _powers_posn == 0 ? _tail : (Object[])_powers[_powers_posn - 1];
-            long at_this_level = arraylet.length << (SHIFT * _powers_posn);
+            long at_this_level = arraylet.length << (_shift * _powers_posn);
             if (starting < at_this_level) break;
             starting -= at_this_level;
           }
@@ -648,7 +1758,7 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
 
     public void forEachRemaining(Consumer<? super E> action) {
       if (_remaining != 0) {
-        ImmutableArray._forEachHelper(_powers, _tail, _index, _index + _remaining, action);
+        ImmutableArray._forEachHelper(_shift, _powers, _tail, _index, _index + _remaining, action);
       }
       _remaining = 0;
     }
@@ -659,13 +1769,11 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
       // Short version of next, designed to be inlined.
       assert hasNext();
       //if (_stack == null) _init();
-      int arraylet_posn = (int)(_index & MASK);
-      Object bottom_arraylet[] = _stack[_powers_posn];
-      E result = (E)bottom_arraylet[arraylet_posn];
+      Object bottom_arraylet[] = _leaf;
+      E result = (E)bottom_arraylet[_leaf_posn];
       _remaining--;
       _index++;
-      arraylet_posn++;
-      if (arraylet_posn == bottom_arraylet.length) {
+      if (++_leaf_posn == bottom_arraylet.length) {
         _next();
       }
       return result;
@@ -679,36 +1787,38 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
       // different levels of the tree, which gives O(n) iteration.  The nth
       // position in the _powers array has a tree under it that is n+1 deep,
       // which also sets the size of the explicit stack we need.
-      int shift = SHIFT;
+      int shift = _shift;
       for (int idx = _powers_posn - 1; idx >= 0; idx--) {
         Object[] arraylet = (Object[])(_stack[idx]);
-        int arraylet_posn = (int)((_index >> shift) & MASK);
+        int arraylet_posn = (int)((_index >> shift) & _mask);
         if (arraylet_posn != 0 && arraylet_posn != arraylet.length) {
           _populate_stack(shift, idx, arraylet);
           return;
         }
-        shift += SHIFT;
+        shift += _shift;
       }
       // Need to move to next position in _powers array.
       if (_powers_posn == 0) return;  // Hit the end.
-      _powers_posn = _powerPosn(_index ^ (_index + _remaining));
+      _powers_posn = _powerPosn(_shift, _index ^ (_index + _remaining));
       _populate_stack();
     }
 
     protected void _populate_stack() {
       Object top[] = _powers_posn <= 0 ? _tail : (Object[])_powers[_powers_posn - 1];
       _stack[0] = top;
-      _populate_stack(_powers_posn * SHIFT, 0, top);
+      _populate_stack(_powers_posn * _shift, 0, top);
     }
 
     protected void _populate_stack(int shift, int idx, Object arraylet[]) {
       while (idx < _powers_posn) {
-        int arraylet_posn = (int)((_index >> shift) & MASK);
+        int arraylet_posn = (int)((_index >> shift) & _mask);
         idx++;
         arraylet = (Object[])arraylet[arraylet_posn];
         _stack[idx] = arraylet;
-        shift -= SHIFT;
+        shift -= _shift;
       }
+      _leaf = arraylet;
+      _leaf_posn = (int)(_index & _mask);
     }
   }
 
@@ -732,15 +1842,17 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
       // Short version of previous, designed to be inlined.
       //if (_stack == null) _init();
       assert hasPrevious();
-      int arraylet_posn = (int)(_index & MASK);
+      int arraylet_posn = (int)(_index & _mask);
       _index--;
       _remaining++;
       if (arraylet_posn == 0) {
         _previous();
-        arraylet_posn = M;
+        arraylet_posn = _mask + 1;
       }
       arraylet_posn--;
-      return (E)_stack[_powers_posn][arraylet_posn];
+      _leaf = _stack[_powers_posn];
+      _leaf_posn = arraylet_posn;
+      return (E)_leaf[arraylet_posn];
     }
 
     // Out of line version of _previous for when we need to move to the previous
@@ -755,24 +1867,26 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
       int shift = 0;
       for (int idx = _powers_posn; idx >= 0; idx--) {
         Object[] arraylet = (Object[])(_stack[idx]);
-        int arraylet_posn = (int)((_index >> shift) & MASK);
-        if (arraylet_posn != M - 1) {
+        int arraylet_posn = (int)((_index >> shift) & _mask);
+        if (arraylet_posn != _mask) {
           _populate_stack(shift, idx, arraylet);
           return;
         }
-        shift += SHIFT;
+        shift += _shift;
       }
       // Need to move to previous position in _powers array.
-      _powers_posn = _powerPosn(_index ^ (_index + _remaining));
+      _powers_posn = _powerPosn(_shift, _index ^ (_index + _remaining));
       _populate_stack();
     }
 
+    // The indices are relative to the leftmost limit, which is the offset of
+    // the ImmutableDeque if this is iterating over its backing.
     public int nextIndex() {
-      return (int)(_index);
+      return (int)(_index - _start);
     }
 
     public int previousIndex() {
-      return (int)(_index - 1);
+      return (int)(_index - _start - 1);
     }
 
     public boolean hasPrevious() {
@@ -797,17 +1911,21 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
   }
 
   protected void forEach(long startAt, Consumer<? super E> action) {
+    if (_focus != null) {
+      _flush().forEach(startAt, action);
+      return;
+    }
     if (startAt < 0 || startAt > size) throw new IndexOutOfBoundsException();
-    _forEachHelper(_powers, _tail, startAt, size, action);
+    _forEachHelper(_bits(), _powers, _tail, startAt, size, action);
   }
 
-  private static void _forEachHelper(Object[] powers, Object[] tail, long startAt, long size, Consumer action) {
+  private static void _forEachHelper(int bits, Object[] powers, Object[] tail, long startAt, long size, Consumer action) {
     long index = 0;
-    int start = _powerPosn(size);
+    int start = _powerPosn(bits, size);
     for (int p = start; p >= 0; p--) {
       Object[] power = p == 0 ? tail : (Object[])powers[p - 1];
-      _forEachHelper(power, p, startAt, index, action);
-      index += power.length << (SHIFT * p);
+      _forEachHelper(bits, power, p, startAt, index, action);
+      index += power.length << (bits * p);
     }
   }
 
@@ -822,8 +1940,8 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
   }
 
   @SuppressWarnings("unchecked")
-  private static void _forEachHelper(Object[] array, int depth, long startAt, long index, Consumer action) {
-    long end = index + array.length << (SHIFT * depth);
+  private static void _forEachHelper(int bits, Object[] array, int depth, long startAt, long index, Consumer action) {
+    long end = index + array.length << (bits * depth);
     if (end < startAt) return;
     if (depth == 1 && startAt <= index) {
       // Having this fast case makes peak 25-30% faster.
@@ -831,18 +1949,111 @@ public class ImmutableArray<E> extends ImmutableCollection<E> {
       return;
     }
     if (depth == 0) {
-      int start = startAt <= index ? 0 : (int)(startAt & MASK);
+      int start = startAt <= index ? 0 : (int)(startAt & ((1 << bits) - 1));
       for (int i = start; i < array.length; i++) {
         action.accept(array[i]);
       }
     } else {
       for (int i = 0; i < array.length; i++) {
-        long index_after = index + (1 << (SHIFT * depth));
+        long index_after = index + (1 << (bits * depth));
         if (startAt < index_after) {
-          _forEachHelper((Object[])array[i], depth - 1, startAt, index, action);
+          _forEachHelper(bits, (Object[])array[i], depth - 1, startAt, index, action);
         }
         index = index_after;
       }
     }
   }
+
+  // Calls the action on the elements at positions from (inclusive) to to
+  // (exclusive) of the tree.  Like _forEachHelper, this runs a tight loop
+  // over each leaf, but it also stops at the end of the range.  Subtrees
+  // that are entirely to the left of the range are not visited, so the
+  // nulled out parts of the backing of an ImmutableDeque are never touched.
+  private static void _forEachInRange(int bits, Object[] powers, Object[] tail, long from, long to, Consumer action) {
+    long index = 0;
+    for (int p = powers.length; p >= 1 && index < to; p--) {
+      Object[] power = (Object[])powers[p - 1];
+      long span = (long)power.length << (bits * p);
+      if (index + span > from) _forEachInRange(bits, power, p, from, to, index, action);
+      index += span;
+    }
+    if (index < to) _forEachInRange(bits, tail, 0, from, to, index, action);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void _forEachInRange(int bits, Object[] array, int depth, long from, long to, long index, Consumer action) {
+    if (depth == 0) {
+      int start = (int)Math.max(from - index, 0);
+      int end = (int)Math.min(to - index, array.length);
+      for (int i = start; i < end; i++) {
+        action.accept(array[i]);
+      }
+      return;
+    }
+    long child_span = 1L << (bits * depth);
+    for (int i = 0; i < array.length && index < to; i++) {
+      if (index + child_span > from) {
+        _forEachInRange(bits, (Object[])array[i], depth - 1, from, to, index, action);
+      }
+      index += child_span;
+    }
+  }
+
+  // The families with other branching factors than 16.  Each one only
+  // overrides the methods that need its constant, so that the JIT can fold
+  // it into the shifts and masks.
+
+  private static final class Branching8<E> extends ImmutableArray<E> {
+    Branching8(long size, Object powers[], Object tail[], Object focus[], long focus_start) {
+      super(size, powers, tail, focus, focus_start);
+    }
+
+    int _bits() {
+      return 3;
+    }
+
+    <T> ImmutableArray<T> _make(long size, Object powers[], Object tail[], Object focus[], long focus_start) {
+      return new Branching8<T>(size, powers, tail, focus, focus_start);
+    }
+
+    public E get(long index) {
+      return _get(index, 3);
+    }
+  }
+
+  private static final class Branching32<E> extends ImmutableArray<E> {
+    Branching32(long size, Object powers[], Object tail[], Object focus[], long focus_start) {
+      super(size, powers, tail, focus, focus_start);
+    }
+
+    int _bits() {
+      return 5;
+    }
+
+    <T> ImmutableArray<T> _make(long size, Object powers[], Object tail[], Object focus[], long focus_start) {
+      return new Branching32<T>(size, powers, tail, focus, focus_start);
+    }
+
+    public E get(long index) {
+      return _get(index, 5);
+    }
+  }
+
+  private static final class Branching64<E> extends ImmutableArray<E> {
+    Branching64(long size, Object powers[], Object tail[], Object focus[], long focus_start) {
+      super(size, powers, tail, focus, focus_start);
+    }
+
+    int _bits() {
+      return 6;
+    }
+
+    <T> ImmutableArray<T> _make(long size, Object powers[], Object tail[], Object focus[], long focus_start) {
+      return new Branching64<T>(size, powers, tail, focus, focus_start);
+    }
+
+    public E get(long index) {
+      return _get(index, 6);
+    }
+  }
 }
@@ -0,0 +1,280 @@
+// Copyright (C) 2019 Toitware ApS. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package com.toitware.immutable;
+
+import com.toitware.immutable.ElementCodec;
+import com.toitware.immutable.ImmutableArray;
+import com.toitware.immutable.ImmutableCollection;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/** Writes ImmutableCollections to a channel in a compact binary format, and
+ *  reads them back as ImmutableArrays.  The elements are converted with an
+ *  ElementCodec.  Writing streams the elements straight from the leaves of
+ *  the tree through one buffer, so there is no copy of the collection in
+ *  memory.  Reading fills the leaves of the new tree in place, as
+ *  ImmutableArray.Builder does.<p>
+ *
+ *  Optionally, runs of equal elements are written only once, with a count.
+ *  This helps for collections with long stretches of the same value.<p>
+ *
+ *  The format is a flags byte, the number of elements as a varint, then the
+ *  elements.  With run-length encoding, each element is preceded by the
+ *  length of its run as a varint.<p>
+ *
+ *  An ImmutableArrayCodec reuses its buffer, so it should only be used by one
+ *  thread at a time.
+ *  @see ElementCodec
+ */
+public class ImmutableArrayCodec<E> {
+  private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+  private static final int RUN_LENGTH = 1;
+
+  private final ElementCodec<E> _codec;
+  private final boolean _runLength;
+  private ByteBuffer _buffer;
+  // The buffer that is being read from, and whether it may be replaced by
+  // a larger one.
+  private ByteBuffer _in;
+  private boolean _canGrow;
+
+  /** Create an ImmutableArrayCodec without run-length encoding.
+   *  @param codec The codec for the elements.
+   */
+  public ImmutableArrayCodec(ElementCodec<E> codec) {
+    this(codec, false);
+  }
+
+  /** Create an ImmutableArrayCodec.
+   *  @param codec The codec for the elements.
+   *  @param run_length Whether to write runs of equal elements only once.
+   *      Only affects writing, the reader reads both formats.
+   */
+  public ImmutableArrayCodec(ElementCodec<E> codec, boolean run_length) {
+    this(codec, run_length, DEFAULT_BUFFER_SIZE);
+  }
+
+  /** Create an ImmutableArrayCodec with a given buffer size.  The buffer
+   *  grows if an element does not fit in it.
+   *  @param codec The codec for the elements.
+   *  @param run_length Whether to write runs of equal elements only once.
+   *  @param buffer_size The initial size of the buffer, in bytes.
+   */
+  public ImmutableArrayCodec(ElementCodec<E> codec, boolean run_length, int buffer_size) {
+    _codec = codec;
+    _runLength = run_length;
+    _buffer = ByteBuffer.allocate(buffer_size);
+  }
+
+  /** Write a collection to a channel.  Takes O(size) time, and the only
+   *  memory used is the buffer.
+   *  @param collection The collection to write.
+   *  @param channel The channel to write to.
+   *  @throws IOException If the channel throws.
+   */
+  public void write(ImmutableCollection<? extends E> collection, WritableByteChannel channel) throws IOException {
+    _buffer.clear();
+    _buffer.put((byte)(_runLength ? RUN_LENGTH : 0));
+    _writeVarLong(collection.longSize(), channel);
+    try {
+      if (_runLength) {
+        _writeRuns(collection, channel);
+      } else {
+        collection.forEach((element) -> _write(element, channel));
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    _flush(channel);
+  }
+
+  // Each element is kept back until its run ends.
+  @SuppressWarnings("unchecked")
+  private void _writeRuns(ImmutableCollection<? extends E> collection, WritableByteChannel channel) {
+    Object run[] = new Object[1];
+    long count[] = new long[1];
+    collection.forEach((element) -> {
+      if (count[0] != 0 && (element == null ? run[0] == null : element.equals(run[0]))) {
+        count[0]++;
+        return;
+      }
+      if (count[0] != 0) _writeRun((E)run[0], count[0], channel);
+      run[0] = element;
+      count[0] = 1;
+    });
+    if (count[0] != 0) _writeRun((E)run[0], count[0], channel);
+  }
+
+  private void _writeRun(E element, long count, WritableByteChannel channel) {
+    try {
+      _writeVarLong(count, channel);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    _write(element, channel);
+  }
+
+  // Called from forEach, so the IOException is wrapped.
+  private void _write(E element, WritableByteChannel channel) {
+    while (true) {
+      int position = _buffer.position();
+      try {
+        _codec.write(element, _buffer);
+        return;
+      } catch (BufferOverflowException e) {
+        _buffer.position(position);
+      }
+      try {
+        _makeRoom(channel);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  private void _writeVarLong(long value, WritableByteChannel channel) throws IOException {
+    // A varint is at most 10 bytes.
+    while (_buffer.remaining() < 10) _makeRoom(channel);
+    ElementCodec.writeVarLong(value, _buffer);
+  }
+
+  // Flushes the buffer, or grows it if it was empty.
+  private void _makeRoom(WritableByteChannel channel) throws IOException {
+    if (_buffer.position() == 0) {
+      _buffer = ByteBuffer.allocate(_buffer.capacity() * 2);
+    } else {
+      _flush(channel);
+    }
+  }
+
+  private void _flush(WritableByteChannel channel) throws IOException {
+    _buffer.flip();
+    while (_buffer.hasRemaining()) {
+      if (channel.write(_buffer) == 0) throw new IOException("Channel is not blocking");
+    }
+    _buffer.clear();
+  }
+
+  /** Read a collection that was written with write().  The tree is built
+   *  bottom up, one leaf at a time.  Since the channel is read a buffer at
+   *  a time, anything after the collection may already have been read, and
+   *  is lost.  Use read(channel, buffer) to keep it.
+   *  @param channel The channel to read from.  Must be blocking.
+   *  @return A new ImmutableArray.
+   *  @throws IOException If the channel throws or ends too early, or the
+   *      data is corrupt.
+   */
+  public ImmutableArray<E> read(ReadableByteChannel channel) throws IOException {
+    _buffer.clear();
+    _buffer.flip();
+    _in = _buffer;
+    _canGrow = true;
+    try {
+      return _readCollection(channel);
+    } finally {
+      // Keep the buffer if it grew.
+      _buffer = _in;
+      _in = null;
+    }
+  }
+
+  /** Read a collection that was written with write(), using a buffer that
+   *  belongs to the caller.  The bytes from the position to the limit of the
+   *  buffer are read before anything from the channel.  On return, they are
+   *  the bytes that were read from the channel after the collection, so the
+   *  same buffer can be passed again to read the next collection, or the
+   *  caller can read the rest of the data itself.  Start with an empty
+   *  buffer, eg. one whose limit has been set to 0.  The buffer does not
+   *  grow, so it must be able to hold the largest element.  It must have
+   *  the default big-endian byte order, as the buffer used by write() does.
+   *  @param channel The channel to read from.  Must be blocking.
+   *  @param buffer The buffer, whose remaining bytes are read first.
+   *  @return A new ImmutableArray.
+   *  @throws IOException If the channel throws or ends too early, the data
+   *      is corrupt, or an element does not fit in the buffer.
+   */
+  public ImmutableArray<E> read(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+    _in = buffer;
+    _canGrow = false;
+    try {
+      return _readCollection(channel);
+    } finally {
+      _in = null;
+    }
+  }
+
+  private ImmutableArray<E> _readCollection(ReadableByteChannel channel) throws IOException {
+    try {
+      int flags = _readByte(channel);
+      long size = _readVarLong(channel);
+      boolean run_length = (flags & RUN_LENGTH) != 0;
+      ImmutableArray.Builder<E> builder = new ImmutableArray.Builder<>();
+      long remaining = size;
+      while (remaining != 0) {
+        long count = run_length ? _readVarLong(channel) : 1;
+        if (count <= 0 || count > remaining) throw new IOException("Corrupt run length");
+        E element = _read(channel);
+        for (long i = 0; i < count; i++) builder.push(element);
+        remaining -= count;
+      }
+      return builder.build();
+    } catch (UncheckedIOException e) {
+      // A varint that is too long.
+      throw e.getCause();
+    }
+  }
+
+  private E _read(ReadableByteChannel channel) throws IOException {
+    while (true) {
+      int position = _in.position();
+      try {
+        return _codec.read(_in);
+      } catch (BufferUnderflowException e) {
+        _in.position(position);
+      }
+      _fill(channel);
+    }
+  }
+
+  private int _readByte(ReadableByteChannel channel) throws IOException {
+    if (!_in.hasRemaining()) _fill(channel);
+    return _in.get();
+  }
+
+  private long _readVarLong(ReadableByteChannel channel) throws IOException {
+    while (true) {
+      int position = _in.position();
+      try {
+        return ElementCodec.readVarLong(_in);
+      } catch (BufferUnderflowException e) {
+        _in.position(position);
+      }
+      _fill(channel);
+    }
+  }
+
+  // Keeps the unread bytes and reads more after them, growing the buffer if
+  // it is full of unread bytes.
+  private void _fill(ReadableByteChannel channel) throws IOException {
+    _in.compact();
+    if (!_in.hasRemaining()) {
+      _in.flip();
+      if (!_canGrow) throw new IOException("Element does not fit in the buffer");
+      _in = ByteBuffer.allocate(_in.capacity() * 2).put(_in);
+    }
+    int read = channel.read(_in);
+    _in.flip();
+    if (read < 0) throw new EOFException();
+    // A non-blocking channel with no data ready.  We cannot wait for it
+    // without a selector, and retrying would spin.
+    if (read == 0) throw new IOException("Channel is not blocking");
+  }
+}
@@ -6,11 +6,15 @@ package com.toitware.immutable;
 
 import java.util.AbstractCollection;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.ListIterator;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongFunction;
 import java.util.function.Predicate;
 
 /** An immutable (fully persistent) list with O(log size) access to any
@@ -25,12 +29,16 @@ import java.util.function.Predicate;
  *  don't.)<p>
  *
  *  The instances are GC safe in the sense that they do not keep elements alive
- *  that cannot be reached after atPut(), trim() or subList().  The subList
+ *  that cannot be reached after trim() or subList().  The subList
  *  method is fast, as if it was merely creating a view over the original
  *  collection, but unlike subList() on java.util.ArrayList, the elements
  *  referenced by the original ArrayList are not kept alive.  It is the
  *  intention that subList() be used to iterate over a part of the
- *  ImmutableCollection.<p>
+ *  ImmutableCollection.  The exception is atPut() on an ImmutableArray, which
+ *  puts off copying the path to the changed leaf.  The array it returns, and
+ *  the ones made from that by get(), atPut() in the same leaf and push(),
+ *  keep the replaced element alive.  The first other operation copies the
+ *  path, and the collections made after that do not.<p>
  *
  *  Methods that modify ArrayList do not have similarly named methods in this
  *  class.  This is to remind you that you need to use the return value, which
@@ -43,10 +51,16 @@ import java.util.function.Predicate;
  *  to get ImmutableArray elements, but if you remove elements from the left
  *  hand side then you will get instances of ImmutableDeque, which are slightly
  *  less efficient to create, having an extra level of indirection.
+ *  Concatenating two large collections with concat() gives an instance of
+ *  ImmutableRope, which shares the trees of both.
  *
  *  @see ImmutableArray
  */
 public abstract class ImmutableCollection<E> extends AbstractCollection<E> implements Iterable<E> {
+  // The hash code, computed on first use, or 0 if it has not been computed
+  // yet.  As in java.lang.String, the race on this field is harmless.
+  private int _hash;
+
   /** The number of elements in the ImmutableCollection.
    *  To conform to the AbstractCollection interface this returns an int, 
    *  see also the method longSize().
@@ -68,6 +82,14 @@ public abstract class ImmutableCollection<E> extends AbstractCollection<E> imple
    */
   abstract public Iterator<E> iterator();
 
+  /** Create a spliterator over the entire ImmutableCollection.  Unlike the
+   *  default spliterator of AbstractCollection it splits along the tree, so
+   *  parallel streams scale with the number of threads.
+   *  @return A fresh spliterator that is IMMUTABLE, ORDERED, SIZED and
+   *      SUBSIZED.
+   */
+  abstract public Spliterator<E> spliterator();
+
   /** Create a list iterator over the entire ImmutableCollection.  Since the
    *  ImmutableCollection cannot be mutated, there is no issue of what happens
    *  if the underlying collection is mutated during iteration.
@@ -122,6 +144,198 @@ public abstract class ImmutableCollection<E> extends AbstractCollection<E> imple
    */
   abstract public int lastIndexOf(E needle);
 
+  /** Search for an element in a collection that is sorted according to a
+   *  comparator, like Collections.binarySearch().  The tree is descended
+   *  once, comparing with the last element of each subtree, so this takes
+   *  O(log size) comparisons.
+   *  @param key The element to search for.
+   *  @param comparator The order of the collection, or null for the natural
+   *      order of the elements.
+   *  @return The index of an element that compares equal to the key, or
+   *      -(insertion point) - 1 if there is none.  The insertion point is
+   *      the index of the first element that is greater than the key.
+   */
+  public long binarySearch(E key, Comparator<? super E> comparator) {
+    comparator = _comparator(comparator);
+    long index = _bound(key, comparator, false);
+    if (index < longSize() && comparator.compare(get(index), key) == 0) return index;
+    return -index - 1;
+  }
+
+  /** The index of the first element that is not less than the key, in a
+   *  collection that is sorted according to the comparator.  Together with
+   *  upperBound(), this gives the range of elements that compare equal to
+   *  the key, which can be passed to subList().  Takes O(log size)
+   *  comparisons.
+   *  @param key The element to search for.
+   *  @param comparator The order of the collection, or null for the natural
+   *      order of the elements.
+   *  @return An index from 0 to size, inclusive.
+   */
+  public long lowerBound(E key, Comparator<? super E> comparator) {
+    return _bound(key, _comparator(comparator), false);
+  }
+
+  /** The index of the first element that is greater than the key, in a
+   *  collection that is sorted according to the comparator.  Takes
+   *  O(log size) comparisons.
+   *  @param key The element to search for.
+   *  @param comparator The order of the collection, or null for the natural
+   *      order of the elements.
+   *  @return An index from 0 to size, inclusive.
+   */
+  public long upperBound(E key, Comparator<? super E> comparator) {
+    return _bound(key, _comparator(comparator), true);
+  }
+
+  // The index of the first element that is after the key: greater than it
+  // if upper is set, otherwise greater than or equal.  This version uses
+  // get(), so it descends from the top for every comparison.  Subclasses
+  // override it to descend only once.
+  long _bound(E key, Comparator<? super E> comparator, boolean upper) {
+    long low = 0;
+    long high = longSize();
+    while (low < high) {
+      long mid = (low + high) >>> 1;
+      if (_isAfter(get(mid), key, comparator, upper)) {
+        high = mid;
+      } else {
+        low = mid + 1;
+      }
+    }
+    return low;
+  }
+
+  static <E> boolean _isAfter(E element, E key, Comparator<? super E> comparator, boolean upper) {
+    int comparison = comparator.compare(element, key);
+    return upper ? comparison > 0 : comparison >= 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <E> Comparator<? super E> _comparator(Comparator<? super E> comparator) {
+    return comparator != null ? comparator : (Comparator<? super E>)(Comparator)Comparator.naturalOrder();
+  }
+
+  /** Compares with another ImmutableCollection.  They are equal if they have
+   *  the same elements in the same order, using equals() on the elements, as
+   *  for java.util.List.  Parts of the trees that are shared between the two
+   *  collections are skipped, so comparing two versions of a collection
+   *  that differ in a few places takes time proportional to the number of
+   *  changed nodes, not the size.
+   *  @param other The object to compare with.
+   *  @return Whether the other object is an ImmutableCollection with equal
+   *      elements.
+   */
+  public boolean equals(Object other) {
+    if (other == this) return true;
+    if (!(other instanceof ImmutableCollection)) return false;
+    ImmutableCollection<?> collection = (ImmutableCollection<?>)other;
+    if (collection.longSize() != longSize()) return false;
+    if (_hash != 0 && collection._hash != 0 && _hash != collection._hash) return false;
+    return _sameElements(collection);
+  }
+
+  /** The hash code is the same as java.util.List would give for the same
+   *  elements.  It is computed in O(size) time on first use, and then
+   *  cached.  An ImmutableRope also caches the hash codes of its pieces, so
+   *  after a change only the changed pieces are hashed again.
+   *  @return The hash code.
+   */
+  public int hashCode() {
+    int hash = _hash;
+    if (hash == 0) {
+      hash = _computeHash();
+      _hash = hash;
+    }
+    return hash;
+  }
+
+  int _computeHash() {
+    int hash[] = { 1 };
+    forEach((element) -> hash[0] = 31 * hash[0] + (element == null ? 0 : element.hashCode()));
+    return hash[0];
+  }
+
+  // Compares the elements with those of another collection of the same
+  // size.  Subclasses override this to skip shared subtrees.
+  boolean _sameElements(ImmutableCollection<?> other) {
+    Iterator<E> mine = iterator();
+    Iterator<?> theirs = other.iterator();
+    while (mine.hasNext()) {
+      E element = mine.next();
+      Object other_element = theirs.next();
+      if (element == null ? other_element != null : !element.equals(other_element)) return false;
+    }
+    return true;
+  }
+
+  /** A range of indices, from from (inclusive) to to (exclusive).  Returned
+   *  by diff().
+   */
+  public static final class Range {
+    public final long from;
+    public final long to;
+
+    Range(long from, long to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    public String toString() {
+      return "[" + from + ", " + to + ")";
+    }
+  }
+
+  // Collects ranges that are added in increasing order, merging adjacent
+  // ones.
+  static final class RangeBuilder {
+    private final ImmutableArray.Builder<Range> _ranges = new ImmutableArray.Builder<>();
+    private long _from = -1;
+    private long _to = -1;
+
+    void add(long from, long to) {
+      if (from != _to) {
+        if (_to != -1) _ranges.push(new Range(_from, _to));
+        _from = from;
+      }
+      _to = to;
+    }
+
+    ImmutableArray<Range> build() {
+      if (_to != -1) _ranges.push(new Range(_from, _to));
+      _to = -1;
+      return _ranges.build();
+    }
+  }
+
+  /** Finds the ranges of indices where this collection and another one have
+   *  different elements, using equals() on the elements.  If the sizes
+   *  differ, the indices that are only in the longer collection are also
+   *  reported as changed.  For an ImmutableArray or ImmutableDeque compared
+   *  with another version of itself, subtrees that are shared by the two are
+   *  skipped, so this takes O(changes * log size) time.  Otherwise it takes
+   *  O(size) time.
+   *  @param other The collection to compare with.
+   *  @return The changed ranges in order.  Adjacent ranges are merged.
+   */
+  public ImmutableArray<Range> diff(ImmutableCollection<?> other) {
+    RangeBuilder changes = new RangeBuilder();
+    Iterator<E> mine = iterator();
+    Iterator<?> theirs = other.iterator();
+    long index = 0;
+    while (mine.hasNext() && theirs.hasNext()) {
+      E element = mine.next();
+      Object other_element = theirs.next();
+      if (element == null ? other_element != null : !element.equals(other_element)) {
+        changes.add(index, index + 1);
+      }
+      index++;
+    }
+    long end = Math.max(longSize(), other.longSize());
+    if (index < end) changes.add(index, end);
+    return changes.build();
+  }
+
   /** Since the collection is immutable there is no reason to actually build a
    *  clone.
    *  @return The receiver.
@@ -139,6 +353,42 @@ public abstract class ImmutableCollection<E> extends AbstractCollection<E> imple
    */
   abstract public ImmutableCollection<E> atPut(long index, E value);
 
+  /** Makes a copy of an ImmutableCollection, but at each of the given indices
+   *  the corresponding value is substituted.  If an index occurs more than
+   *  once, the last value for it wins.  Unlike a loop over atPut(), every node
+   *  of the tree is copied at most once, so updates that are close to each
+   *  other share the copying.  Takes O(k log k) time to sort the k indices,
+   *  plus at most O(k log size) time for the copying, and much less if the
+   *  indices are clustered.
+   *  @param indices Offsets of the elements where substitution should happen
+   *  @param values The new elements, in the same order as the indices
+   *  @return A new ImmutableCollection with the substitutions.
+   */
+  public ImmutableCollection<E> atPutAll(long indices[], E values[]) {
+    if (indices.length != values.length) throw new IllegalArgumentException();
+    ImmutableCollection<E> result = this;
+    for (int i = 0; i < indices.length; i++) {
+      result = result.atPut(indices[i], values[i]);
+    }
+    return result;
+  }
+
+  /** Makes a copy of an ImmutableCollection, but the elements from index from
+   *  (inclusive) to to (exclusive) are replaced with the results of calling
+   *  the function on their indices.  Every node of the tree is copied at most
+   *  once, so this takes O(to - from + log size) time.
+   *  @param from The index of the first element to replace
+   *  @param to The index after the last element to replace
+   *  @param function Called with each index to get the new element
+   *  @return A new ImmutableCollection with the substitutions.
+   */
+  public ImmutableCollection<E> updateRange(long from, long to, LongFunction<? extends E> function) {
+    if (from < 0 || from > to || to > longSize()) throw new IndexOutOfBoundsException();
+    ImmutableCollection<E> result = this;
+    for (long i = from; i < to; i++) result = result.atPut(i, function.apply(i));
+    return result;
+  }
+
   /** Create a new ImmutableCollection that differs from the original one only
    *  by having an extra element.  On average, time taken is O(1), almost, but
    *  it has to allocate and initialize an object that has log2(size)/3 machine
@@ -180,6 +430,20 @@ public abstract class ImmutableCollection<E> extends AbstractCollection<E> imple
    */
   abstract public ImmutableCollection<E> pushAll(Collection<? extends E> collection);
 
+  /** Create a new ImmutableCollection that is the concatenation of the
+   *  current ImmutableCollection and another one.  May return itself if the
+   *  provided collection is empty.  If both are large, the result is an
+   *  ImmutableRope that shares the trees of both, so this takes O(log size)
+   *  time and very little memory.  Small collections are copied onto the
+   *  end.
+   *  @param collection The collection whose elements should be appended to
+   *      this ImmutableCollection.
+   *  @return A new ImmutableCollection with the extra elements.
+   */
+  public ImmutableCollection<E> concat(ImmutableCollection<? extends E> collection) {
+    return ImmutableRope._concat(this, collection);
+  }
+
   /** Push a value on the start of the collection.  Takes O(log size) time.
    *  @param value The value to be prepended.
    *  @return A new ImmutableCollection that is one longer.
@@ -189,8 +453,8 @@ public abstract class ImmutableCollection<E> extends AbstractCollection<E> imple
   /** Push a collection of values on the start of the collection.  Does not
    *  reverse the order, ie at the end the unshifted elements have the same
    *  order in the return value as they had in the passed collection.
-   *  TODO: Currently O(n log m) when a collection size n is prepende on one
-   *  size m.
+   *  Takes O(n + log m) time when a collection of size n is prepended on one
+   *  of size m.
    *  @param collection The collection to be prepended.
    *  @return A new ImmutableCollection that has the given collection prepended.
    */
@@ -199,13 +463,53 @@ public abstract class ImmutableCollection<E> extends AbstractCollection<E> imple
   /** Push an array of values on the start of the collection.  Does not
    *  reverse the order, ie at the end the unshifted elements have the same
    *  order in the return value as they had in the passed array.
-   *  TODO: Currently O(n log m) when an array length n is prepended on a
+   *  Takes O(n + log m) time when an array of length n is prepended on a
    *  collection of size m.
    *  @param array The array to be prepended.
    *  @return A new ImmutableCollection that has the given array prepended.
    */
   abstract public ImmutableCollection<E> unshiftAll(E array[]);
 
+  /** Insert a value at the given index, moving the later elements up by one.
+   *  The parts on either side are joined without copying, as with concat(),
+   *  so this takes O(log size) time.
+   *  @param index The index the new value will have, between 0 and the size,
+   *      inclusive.
+   *  @param value The value to be inserted.
+   *  @return A new ImmutableCollection that is one longer.
+   */
+  public ImmutableCollection<E> insertAt(long index, E value) {
+    long size = longSize();
+    if (index < 0 || index > size) throw new IndexOutOfBoundsException();
+    if (index == size) return push(value);
+    if (index == 0) return unshift(value);
+    return ImmutableRope._concat(subList(0, index).push(value), subList(index, size));
+  }
+
+  /** Insert a collection of values at the given index, moving the later
+   *  elements up.  The inserted elements have the same order in the return
+   *  value as they had in the passed collection.  Takes O(k + log size) time
+   *  when k elements are inserted.  If the collection is a large
+   *  ImmutableCollection it is not copied, and the time is O(log size).
+   *  @param index The index the first new value will have, between 0 and the
+   *      size, inclusive.
+   *  @param collection The values to be inserted.
+   *  @return A new ImmutableCollection that has the values inserted.
+   */
+  @SuppressWarnings("unchecked")
+  public ImmutableCollection<E> insertAllAt(long index, Collection<? extends E> collection) {
+    long size = longSize();
+    if (index < 0 || index > size) throw new IndexOutOfBoundsException();
+    if (collection.isEmpty()) return this;
+    ImmutableCollection<E> left = subList(0, index);
+    if (collection instanceof ImmutableCollection) {
+      left = ImmutableRope._concat(left, (ImmutableCollection<E>)collection);
+    } else {
+      left = left.pushAll(collection);
+    }
+    return ImmutableRope._concat(left, subList(index, size));
+  }
+
   /** Create a new ImmutableCollection without the last element of this.
    *  Time taken is on average O(1).  GC safe in the sense that the discarded
    *  last element is not kept alive by the new ImmutableCollection.
@@ -247,21 +551,131 @@ public abstract class ImmutableCollection<E> extends AbstractCollection<E> imple
    */
   abstract public ImmutableCollection<E> subList(long from, long to);
 
+  /** A function that is passed an element and its index.  Used by
+   *  mapIndexed().
+   */
+  public interface IndexedFunction<E, R> {
+    R apply(long index, E element);
+  }
+
+  /** Create a new ImmutableCollection with the results of applying a
+   *  function to each element, in order.  The result has the same tree shape
+   *  as this collection, and is written directly without pushing, so
+   *  the only memory allocated is the new tree.  Takes O(size) time.
+   *  @param function Called once for each element, in order.
+   *  @return A new ImmutableCollection of the same size.
+   */
+  public <R> ImmutableCollection<R> map(Function<? super E, ? extends R> function) {
+    return mapIndexed((index, element) -> function.apply(element));
+  }
+
+  /** Create a new ImmutableCollection with the results of applying a
+   *  function to each element and its index, in order.  Like map(), the
+   *  result has the same tree shape as this collection.  Takes O(size) time.
+   *  @param function Called once for each element, in order.
+   *  @return A new ImmutableCollection of the same size.
+   */
+  abstract public <R> ImmutableCollection<R> mapIndexed(IndexedFunction<? super E, ? extends R> function);
+
+  /** Receives the elements of a collection a chunk at a time.  A chunk is
+   *  a range of one of the arrays in the tree of the collection, usually a
+   *  whole leaf.  The array is shared with the collection and must not be
+   *  modified.  Used by forEachChunk().
+   */
+  public interface ChunkConsumer {
+    void accept(Object chunk[], int offset, int length);
+  }
+
+  /** Steps through the elements of a collection a chunk at a time, like
+   *  forEachChunk() but under the control of the caller.  Initially there is
+   *  no current chunk; call advance() to get the first one.
+   */
+  public interface ChunkIterator {
+    /** Move to the next chunk.
+     *  @return False if there are no more chunks.
+     */
+    boolean advance();
+
+    /** The array that holds the current chunk.  It must not be modified.
+     *  @return The array.
+     */
+    Object[] chunk();
+
+    /** The position of the first element of the current chunk in chunk().
+     *  @return The offset.
+     */
+    int offset();
+
+    /** The number of elements in the current chunk, at least one.
+     *  @return The length.
+     */
+    int length();
+  }
+
+  /** Calls the action once for each leaf of the tree, in order, with the
+   *  range of the leaf that holds elements of this collection.  This lets
+   *  the caller run its own tight loop over each leaf, or copy the
+   *  elements in bulk.  Takes O(size / M) time plus the time for the
+   *  action.
+   *  @param action Called with each chunk of elements.
+   */
+  abstract public void forEachChunk(ChunkConsumer action);
+
+  /** Create a ChunkIterator over the whole collection.
+   *  @return A fresh ChunkIterator.
+   */
+  abstract public ChunkIterator chunkIterator();
+
   public RebuildIterator<E> rebuildIterator() {
     return new RebuildIterator<E>(this);
   }
 
+  /** Create a lazy view of this collection.  Transformations on the view
+   *  are only recorded, and are run together in one pass over the leaves
+   *  when the view is turned into a collection, so a chain like
+   *  filter, map, take makes no intermediate collections.  Takes O(1) time.
+   *  @return A view with the elements of this collection.
+   */
+  public ImmutableView<E> view() {
+    return new ImmutableView<E>(this);
+  }
+
   /** Remove a numbered element from the collection.  A replacement for
    *  remove(int), this method returns a new collection without the requested
-   *  element.  Takes O(size) time.
+   *  element.  Takes O(log size) time.
    *  @param index The index of the element to be removed.
    *  @return A new immutable collection without the element.
    */
   public ImmutableCollection<E> removeAt(int index) {
-    if (index < 0 || index > longSize()) throw new IndexOutOfBoundsException();
-    if (index == longSize() - 1) return trim();
-    if (index == 0) return shift();
-    return subList(0, index).pushAll(subList(index + 1, size()));
+    return removeAt((long)index);
+  }
+
+  /** Remove a numbered element from the collection.  A replacement for
+   *  remove(int), this method returns a new collection without the requested
+   *  element.  Takes O(log size) time.
+   *  @param index The index of the element to be removed.
+   *  @return A new immutable collection without the element.
+   */
+  public ImmutableCollection<E> removeAt(long index) {
+    if (index < 0 || index >= longSize()) throw new IndexOutOfBoundsException();
+    return removeRange(index, index + 1);
+  }
+
+  /** Remove the elements from index from (inclusive) to to (exclusive).  The
+   *  parts on either side are joined without copying, as with concat(), so
+   *  this takes O(log size) time.  If one of the parts is small it is copied
+   *  onto the other.
+   *  @param from The index of the first element to be removed.
+   *  @param to The index after the last element to be removed.
+   *  @return A new immutable collection without the elements.
+   */
+  public ImmutableCollection<E> removeRange(long from, long to) {
+    long size = longSize();
+    if (from < 0 || from > to || to > size) throw new IndexOutOfBoundsException();
+    if (from == to) return this;
+    if (to == size) return trim(size - from);
+    if (from == 0) return subList(to);
+    return ImmutableRope._concat(subList(0, from), subList(to, size));
   }
 
   /** Remove a given element from the collection.  A replacement for
@@ -332,7 +746,7 @@ public abstract class ImmutableCollection<E> extends AbstractCollection<E> imple
   @SuppressWarnings("unchecked")
   public ImmutableCollection<E> selectAll(Collection<?> collection) {
     if (longSize() == 0) return this;
-    if (collection.size() == 0) return new ImmutableArray<E>();
+    if (collection.size() == 0) return _empty();
 
     RebuildIterator<E> it = rebuildIterator();
     it.forEachRemaining((x)-> {
@@ -344,6 +758,55 @@ public abstract class ImmutableCollection<E> extends AbstractCollection<E> imple
     return it.build();
   }
 
+  /** Like filterIf, but the predicate is called from several threads.
+   *  The collection is split at the boundaries of its subtrees, as for
+   *  parallelStream(), and the parts are filtered in the common ForkJoinPool
+   *  into Builders of their own.  The surviving parts are joined with
+   *  concat, so large parts are linked rather than copied, and the result
+   *  is usually an ImmutableRope.  This pays off for large collections.
+   *  With a cheap predicate, much of the time goes to building the result.
+   *  @param predicate Should return true for elements that should be removed.
+   *      Must be safe to call from several threads at once.
+   *  @return A new immutable collection without the elements.
+   */
+  public ImmutableCollection<E> parallelFilterIf(Predicate<? super E> predicate) {
+    if (longSize() == 0) return this;
+    ImmutableCollection<E> result = parallelStream().filter((x) -> !predicate.test(x)).collect(ImmutableArray._collector(_empty()));
+    if (result.longSize() == longSize()) return this;
+    return result;
+  }
+
+  /** Like filterAll, but the collection is tested from several threads.
+   *  @param collection The elements to be removed.  Must be safe to call
+   *      contains() on from several threads at once, as for a HashSet that is
+   *      not being modified.
+   *  @return A new immutable collection without the elements.
+   *  @see #parallelFilterIf
+   */
+  public ImmutableCollection<E> parallelFilterAll(Collection<?> collection) {
+    if (longSize() == 0 || collection.size() == 0) return this;
+    return parallelFilterIf((x) -> collection.contains(x));
+  }
+
+  /** Like selectAll, but the collection is tested from several threads.
+   *  @param collection The elements to be retained.  Must be safe to call
+   *      contains() on from several threads at once, as for a HashSet that is
+   *      not being modified.
+   *  @return A new immutable collection.
+   *  @see #parallelFilterIf
+   */
+  public ImmutableCollection<E> parallelSelectAll(Collection<?> collection) {
+    if (longSize() == 0) return this;
+    if (collection.size() == 0) return _empty();
+    return parallelFilterIf((x) -> !collection.contains(x));
+  }
+
+  // An empty ImmutableArray in the family that new collections made from
+  // this one are built in, so that they keep its branching factor.
+  <T> ImmutableArray<T> _empty() {
+    return new ImmutableArray<T>();
+  }
+
   protected static int _longTruncator(long input) {
     if (input > Integer.MAX_VALUE) return Integer.MAX_VALUE;
     return (int)input;
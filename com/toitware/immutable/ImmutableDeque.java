@@ -6,103 +6,209 @@ package com.toitware.immutable;
 
 import com.toitware.immutable.ImmutableCollection;
 import java.util.AbstractCollection;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongFunction;
 import java.util.Iterator;
-import java.util.List;
 import java.util.ListIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
 
 public class ImmutableDeque<E> extends ImmutableCollection<E> {
+  // The first elements, at most M of them, are in the head.  Like the tail
+  // of an ImmutableArray, it is copied on every change at the left end, and
+  // only moved to or from the backing one leaf at a time, so shift and
+  // unshift are amortized O(1).  The rest of the elements are in the
+  // backing, starting at _offset.
+  private Object _head[];
   private long _offset;
   private ImmutableArray<E> _backing;
 
   protected ImmutableDeque(long offset, ImmutableArray<E> backing) {
+    this(ImmutableArray._zero, offset, backing);
+  }
+
+  private ImmutableDeque(Object head[], long offset, ImmutableArray<E> backing) {
     if (offset < 0 || (offset != 0 && offset >= backing.size)) throw new IndexOutOfBoundsException();
     long old_backing_size = backing.size;
+    _head = head;
     _backing = offset == 0 ? backing : backing.trimLeft(offset);
     _offset = offset + _backing.size - old_backing_size;
   }
 
   private ImmutableDeque(long offset, ImmutableArray<E> backing, boolean notrim) {
+    this(ImmutableArray._zero, offset, backing, notrim);
+  }
+
+  private ImmutableDeque(Object head[], long offset, ImmutableArray<E> backing, boolean notrim) {
+    _head = head;
     _backing = backing;
     _offset = offset;
   }
 
+  // The same elements, with the head written into the backing.  Operations
+  // other than the ones at the ends start with this, so they only have to
+  // know about the backing.
+  private ImmutableDeque<E> _flush() {
+    if (_head.length == 0) return this;
+    return new ImmutableDeque<E>(_offset, _backing, true)._unshiftIntoBacking(_head);
+  }
+
   public int size() {
-    long s = _backing.size - _offset;
+    long s = longSize();
     if (s > Integer.MAX_VALUE) return Integer.MAX_VALUE;
     return (int)s;
   }
 
   public long longSize() {
-    return _backing.size - _offset;
+    return _head.length + _backing.size - _offset;
   }
 
   public E get(int index) {
-    return _backing.get(index + _offset);
+    return get((long)index);
   }
 
+  @SuppressWarnings("unchecked")
   public E get(long index) {
-    return _backing.get(index + _offset);
+    if (index < _head.length) {
+      if (index < 0) throw new IndexOutOfBoundsException();
+      return (E)_head[(int)index];
+    }
+    return _backing.get(index - _head.length + _offset);
+  }
+
+  /** Create a cursor for fast random access to nearby elements.
+   *  @return A new cursor.
+   *  @see ImmutableArray.Cursor
+   */
+  public ImmutableArray.Cursor<E> cursor() {
+    if (_head.length != 0) return _flush().cursor();
+    return _backing._cursor(_offset);
   }
 
   public ImmutableDeque<E> atPut(long index, E value) {
     if (index < 0) throw new IndexOutOfBoundsException();
-    return new ImmutableDeque<E>(_offset, _backing.atPut(index + _offset, value), true);
+    if (index < _head.length) {
+      return new ImmutableDeque<E>(ImmutableArray._copyBut(_head, (int)index, value), _offset, _backing, true);
+    }
+    return new ImmutableDeque<E>(_head, _offset, _backing.atPut(index - _head.length + _offset, value), true);
+  }
+
+  public ImmutableDeque<E> atPutAll(long indices[], E values[]) {
+    if (_head.length != 0) return _flush().atPutAll(indices, values);
+    return new ImmutableDeque<E>(_offset, _backing._putAll(indices, values, _offset), true);
+  }
+
+  public ImmutableDeque<E> updateRange(long from, long to, LongFunction<? extends E> function) {
+    if (_head.length != 0) return _flush().updateRange(from, to, function);
+    return new ImmutableDeque<E>(_offset, _backing._updateRange(from, to, function, _offset), true);
+  }
+
+  public <R> ImmutableDeque<R> map(Function<? super E, ? extends R> function) {
+    if (_head.length != 0) return _flush().map(function);
+    return new ImmutableDeque<R>(_offset, _backing._map(_offset, (index, element) -> function.apply(element)), true);
+  }
+
+  public <R> ImmutableDeque<R> mapIndexed(IndexedFunction<? super E, ? extends R> function) {
+    if (_head.length != 0) return _flush().mapIndexed(function);
+    return new ImmutableDeque<R>(_offset, _backing._map(_offset, function), true);
+  }
+
+  boolean _sameElements(ImmutableCollection<?> other) {
+    if (_head.length != 0) return _flush()._sameElements(other);
+    if (other instanceof ImmutableDeque) other = ((ImmutableDeque<?>)other)._flush();
+    // With the same offset and family the backing trees have the same shape.
+    if (other instanceof ImmutableDeque && ((ImmutableDeque<?>)other)._offset == _offset &&
+        _backing._sameFamily(((ImmutableDeque<?>)other)._backing)) {
+      return _backing._sameElements(((ImmutableDeque<?>)other)._backing, _offset);
+    }
+    if (_backing._sameFamily(other) && _offset == 0) {
+      return _backing._sameElements((ImmutableArray<?>)other, 0);
+    }
+    return super._sameElements(other);
+  }
+
+  public ImmutableArray<Range> diff(ImmutableCollection<?> other) {
+    if (_head.length != 0) return _flush().diff(other);
+    if (other instanceof ImmutableDeque) other = ((ImmutableDeque<?>)other)._flush();
+    // With the same offset and family the backing trees line up.
+    if (other instanceof ImmutableDeque && ((ImmutableDeque<?>)other)._offset == _offset &&
+        _backing._sameFamily(((ImmutableDeque<?>)other)._backing)) {
+      return _backing._diff(((ImmutableDeque<?>)other)._backing, _offset);
+    }
+    if (_backing._sameFamily(other) && _offset == 0) {
+      return _backing._diff((ImmutableArray<?>)other, 0);
+    }
+    return super.diff(other);
   }
 
   public ImmutableDeque<E> push(E value) {
-    return new ImmutableDeque<E>(_offset, _backing.push(value), true);
+    return new ImmutableDeque<E>(_head, _offset, _backing.push(value), true);
   }
 
   public ImmutableDeque<E> push(E value1, E value2) {
-    return new ImmutableDeque<E>(_offset, _backing.push(value1, value2), true);
+    return new ImmutableDeque<E>(_head, _offset, _backing.push(value1, value2), true);
   }
 
   public ImmutableDeque<E> pushAll(E array[]) {
-    return new ImmutableDeque<E>(_offset, _backing.pushAll(array), true);
+    return new ImmutableDeque<E>(_head, _offset, _backing.pushAll(array), true);
   }
 
   public ImmutableDeque<E> pushAll(Collection<? extends E> collection) {
-    return new ImmutableDeque<E>(_offset, _backing.pushAll(collection), true);
+    return new ImmutableDeque<E>(_head, _offset, _backing.pushAll(collection), true);
   }
 
   public ImmutableDeque<E> unshift(E value) {
-    if (_offset != 0) {
-      // There is space in the trimmed left hand side of the backing, so we
-      // can just write it there.
-      return new ImmutableDeque<E>(_offset - 1, _backing.atPut(_offset - 1, value), true);
+    if (_head.length == _backing.branchingFactor()) {
+      // The head is full, so it is moved into the backing as one leaf's
+      // worth of elements, and a new head is started.
+      ImmutableDeque<E> flushed = _flush();
+      return new ImmutableDeque<E>(new Object[] { value }, flushed._offset, flushed._backing, true);
     }
-
-    ImmutableArray<E> new_backing = _backing._newWithSpaceOnLeft();
-    long extra_space = new_backing.size - _backing.size;
-    return new ImmutableDeque<E>(extra_space - 1, new_backing.atPut(extra_space - 1, value), true);
+    Object head[] = new Object[_head.length + 1];
+    head[0] = value;
+    System.arraycopy(_head, 0, head, 1, _head.length);
+    return new ImmutableDeque<E>(head, _offset, _backing, true);
   }
 
   public ImmutableDeque<E> unshiftAll(E array[]) {
     return unshiftAll(Arrays.asList(array));
   }
 
-  @SuppressWarnings("unchecked")
   public ImmutableDeque<E> unshiftAll(Collection<? extends E>collection) {
     if (collection.isEmpty()) return this;
-    List<? extends E> list = new ArrayList<>(collection);
-    ListIterator<? extends E> lit = list.listIterator(list.size());
-    ImmutableDeque<E> current = this;
-    while (lit.hasPrevious()) {
-      current = current.unshift((E)lit.previous());
+    if (_head.length != 0) return _flush().unshiftAll(collection);
+    return _unshiftIntoBacking(collection.toArray());
+  }
+
+  private ImmutableDeque<E> _unshiftIntoBacking(Object values[]) {
+    // First make enough space on the left.  Each step adds one position
+    // while the backing is smaller than M, and after that one block of
+    // M**levels positions, so there are at most M - 1 steps per level and
+    // this takes O(M log size) steps.
+    ImmutableArray<E> backing = _backing;
+    long offset = _offset;
+    while (offset < values.length) {
+      ImmutableArray<E> new_backing = backing._newWithSpaceOnLeft();
+      offset += new_backing.size - backing.size;
+      backing = new_backing;
     }
-    return current;
+    // Then fill in the space in one pass over the tree.
+    long from = offset - values.length;
+    return new ImmutableDeque<E>(from, backing._putRange(from, offset, values, 0), true);
   }
 
   public int indexOf(E object) {
+    if (_head.length != 0) return _flush().indexOf(object);
     long result = _backing.indexOf(object, _offset);
     return result == -1 ? -1 : ImmutableCollection._longTruncator(result - _offset);
   }
 
   public int lastIndexOf(E object) {
+    if (_head.length != 0) return _flush().lastIndexOf(object);
     long result = _backing.lastIndexOf(object, _offset);
     return result == -1 ? -1 : ImmutableCollection._longTruncator(result - _offset);
   }
@@ -116,41 +222,126 @@ public class ImmutableDeque<E> extends ImmutableCollection<E> {
   }
 
   public ImmutableDeque<E> trim(long by) {
-    if (by > longSize()) throw new IndexOutOfBoundsException();
-    if (by == longSize()) return new ImmutableDeque<E>(0, new ImmutableArray<E>());
-    return new ImmutableDeque<E>(_offset, _backing.trim(by), true);
+    long size = longSize();
+    if (by > size) throw new IndexOutOfBoundsException();
+    if (by == size) return new ImmutableDeque<E>(0, _backing._empty());
+    if (by < _backing.size - _offset) return new ImmutableDeque<E>(_head, _offset, _backing.trim(by), true);
+    // Only part of the head is left.
+    return new ImmutableDeque<E>(Arrays.copyOf(_head, (int)(size - by)), 0, _backing._empty(), true);
   }
 
   public ListIterator<E> listIterator() {
+    if (_head.length != 0) return new ImmutableDequeListIterator(0);
     return _backing.listIterator(_offset, _offset);
   }
 
   public ListIterator<E> listIterator(int index) {
-    if (index < 0) throw new IndexOutOfBoundsException();
-    return _backing.listIterator(index + _offset, _offset);
+    return listIterator((long)index);
   }
 
   public ListIterator<E> listIterator(long index) {
     if (index < 0) throw new IndexOutOfBoundsException();
+    if (_head.length != 0) {
+      if (index > longSize()) throw new IndexOutOfBoundsException();
+      return new ImmutableDequeListIterator(index);
+    }
     return _backing.listIterator(index + _offset, _offset);
   }
 
   public Iterator<E> iterator() {
+    if (_head.length != 0) return new ImmutableDequeListIterator(0);
     return _backing.iterator(_offset);
   }
 
+  @SuppressWarnings("unchecked")
   public void forEach(Consumer<? super E> action) {
+    for (Object element : _head) action.accept((E)element);
     _backing.forEach(_offset, action);
   }
 
+  public Spliterator<E> spliterator() {
+    if (_head.length != 0) return new ImmutableDequeSpliterator();
+    return _backing.spliterator(_offset);
+  }
+
+  long _bound(E key, Comparator<? super E> comparator, boolean upper) {
+    if (_head.length != 0) return _flush()._bound(key, comparator, upper);
+    return _backing._bound(key, comparator, upper, _offset) - _offset;
+  }
+
+  public void forEachChunk(ChunkConsumer action) {
+    if (_head.length != 0) action.accept(_head, 0, _head.length);
+    _backing._forEachChunk(_offset, _backing.longSize(), action);
+  }
+
+  public ChunkIterator chunkIterator() {
+    if (_head.length != 0) return new ImmutableDequeChunkIterator();
+    return _backing._chunkIterator(_offset, _backing.longSize());
+  }
+
+  <T> ImmutableArray<T> _empty() {
+    return _backing._empty();
+  }
+
   public ImmutableDeque<E> shift() {
-    return subList(1);
+    if (_head.length != 0) {
+      return new ImmutableDeque<E>(Arrays.copyOfRange(_head, 1, _head.length), _offset, _backing, true);
+    }
+    long size = _backing.size;
+    if (_offset >= size) throw new IndexOutOfBoundsException();
+    // The rest of the first leaf becomes the new head, and the leaf is
+    // trimmed off the backing.
+    long m = _backing.branchingFactor();
+    long end = Math.min((_offset | (m - 1)) + 1, size);
+    int start = (int)(_offset & (m - 1));
+    Object head[] = Arrays.copyOfRange(_backing._leafAt(_offset), start + 1, start + (int)(end - _offset));
+    if (end == size) return new ImmutableDeque<E>(head, 0, _backing._empty(), true);
+    ImmutableDeque<E> result = new ImmutableDeque<E>(head, end, _backing);
+    // The backing only loses its left part a whole top level digit at a
+    // time, so a sliding window can be left with a deep tree that is mostly
+    // nulled out.  Once the dead part is larger than the live part, we
+    // rebuild the backing from its live leaves.  That takes O(size / M)
+    // time, but is only needed again after another size shifts.  Fewer than
+    // M * M unused positions are not worth compacting.
+    if (result._offset >= m * m && result._offset > size - end) return result._compact();
+    return result;
+  }
+
+  // A copy where the backing starts at position 0, and has the depth that
+  // fits the number of elements.  The complete leaves are shared with the
+  // old backing if _offset is leaf aligned, as it is after shift.
+  @SuppressWarnings("unchecked")
+  private ImmutableDeque<E> _compact() {
+    ImmutableArray.Builder<E> builder = new ImmutableArray.Builder<E>(_backing._empty());
+    int m = _backing.branchingFactor();
+    _backing._forEachChunk(_offset, _backing.size, (chunk, offset, length) -> {
+      if (length == m && (builder.longSize() & (m - 1)) == 0) {
+        builder._pushSharedNode(chunk, 0);
+      } else {
+        for (int i = 0; i < length; i++) builder.push((E)chunk[offset + i]);
+      }
+    });
+    return new ImmutableDeque<E>(_head, 0, builder.build(), true);
+  }
+
+  /** The number of positions at the start of the backing tree that no
+   *  longer hold elements.  They make the tree deeper than the size needs,
+   *  and the nulled out arrays along their edge take memory.  shift() keeps
+   *  this below the size, except in small deques, but subList() can leave
+   *  it larger until the next shift.
+   *  @return The number of unused positions.
+   */
+  public long wastedSlots() {
+    return _offset;
   }
 
   public ImmutableDeque<E> subList(long from) {
-    if (from < 0 || _offset + from > _backing.size) throw new IndexOutOfBoundsException();
-    if (_offset + from == _backing.size) return new ImmutableDeque<E>(0, new ImmutableArray<E>());
-    return new ImmutableDeque<E>(_offset + from, _backing);
+    if (from < 0 || from > longSize()) throw new IndexOutOfBoundsException();
+    if (from == longSize()) return new ImmutableDeque<E>(0, _backing._empty());
+    if (from < _head.length) {
+      return new ImmutableDeque<E>(Arrays.copyOfRange(_head, (int)from, _head.length), _offset, _backing, true);
+    }
+    return new ImmutableDeque<E>(_offset + from - _head.length, _backing);
   }
 
   public ImmutableDeque<E> subList(int from, int to) {
@@ -159,6 +350,134 @@ public class ImmutableDeque<E> extends ImmutableCollection<E> {
 
   public ImmutableDeque<E> subList(long from, long to) {
     if (to == longSize()) return subList(from);
+    if (_head.length != 0) return _flush().subList(from, to);
+    if (from == to) return new ImmutableDeque<E>(0, _backing._empty());
     return new ImmutableDeque<E>(_offset + from, _backing.trim(longSize() - to));
   }
+
+  // The iterators below are only used when there is a head.  They step
+  // through the head, and then hand over to the iterator of the backing, so
+  // iterating does not have to write the head into the backing first.
+
+  // The backing iterator is created when the index first goes past the
+  // head.  While the index is in the head, it stays at the start of the
+  // backing.
+  private class ImmutableDequeListIterator implements ListIterator<E> {
+    private long _index;
+    private ListIterator<E> _iterator;
+
+    ImmutableDequeListIterator(long index) {
+      _index = index;
+    }
+
+    public boolean hasNext() {
+      return _index < longSize();
+    }
+
+    @SuppressWarnings("unchecked")
+    public E next() {
+      assert hasNext();
+      if (_index < _head.length) return (E)_head[(int)_index++];
+      if (_iterator == null) _iterator = _backing.listIterator(_index - _head.length + _offset, _offset);
+      _index++;
+      return _iterator.next();
+    }
+
+    public boolean hasPrevious() {
+      return _index > 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E previous() {
+      assert hasPrevious();
+      if (_index <= _head.length) return (E)_head[(int)--_index];
+      if (_iterator == null) _iterator = _backing.listIterator(_index - _head.length + _offset, _offset);
+      _index--;
+      return _iterator.previous();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEachRemaining(Consumer<? super E> action) {
+      while (_index < _head.length) action.accept((E)_head[(int)_index++]);
+      long from = _index - _head.length + _offset;
+      _index = longSize();
+      _iterator = null;
+      _backing.forEach(from, action);
+    }
+
+    public int nextIndex() {
+      return (int)_index;
+    }
+
+    public int previousIndex() {
+      return (int)(_index - 1);
+    }
+
+    public void add(E element) {
+      throw new UnsupportedOperationException();
+    }
+
+    public void set(E element) {
+      throw new UnsupportedOperationException();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  // The first split gives the rest of the head, after that the spliterator
+  // of the backing does the splitting.
+  private class ImmutableDequeSpliterator implements Spliterator<E> {
+    private int _index;
+    private final Spliterator<E> _rest = _backing.spliterator(_offset);
+
+    @SuppressWarnings("unchecked")
+    public boolean tryAdvance(Consumer<? super E> action) {
+      if (_index == _head.length) return _rest.tryAdvance(action);
+      action.accept((E)_head[_index++]);
+      return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEachRemaining(Consumer<? super E> action) {
+      while (_index < _head.length) action.accept((E)_head[_index++]);
+      _rest.forEachRemaining(action);
+    }
+
+    public Spliterator<E> trySplit() {
+      if (_index == _head.length) return _rest.trySplit();
+      Spliterator<E> prefix = Spliterators.spliterator(_head, _index, _head.length, IMMUTABLE | ORDERED);
+      _index = _head.length;
+      return prefix;
+    }
+
+    public long estimateSize() {
+      return _head.length - _index + _rest.estimateSize();
+    }
+
+    public int characteristics() {
+      return IMMUTABLE | ORDERED | SIZED | SUBSIZED;
+    }
+  }
+
+  // The head is the first chunk.
+  private class ImmutableDequeChunkIterator implements ChunkIterator {
+    // Null while the current chunk is the head.
+    private ChunkIterator _rest;
+    private boolean _started;
+
+    public boolean advance() {
+      if (!_started) {
+        _started = true;
+        return true;
+      }
+      if (_rest == null) _rest = _backing._chunkIterator(_offset, _backing.longSize());
+      return _rest.advance();
+    }
+
+    public Object[] chunk() { return _rest == null ? _head : _rest.chunk(); }
+    public int offset() { return _rest == null ? 0 : _rest.offset(); }
+    public int length() { return _rest == null ? _head.length : _rest.length(); }
+  }
 }
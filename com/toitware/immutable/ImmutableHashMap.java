@@ -10,11 +10,13 @@ import java.util.Collection;
 import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collector;
 
 // An efficient immutable HashMap implemented using an ImmutableArray and an
 // AtomicIntegerArray as backing.  The AtomicIntegerArray is a mutable
@@ -346,6 +348,37 @@ public class ImmutableHashMap<K, V> {
     return new_map;
   }
 
+  /**
+   * A Collector for Stream.collect() that gives an ImmutableHashMap with a
+   * key and a value for each element of the stream.  If two elements have
+   * the same key, the later value wins, as with put().  Each part of a
+   * parallel stream is collected into its own map, which has an index that
+   * no other thread uses, and the parts are joined in stream order.
+   * @param key_function Gives the key for an element.
+   * @param value_function Gives the value for an element.
+   * @return A new Collector.
+   */
+  public static <T, K, V> Collector<T, ?, ImmutableHashMap<K, V>> collector(
+      Function<? super T, ? extends K> key_function,
+      Function<? super T, ? extends V> value_function) {
+    return Collector.of(
+        Collecting<K, V>::new,
+        (collecting, element) -> collecting._map = collecting._map.put(key_function.apply(element), value_function.apply(element)),
+        Collecting<K, V>::join,
+        (collecting) -> collecting._map);
+  }
+
+  // The state of a collector().
+  private static final class Collecting<K, V> {
+    ImmutableHashMap<K, V> _map = new ImmutableHashMap<K, V>();
+
+    Collecting<K, V> join(Collecting<K, V> other) {
+      if (_map.isEmpty()) return other;
+      for (Map.Entry<K, V> entry : other._map.entries()) _map = _map.put(entry.getKey(), entry.getValue());
+      return this;
+    }
+  }
+
   /**
    * A collection that can be iterated over both ways.  Unlike a List there
    * is no random access to arbitrary points in the collection.
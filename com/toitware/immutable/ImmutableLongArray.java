@@ -0,0 +1,226 @@
+// Copyright (C) 2019 Toitware ApS. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package com.toitware.immutable;
+
+import com.toitware.immutable.ImmutableArray;
+import com.toitware.immutable.ImmutablePrimitiveArray;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+
+/** An immutable (fully persistent) array of longs.  It has the same time
+ *  complexity as ImmutableArray, but stores the elements unboxed.
+ *  @see ImmutablePrimitiveArray
+ */
+public class ImmutableLongArray extends ImmutablePrimitiveArray {
+  private static final long _empty[] = new long[0];
+
+  /** Create an empty ImmutableLongArray. */
+  public ImmutableLongArray() {
+    super(0, 0, ImmutableArray._zero, _empty);
+  }
+
+  /** Make an ImmutableLongArray that is a copy of an array.
+   *  @param array The array to be copied
+   */
+  public ImmutableLongArray(long array[]) {
+    this(new ImmutableLongArray().pushAll(array));
+  }
+
+  private ImmutableLongArray(ImmutablePrimitiveArray other) {
+    super(other.size, other._offset, other._powers, other._tail);
+  }
+
+  private ImmutableLongArray(long size, long offset, Object powers[], Object tail) {
+    super(size, offset, powers, tail);
+  }
+
+  int _leafLength(Object leaf) {
+    return ((long[])leaf).length;
+  }
+
+  Object _copyLeaf(Object leaf, int new_length) {
+    return Arrays.copyOf((long[])leaf, new_length);
+  }
+
+  Object _emptyLeaf() {
+    return _empty;
+  }
+
+  ImmutablePrimitiveArray _make(long size, long offset, Object powers[], Object tail) {
+    return new ImmutableLongArray(size, offset, powers, tail);
+  }
+
+  /** Get an arbitrary element.  Takes an average time of
+   *  O(log(size - index)).
+   *  @param index The index of the required element.
+   *  @return The element.
+   */
+  public long getLong(long index) {
+    _checkIndex(index);
+    index += _offset;
+    return ((long[])_leafAt(index))[(int)(index & MASK)];
+  }
+
+  /** Makes a copy, but at the given index the given value is substituted.
+   *  Takes on average O(log size) time unless the element is near the end,
+   *  in which case it is O(1).
+   *  @param index Offset of the element where substitution should happen
+   *  @param value The new element to be placed at offset index
+   *  @return A new ImmutableLongArray differing at one position from this one.
+   */
+  public ImmutableLongArray atPut(long index, long value) {
+    _checkIndex(index);
+    index += _offset;
+    long leaf[] = ((long[])_leafAt(index)).clone();
+    leaf[(int)(index & MASK)] = value;
+    return (ImmutableLongArray)_withLeaf(index, leaf);
+  }
+
+  /** Create a new ImmutableLongArray with an extra element at the end.
+   *  Takes amortized O(1) time.
+   *  @param value The new element.
+   *  @return A new ImmutableLongArray, one element larger.
+   */
+  public ImmutableLongArray push(long value) {
+    long tail[] = (long[])_tail;
+    long new_tail[] = Arrays.copyOf(tail, tail.length + 1);
+    new_tail[tail.length] = value;
+    return (ImmutableLongArray)_withTail(new_tail, 1);
+  }
+
+  /** Create a new ImmutableLongArray with all elements of an array pushed on
+   *  the end.  Takes O(array.length) time.
+   *  @param array The elements to append.
+   *  @return A new ImmutableLongArray with the extra elements.
+   */
+  public ImmutableLongArray pushAll(long array[]) {
+    return (ImmutableLongArray)_pushAll(array, array.length);
+  }
+
+  /** Create a new ImmutableLongArray without the last element.
+   *  @return A new ImmutableLongArray, one element smaller.
+   */
+  public ImmutableLongArray trim() {
+    return trim(1);
+  }
+
+  /** Create a new ImmutableLongArray without the last n elements.  Takes on
+   *  average O(log by) time.
+   *  @param by The number of elements to discard from the end.
+   *  @return A new ImmutableLongArray.
+   */
+  public ImmutableLongArray trim(long by) {
+    return (ImmutableLongArray)_trim(by);
+  }
+
+  /** Create a new ImmutableLongArray without the first n elements.  Takes
+   *  O(1) time.  The discarded elements still take up memory until the
+   *  leaves they are in are no longer in use.
+   *  @param from The number of elements to discard from the start.
+   *  @return A new ImmutableLongArray.
+   */
+  public ImmutableLongArray subList(long from) {
+    return subList(from, longSize());
+  }
+
+  /** Create a new ImmutableLongArray with only the elements from from
+   *  (inclusive) to to (exclusive).  Takes on average O(log size) time.
+   *  @param from The number of elements to discard from the start.
+   *  @param to Elements at this position and later will be discarded.
+   *  @return A new ImmutableLongArray.
+   */
+  public ImmutableLongArray subList(long from, long to) {
+    return (ImmutableLongArray)_subList(from, to);
+  }
+
+  /** Calls the action on all elements, in order.  This runs a tight loop
+   *  over each leaf, and is the fastest way to iterate.
+   *  @param action The action to perform on each element.
+   */
+  public void forEach(LongConsumer action) {
+    _forEachLeaf(_offset, size, (leaf, from, to) -> {
+      long array[] = (long[])leaf;
+      for (int i = from; i < to; i++) action.accept(array[i]);
+    });
+  }
+
+  /** The sum of the elements.  Like Java's long arithmetic it wraps on
+   *  overflow.  Each leaf is summed in a simple counted loop, which the JIT
+   *  can vectorize.  Use subList() for the sum of a range.
+   *  @return The sum, or zero if the array is empty.
+   */
+  public long sum() {
+    long sum[] = new long[1];
+    _forEachLeaf(_offset, size, (leaf, from, to) -> {
+      long array[] = (long[])leaf;
+      long leaf_sum = 0;
+      for (int i = from; i < to; i++) leaf_sum += array[i];
+      sum[0] += leaf_sum;
+    });
+    return sum[0];
+  }
+
+  /** The smallest element.  Use subList() for the minimum of a range.
+   *  @return The smallest element.
+   *  @throws NoSuchElementException If the array is empty.
+   */
+  public long min() {
+    if (isEmpty()) throw new NoSuchElementException();
+    long min[] = { Long.MAX_VALUE };
+    _forEachLeaf(_offset, size, (leaf, from, to) -> {
+      long array[] = (long[])leaf;
+      long leaf_min = min[0];
+      for (int i = from; i < to; i++) leaf_min = Math.min(leaf_min, array[i]);
+      min[0] = leaf_min;
+    });
+    return min[0];
+  }
+
+  /** The largest element.  Use subList() for the maximum of a range.
+   *  @return The largest element.
+   *  @throws NoSuchElementException If the array is empty.
+   */
+  public long max() {
+    if (isEmpty()) throw new NoSuchElementException();
+    long max[] = { Long.MIN_VALUE };
+    _forEachLeaf(_offset, size, (leaf, from, to) -> {
+      long array[] = (long[])leaf;
+      long leaf_max = max[0];
+      for (int i = from; i < to; i++) leaf_max = Math.max(leaf_max, array[i]);
+      max[0] = leaf_max;
+    });
+    return max[0];
+  }
+
+  /** The number of elements that satisfy a predicate.
+   *  @param predicate The test for each element.
+   *  @return The number of elements for which the predicate returned true.
+   */
+  public long count(LongPredicate predicate) {
+    long count[] = new long[1];
+    _forEachLeaf(_offset, size, (leaf, from, to) -> {
+      long array[] = (long[])leaf;
+      long leaf_count = 0;
+      for (int i = from; i < to; i++) if (predicate.test(array[i])) leaf_count++;
+      count[0] += leaf_count;
+    });
+    return count[0];
+  }
+
+  /** Copy the elements to a new long array.
+   *  @return A new array with the elements in order.
+   */
+  public long[] toArray() {
+    long result[] = new long[size()];
+    int position[] = new int[1];
+    _forEachLeaf(_offset, _offset + result.length, (leaf, from, to) -> {
+      System.arraycopy(leaf, from, result, position[0], to - from);
+      position[0] += to - from;
+    });
+    return result;
+  }
+}
@@ -0,0 +1,341 @@
+// Copyright (C) 2019 Toitware ApS. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package com.toitware.immutable;
+
+import com.toitware.immutable.ImmutableArray;
+import com.toitware.immutable.ImmutablePrimitiveArray;
+import com.toitware.immutable.OffHeapArena;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+
+/** An immutable (fully persistent) array of longs, where the elements are
+ *  stored outside the Java heap.  It has the same interface and time
+ *  complexity as ImmutableLongArray.<p>
+ *
+ *  The full leaves of the tree are blocks of off-heap memory from an
+ *  OffHeapArena.  The GC only sees one small object per leaf, so a very
+ *  large array does not make GC pauses longer.  The tail, which has fewer
+ *  than M elements, stays on the heap and is copied to the arena when it is
+ *  full.  Like ImmutableLongArray, atPut copies only the leaf that changes,
+ *  but the old leaf is not freed until the arena is closed.<p>
+ *
+ *  All versions of an array share its arena.  Once the arena is closed they
+ *  throw IllegalStateException.
+ *  @see OffHeapArena
+ *  @see ImmutableLongArray
+ */
+public class ImmutableOffHeapLongArray extends ImmutablePrimitiveArray {
+  private static final long _empty[] = new long[0];
+  private final OffHeapArena _arena;
+
+  /** Create an empty ImmutableOffHeapLongArray.
+   *  @param arena The arena that the leaves will be allocated in.
+   */
+  public ImmutableOffHeapLongArray(OffHeapArena arena) {
+    super(0, 0, ImmutableArray._zero, _empty);
+    _arena = arena;
+  }
+
+  /** Make an ImmutableOffHeapLongArray that is a copy of an array.
+   *  @param arena The arena that the leaves will be allocated in.
+   *  @param array The array to be copied
+   */
+  public ImmutableOffHeapLongArray(OffHeapArena arena, long array[]) {
+    this(new ImmutableOffHeapLongArray(arena).pushAll(array));
+  }
+
+  private ImmutableOffHeapLongArray(ImmutableOffHeapLongArray other) {
+    super(other.size, other._offset, other._powers, other._tail);
+    _arena = other._arena;
+  }
+
+  private ImmutableOffHeapLongArray(long size, long offset, Object powers[], Object tail, OffHeapArena arena) {
+    super(size, offset, powers, tail);
+    _arena = arena;
+  }
+
+  /** The arena that holds the elements.
+   *  @return The arena.
+   */
+  public OffHeapArena arena() {
+    return _arena;
+  }
+
+  // Only the tail is a long[].
+  int _leafLength(Object leaf) {
+    return ((long[])leaf).length;
+  }
+
+  Object _copyLeaf(Object leaf, int new_length) {
+    return Arrays.copyOf((long[])leaf, new_length);
+  }
+
+  Object _emptyLeaf() {
+    return _empty;
+  }
+
+  ImmutablePrimitiveArray _make(long size, long offset, Object powers[], Object tail) {
+    return new ImmutableOffHeapLongArray(size, offset, powers, tail, _arena);
+  }
+
+  Object _leafFromTail(Object tail) {
+    long array[] = (long[])tail;
+    OffHeapArena.Block block = _arena._allocate(M << 3);
+    for (int i = 0; i < M; i++) block._memory.putLong(block._start + (i << 3), array[i]);
+    return block;
+  }
+
+  Object _tailFromLeaf(Object leaf, int length) {
+    _arena._checkOpen();
+    OffHeapArena.Block block = (OffHeapArena.Block)leaf;
+    long result[] = new long[length];
+    for (int i = 0; i < length; i++) result[i] = block._memory.getLong(block._start + (i << 3));
+    return result;
+  }
+
+  /** Get an arbitrary element.  Takes an average time of
+   *  O(log(size - index)).
+   *  @param index The index of the required element.
+   *  @return The element.
+   */
+  public long getLong(long index) {
+    _checkIndex(index);
+    _arena._checkOpen();
+    index += _offset;
+    Object leaf = _leafAt(index);
+    int i = (int)(index & MASK);
+    if (leaf instanceof long[]) return ((long[])leaf)[i];
+    OffHeapArena.Block block = (OffHeapArena.Block)leaf;
+    return block._memory.getLong(block._start + (i << 3));
+  }
+
+  /** Makes a copy, but at the given index the given value is substituted.
+   *  Takes on average O(log size) time unless the element is near the end,
+   *  in which case it is O(1).  A new leaf is allocated in the arena unless
+   *  the element is in the tail.
+   *  @param index Offset of the element where substitution should happen
+   *  @param value The new element to be placed at offset index
+   *  @return A new ImmutableOffHeapLongArray differing at one position from
+   *      this one.
+   */
+  public ImmutableOffHeapLongArray atPut(long index, long value) {
+    _checkIndex(index);
+    _arena._checkOpen();
+    index += _offset;
+    Object leaf = _leafAt(index);
+    int i = (int)(index & MASK);
+    if (leaf instanceof long[]) {
+      long new_tail[] = ((long[])leaf).clone();
+      new_tail[i] = value;
+      return (ImmutableOffHeapLongArray)_withLeaf(index, new_tail);
+    }
+    OffHeapArena.Block block = (OffHeapArena.Block)leaf;
+    OffHeapArena.Block new_block = _arena._allocate(M << 3);
+    for (int j = 0; j < M << 3; j += 8) {
+      new_block._memory.putLong(new_block._start + j, block._memory.getLong(block._start + j));
+    }
+    new_block._memory.putLong(new_block._start + (i << 3), value);
+    return (ImmutableOffHeapLongArray)_withLeaf(index, new_block);
+  }
+
+  /** Create a new ImmutableOffHeapLongArray with an extra element at the end.
+   *  Takes amortized O(1) time.
+   *  @param value The new element.
+   *  @return A new ImmutableOffHeapLongArray, one element larger.
+   */
+  public ImmutableOffHeapLongArray push(long value) {
+    long tail[] = (long[])_tail;
+    long new_tail[] = Arrays.copyOf(tail, tail.length + 1);
+    new_tail[tail.length] = value;
+    return (ImmutableOffHeapLongArray)_withTail(new_tail, 1);
+  }
+
+  /** Create a new ImmutableOffHeapLongArray with all elements of an array
+   *  pushed on the end.  Takes O(array.length) time.
+   *  @param array The elements to append.
+   *  @return A new ImmutableOffHeapLongArray with the extra elements.
+   */
+  public ImmutableOffHeapLongArray pushAll(long array[]) {
+    return (ImmutableOffHeapLongArray)_pushAll(array, array.length);
+  }
+
+  /** Create a new ImmutableOffHeapLongArray without the last element.
+   *  @return A new ImmutableOffHeapLongArray, one element smaller.
+   */
+  public ImmutableOffHeapLongArray trim() {
+    return trim(1);
+  }
+
+  /** Create a new ImmutableOffHeapLongArray without the last n elements.
+   *  Takes on average O(log by) time.
+   *  @param by The number of elements to discard from the end.
+   *  @return A new ImmutableOffHeapLongArray.
+   */
+  public ImmutableOffHeapLongArray trim(long by) {
+    return (ImmutableOffHeapLongArray)_trim(by);
+  }
+
+  /** Create a new ImmutableOffHeapLongArray without the first n elements.
+   *  Takes O(1) time.
+   *  @param from The number of elements to discard from the start.
+   *  @return A new ImmutableOffHeapLongArray.
+   */
+  public ImmutableOffHeapLongArray subList(long from) {
+    return subList(from, longSize());
+  }
+
+  /** Create a new ImmutableOffHeapLongArray with only the elements from
+   *  from (inclusive) to to (exclusive).  Takes on average O(log size) time.
+   *  @param from The number of elements to discard from the start.
+   *  @param to Elements at this position and later will be discarded.
+   *  @return A new ImmutableOffHeapLongArray.
+   */
+  public ImmutableOffHeapLongArray subList(long from, long to) {
+    return (ImmutableOffHeapLongArray)_subList(from, to);
+  }
+
+  /** Calls the action on all elements, in order.
+   *  @param action The action to perform on each element.
+   */
+  public void forEach(LongConsumer action) {
+    _arena._checkOpen();
+    _forEachLeaf(_offset, size, (leaf, from, to) -> {
+      if (leaf instanceof long[]) {
+        long array[] = (long[])leaf;
+        for (int i = from; i < to; i++) action.accept(array[i]);
+      } else {
+        OffHeapArena.Block block = (OffHeapArena.Block)leaf;
+        for (int i = from; i < to; i++) {
+          // The action may have closed the arena.
+          _arena._checkOpen();
+          action.accept(block._memory.getLong(block._start + (i << 3)));
+        }
+      }
+    });
+  }
+
+  /** The sum of the elements.  Like Java's long arithmetic it wraps on
+   *  overflow.  Each leaf is summed in a simple counted loop, which the JIT
+   *  can vectorize.  Use subList() for the sum of a range.
+   *  @return The sum, or zero if the array is empty.
+   */
+  public long sum() {
+    _arena._checkOpen();
+    long sum[] = new long[1];
+    _forEachLeaf(_offset, size, (leaf, from, to) -> {
+      if (leaf instanceof long[]) {
+        long array[] = (long[])leaf;
+        long leaf_sum = 0;
+        for (int i = from; i < to; i++) leaf_sum += array[i];
+        sum[0] += leaf_sum;
+      } else {
+        _arena._checkOpen();
+        OffHeapArena.Block block = (OffHeapArena.Block)leaf;
+        long leaf_sum = 0;
+        for (int i = from; i < to; i++) leaf_sum += block._memory.getLong(block._start + (i << 3));
+        sum[0] += leaf_sum;
+      }
+    });
+    return sum[0];
+  }
+
+  /** The smallest element.  Use subList() for the minimum of a range.
+   *  @return The smallest element.
+   *  @throws NoSuchElementException If the array is empty.
+   */
+  public long min() {
+    if (isEmpty()) throw new NoSuchElementException();
+    _arena._checkOpen();
+    long min[] = { Long.MAX_VALUE };
+    _forEachLeaf(_offset, size, (leaf, from, to) -> {
+      if (leaf instanceof long[]) {
+        long array[] = (long[])leaf;
+        long leaf_min = min[0];
+        for (int i = from; i < to; i++) leaf_min = Math.min(leaf_min, array[i]);
+        min[0] = leaf_min;
+      } else {
+        _arena._checkOpen();
+        OffHeapArena.Block block = (OffHeapArena.Block)leaf;
+        long leaf_min = min[0];
+        for (int i = from; i < to; i++) leaf_min = Math.min(leaf_min, block._memory.getLong(block._start + (i << 3)));
+        min[0] = leaf_min;
+      }
+    });
+    return min[0];
+  }
+
+  /** The largest element.  Use subList() for the maximum of a range.
+   *  @return The largest element.
+   *  @throws NoSuchElementException If the array is empty.
+   */
+  public long max() {
+    if (isEmpty()) throw new NoSuchElementException();
+    _arena._checkOpen();
+    long max[] = { Long.MIN_VALUE };
+    _forEachLeaf(_offset, size, (leaf, from, to) -> {
+      if (leaf instanceof long[]) {
+        long array[] = (long[])leaf;
+        long leaf_max = max[0];
+        for (int i = from; i < to; i++) leaf_max = Math.max(leaf_max, array[i]);
+        max[0] = leaf_max;
+      } else {
+        _arena._checkOpen();
+        OffHeapArena.Block block = (OffHeapArena.Block)leaf;
+        long leaf_max = max[0];
+        for (int i = from; i < to; i++) leaf_max = Math.max(leaf_max, block._memory.getLong(block._start + (i << 3)));
+        max[0] = leaf_max;
+      }
+    });
+    return max[0];
+  }
+
+  /** The number of elements that satisfy a predicate.
+   *  @param predicate The test for each element.
+   *  @return The number of elements for which the predicate returned true.
+   */
+  public long count(LongPredicate predicate) {
+    _arena._checkOpen();
+    long count[] = new long[1];
+    _forEachLeaf(_offset, size, (leaf, from, to) -> {
+      if (leaf instanceof long[]) {
+        long array[] = (long[])leaf;
+        long leaf_count = 0;
+        for (int i = from; i < to; i++) if (predicate.test(array[i])) leaf_count++;
+        count[0] += leaf_count;
+      } else {
+        OffHeapArena.Block block = (OffHeapArena.Block)leaf;
+        long leaf_count = 0;
+        for (int i = from; i < to; i++) {
+          _arena._checkOpen();
+          if (predicate.test(block._memory.getLong(block._start + (i << 3)))) leaf_count++;
+        }
+        count[0] += leaf_count;
+      }
+    });
+    return count[0];
+  }
+
+  /** Copy the elements to a new long array on the heap.
+   *  @return A new array with the elements in order.
+   */
+  public long[] toArray() {
+    _arena._checkOpen();
+    long result[] = new long[size()];
+    int position[] = new int[1];
+    _forEachLeaf(_offset, _offset + result.length, (leaf, from, to) -> {
+      if (leaf instanceof long[]) {
+        System.arraycopy(leaf, from, result, position[0], to - from);
+      } else {
+        _arena._checkOpen();
+        OffHeapArena.Block block = (OffHeapArena.Block)leaf;
+        for (int i = from; i < to; i++) result[position[0] + i - from] = block._memory.getLong(block._start + (i << 3));
+      }
+      position[0] += to - from;
+    });
+    return result;
+  }
+}
@@ -0,0 +1,244 @@
+// Copyright (C) 2019 Toitware ApS. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package com.toitware.immutable;
+
+import com.toitware.immutable.ImmutableArray;
+import com.toitware.immutable.ImmutableCollection;
+import java.util.Arrays;
+
+/** The common parts of ImmutableIntArray, ImmutableLongArray and
+ *  ImmutableDoubleArray.  These use the same tree layout as ImmutableArray,
+ *  with a _powers spine and a _tail, but the leaves are arrays of primitives
+ *  instead of arrays of boxed objects.  This saves the object header and the
+ *  reference for every element, and iteration does not have to chase a
+ *  pointer per element.<p>
+ *
+ *  Since primitives cannot keep anything alive for the GC there is no need
+ *  for the left-trimming that ImmutableDeque does.  Instead, subList() just
+ *  records an offset into the tree.
+ *
+ *  @see ImmutableIntArray
+ *  @see ImmutableLongArray
+ *  @see ImmutableDoubleArray
+ */
+public abstract class ImmutablePrimitiveArray {
+  // The branching factor is fixed at 16, the default for ImmutableArray.
+  // The spine is manipulated with the helpers of ImmutableArray, which are
+  // told the number of bits per level.
+  static final int SHIFT = ImmutableArray.DEFAULT_BITS;
+  static final int M = 1 << SHIFT;
+  static final int MASK = M - 1;
+  private static final Object _zero[] = ImmutableArray._zero;
+
+  // Number of index positions in the tree, including the ones to the left of
+  // _offset that are not part of this collection.
+  protected final long size;
+  protected final long _offset;
+  final Object _powers[];
+  // An int[], long[] or double[] with (size & MASK) elements.
+  final Object _tail;
+
+  ImmutablePrimitiveArray(long size, long offset, Object powers[], Object tail) {
+    this.size = size;
+    _offset = offset;
+    _powers = powers;
+    _tail = tail;
+  }
+
+  // The leaf type specific operations.
+  abstract int _leafLength(Object leaf);
+  abstract Object _copyLeaf(Object leaf, int new_length);
+  abstract Object _emptyLeaf();
+  abstract ImmutablePrimitiveArray _make(long size, long offset, Object powers[], Object tail);
+
+  // The tail is always a primitive array, but a subclass can store the full
+  // leaves in the tree differently.  These convert a full tail to a leaf
+  // when it is added to the tree, and the start of a leaf to a tail when
+  // trimming brings it back.
+  Object _leafFromTail(Object tail) {
+    return tail;
+  }
+
+  Object _tailFromLeaf(Object leaf, int length) {
+    return _copyLeaf(leaf, length);
+  }
+
+  /** The number of elements.
+   *  @return The number of elements or Integer.MAX_VALUE if the collection
+   *      is too large.
+   */
+  public int size() {
+    return ImmutableCollection._longTruncator(size - _offset);
+  }
+
+  /** The number of elements.
+   *  @return The number of elements.
+   */
+  public long longSize() {
+    return size - _offset;
+  }
+
+  public boolean isEmpty() {
+    return size == _offset;
+  }
+
+  final void _checkIndex(long index) {
+    if (index < 0 || index >= size - _offset) throw new IndexOutOfBoundsException();
+  }
+
+  // Finds the leaf that contains the given position in the tree.  Like
+  // ImmutableArray.get(), this takes O(log(size - index)) time.
+  final Object _leafAt(long index) {
+    int power_posn = ImmutableArray._powerPosn(SHIFT, index ^ size);
+    if (power_posn == 0) return _tail;
+    Object node = _powers[power_posn - 1];
+    for (int shift = power_posn * SHIFT; shift != 0; shift -= SHIFT) {
+      node = ((Object[])node)[(int)(index >>> shift) & MASK];
+    }
+    return node;
+  }
+
+  // Makes a new instance where the leaf at the given position in the tree is
+  // replaced.
+  final ImmutablePrimitiveArray _withLeaf(long index, Object leaf) {
+    int power_posn = ImmutableArray._powerPosn(SHIFT, index ^ size);
+    if (power_posn == 0) return _make(size, _offset, _powers, leaf);
+    Object new_powers[] = ImmutableArray._copyBut(
+        _powers,
+        power_posn - 1,
+        _withLeaf(power_posn, index, (Object[])_powers[power_posn - 1], leaf));
+    return _make(size, _offset, new_powers, _tail);
+  }
+
+  private static Object[] _withLeaf(int level, long index, Object array[], Object leaf) {
+    int idx = (int)(index >>> (level * SHIFT)) & MASK;
+    if (level == 1) return ImmutableArray._copyBut(array, idx, leaf);
+    return ImmutableArray._copyBut(
+        array,
+        idx,
+        _withLeaf(level - 1, index, (Object[])array[idx], leaf));
+  }
+
+  // Makes a new instance with a new tail that has 'added' more elements than
+  // the current one.
+  final ImmutablePrimitiveArray _withTail(Object new_tail, int added) {
+    if (_leafLength(new_tail) == M) {
+      Object powers[] = ImmutableArray._copyPad(_powers, ImmutableArray._powerPosn(SHIFT, size + added));
+      powers = ImmutableArray._insertSubtree(SHIFT, powers, _leafFromTail(new_tail), 0);
+      return _make(size + added, _offset, powers, _emptyLeaf());
+    }
+    return _make(size + added, _offset, _powers, new_tail);
+  }
+
+  // Appends the first 'length' elements of a primitive array of the right
+  // type.  Each leaf is filled with a single System.arraycopy.
+  final ImmutablePrimitiveArray _pushAll(Object values, int length) {
+    if (length == 0) return this;
+    long new_size = size;
+    Object powers[] = _powers;
+    Object tail = _tail;
+    int tail_length = _leafLength(tail);
+    int position = 0;
+    while (position < length) {
+      int count = Math.min(M - tail_length, length - position);
+      Object new_tail = _copyLeaf(tail, tail_length + count);
+      System.arraycopy(values, position, new_tail, tail_length, count);
+      position += count;
+      new_size += count;
+      if (tail_length + count == M) {
+        powers = ImmutableArray._copyPad(powers, ImmutableArray._powerPosn(SHIFT, new_size));
+        powers = ImmutableArray._insertSubtree(SHIFT, powers, _leafFromTail(new_tail), 0);
+        tail = _emptyLeaf();
+        tail_length = 0;
+      } else {
+        tail = new_tail;
+        tail_length += count;
+      }
+    }
+    return _make(new_size, _offset, powers, tail);
+  }
+
+  final ImmutablePrimitiveArray _trim(long by) {
+    if (by < 0 || by > longSize()) throw new IndexOutOfBoundsException();
+    if (by == 0) return this;
+    if (by == longSize()) return _make(0, 0, _zero, _emptyLeaf());
+    long new_size = size - by;
+    int old_tail_length = (int)(size & MASK);
+    if (by <= old_tail_length) {
+      return _make(new_size, _offset, _powers, _copyLeaf(_tail, old_tail_length - (int)by));
+    }
+    // One digit at a time, from most significant to least significant.  As
+    // long as the digits of the old and new sizes agree we can keep the
+    // _powers entries.  At the first digit that differs we keep a prefix of
+    // the entry and 'borrow' the subtree after it, whose children are split
+    // between the lower levels of the new tree.
+    int levels = ImmutableArray._powerPosn(SHIFT, new_size);
+    Object new_powers[] = levels <= 0 ? _zero : new Object[levels];
+    Object borrow = null;
+    for (int i = _powers.length; i >= 1; i--) {
+      int old_digit = (int)((size >>> (i * SHIFT)) & MASK);
+      int new_digit = (int)((new_size >>> (i * SHIFT)) & MASK);
+      Object source[] = borrow == null ? (Object[])_powers[i - 1] : (Object[])borrow;
+      Object here[] = source;
+      if (borrow != null || old_digit != new_digit) {
+        here = new_digit == 0 ? _zero : Arrays.copyOf(source, new_digit);
+        borrow = source[new_digit];
+      }
+      if (i <= levels) new_powers[i - 1] = here;
+    }
+    // After the loop, the borrowed subtree is the leaf the new tail comes from.
+    int tail_length = (int)(new_size & MASK);
+    Object new_tail = tail_length == 0 ? _emptyLeaf() : _tailFromLeaf(borrow, tail_length);
+    return _make(new_size, _offset, new_powers, new_tail);
+  }
+
+  final ImmutablePrimitiveArray _subList(long from, long to) {
+    if (from < 0 || from > to || to > longSize()) throw new IndexOutOfBoundsException();
+    if (from == to) return _make(0, 0, _zero, _emptyLeaf());
+    ImmutablePrimitiveArray trimmed = _trim(longSize() - to);
+    if (from == 0) return trimmed;
+    return _make(trimmed.size, trimmed._offset + from, trimmed._powers, trimmed._tail);
+  }
+
+  // Called for each leaf with the range of positions in the leaf that are
+  // being visited.
+  interface LeafVisitor {
+    void visit(Object leaf, int from, int to);
+  }
+
+  // Visit the leaves that hold the positions from-to of the tree in order.
+  final void _forEachLeaf(long from, long to, LeafVisitor visitor) {
+    long index = 0;
+    for (int p = _powers.length; p >= 1; p--) {
+      Object array[] = (Object[])_powers[p - 1];
+      long span = (long)array.length << (p * SHIFT);
+      if (index < to && index + span > from) {
+        _forEachLeaf(array, p, index, from, to, visitor);
+      }
+      index += span;
+    }
+    if (index < to) {
+      visitor.visit(_tail, (int)Math.max(from - index, 0), (int)(to - index));
+    }
+  }
+
+  // The array contains subtrees that each hold M**level positions.
+  private static void _forEachLeaf(Object array[], int level, long index, long from, long to, LeafVisitor visitor) {
+    long child_span = 1L << (level * SHIFT);
+    for (int i = 0; i < array.length && index < to; i++) {
+      if (index + child_span > from) {
+        if (level == 1) {
+          visitor.visit(
+              array[i],
+              (int)Math.max(from - index, 0),
+              (int)Math.min(to - index, M));
+        } else {
+          _forEachLeaf((Object[])array[i], level - 1, index, from, to, visitor);
+        }
+      }
+      index += child_span;
+    }
+  }
+}
@@ -0,0 +1,822 @@
+// Copyright (C) 2019 Toitware ApS. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package com.toitware.immutable;
+
+import com.toitware.immutable.ImmutableArray;
+import com.toitware.immutable.ImmutableCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.ListIterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.UnaryOperator;
+
+/** An ImmutableCollection that is the concatenation of other
+ *  ImmutableCollections.  It is a relaxed tree: the internal nodes have
+ *  between 2 and WIDTH children and a table of the cumulative sizes of the
+ *  children, so they do not need to be full, and the leaves ('pieces') are
+ *  ordinary ImmutableArray or ImmutableDeque instances.  Two trees can be
+ *  joined by merging their edges, which takes O(log size) time and shares
+ *  all the nodes and pieces that are not on the seam.<p>
+ *
+ *  Access to an element first finds the piece using the size tables and
+ *  then uses the radix tree of the piece, so get(), atPut() and iteration
+ *  are only a little slower than on an ImmutableArray.<p>
+ *
+ *  Instances are not normally created directly, but are returned by
+ *  concat() when both collections are large.  A rope that is reduced to a
+ *  single piece, eg by subList(), returns the piece itself.
+ *
+ *  @see ImmutableCollection
+ */
+public class ImmutableRope<E> extends ImmutableCollection<E> {
+  // Maximum number of children of a relaxed node.
+  static final int WIDTH = 32;
+  // Two neighbouring pieces that are both smaller than this are merged by
+  // copying when they meet at the seam of a join.  This bounds the number of
+  // pieces to about 2 * size / MIN_PIECE.  Pieces that are appended with
+  // concat() are also copied if they are this small.  This does not depend
+  // on the branching factor, since it is about the cost of the copying.
+  static final long MIN_PIECE = 256;
+
+  // Always a RelaxedNode.  A tree that is a single piece is represented by
+  // the piece itself, not by an ImmutableRope.
+  private final RelaxedNode _root;
+
+  // An internal node of the tree.  All children have the same height, one
+  // less than the height of the node.  Pieces have height 0.
+  static final class RelaxedNode {
+    final int _height;
+    final Object _children[];
+    // The sizes of the children, cumulative, so _sizes[i] is the index just
+    // after the last element of child i.
+    final long _sizes[];
+
+    RelaxedNode(int height, Object children[]) {
+      assert children.length >= 2 && children.length <= WIDTH;
+      _height = height;
+      _children = children;
+      _sizes = new long[children.length];
+      long total = 0;
+      for (int i = 0; i < children.length; i++) {
+        assert _height(children[i]) == height - 1;
+        total += _size(children[i]);
+        _sizes[i] = total;
+      }
+    }
+
+    long size() {
+      return _sizes[_sizes.length - 1];
+    }
+
+    // The index of the child that contains the given index.
+    int childAt(long index) {
+      int i = Arrays.binarySearch(_sizes, index);
+      return i < 0 ? -i - 1 : i + 1;
+    }
+
+    long childStart(int i) {
+      return i == 0 ? 0 : _sizes[i - 1];
+    }
+
+    RelaxedNode withChild(int i, Object child) {
+      Object children[] = Arrays.copyOf(_children, _children.length);
+      children[i] = child;
+      return new RelaxedNode(_height, children);
+    }
+  }
+
+  private ImmutableRope(RelaxedNode root) {
+    _root = root;
+  }
+
+  // The family of the leftmost piece.
+  <T> ImmutableArray<T> _empty() {
+    Object tree = _root;
+    while (tree instanceof RelaxedNode) tree = ((RelaxedNode)tree)._children[0];
+    return ((ImmutableCollection<?>)tree)._empty();
+  }
+
+  static int _height(Object tree) {
+    return tree instanceof RelaxedNode ? ((RelaxedNode)tree)._height : 0;
+  }
+
+  static long _size(Object tree) {
+    if (tree instanceof RelaxedNode) return ((RelaxedNode)tree).size();
+    return ((ImmutableCollection<?>)tree).longSize();
+  }
+
+  // The tree of an ImmutableCollection: the root if it is a rope, otherwise
+  // the collection itself as a single piece.
+  static Object _tree(ImmutableCollection<?> collection) {
+    if (collection instanceof ImmutableRope) return ((ImmutableRope)collection)._root;
+    return collection;
+  }
+
+  @SuppressWarnings("unchecked")
+  static <E> ImmutableCollection<E> _wrap(Object tree) {
+    if (tree instanceof RelaxedNode) return new ImmutableRope<E>((RelaxedNode)tree);
+    return (ImmutableCollection<E>)tree;
+  }
+
+  // Checks that an operation on a piece did not turn it into a rope.
+  @SuppressWarnings("unchecked")
+  private static <E> ImmutableCollection<E> _piece(ImmutableCollection<? extends E> piece) {
+    assert !(piece instanceof ImmutableRope);
+    return (ImmutableCollection<E>)piece;
+  }
+
+  /** Concatenate two ImmutableCollections.  If both are large the result
+   *  is an ImmutableRope that shares the trees of both, otherwise the
+   *  smaller one is copied.  Takes O(log size) time.
+   *  @param left The collection that provides the first elements.
+   *  @param right The collection that provides the last elements.
+   *  @return An ImmutableCollection with the elements of both.
+   */
+  @SuppressWarnings("unchecked")
+  static <E> ImmutableCollection<E> _concat(ImmutableCollection<E> left, ImmutableCollection<? extends E> right) {
+    if (right.longSize() == 0) return left;
+    if (left.longSize() == 0) return (ImmutableCollection<E>)right;
+    if (right.longSize() < MIN_PIECE) return left.pushAll(right);
+    return _wrap(_join(_tree(left), _tree(right)));
+  }
+
+  // Joins two trees.  The result has the height of the taller tree, or one
+  // more.
+  static Object _join(Object left, Object right) {
+    if (left == null) return right;
+    if (right == null) return left;
+    Object parts[] = _joinParts(left, right);
+    if (parts.length == 1) return parts[0];
+    return new RelaxedNode(_height(parts[0]) + 1, parts);
+  }
+
+  // Joins two trees into one or two trees that have the height of the
+  // taller tree.  Only the nodes on the seam are copied.
+  @SuppressWarnings("unchecked")
+  private static Object[] _joinParts(Object left, Object right) {
+    int left_height = _height(left);
+    int right_height = _height(right);
+    if (left_height == 0 && right_height == 0) {
+      ImmutableCollection<Object> left_piece = (ImmutableCollection<Object>)left;
+      ImmutableCollection<?> right_piece = (ImmutableCollection<?>)right;
+      if (left_piece.longSize() < MIN_PIECE && right_piece.longSize() < MIN_PIECE) {
+        return new Object[] { _piece(left_piece.pushAll(right_piece)) };
+      }
+      return new Object[] { left, right };
+    }
+    Object before[];
+    Object after[];
+    Object seam[];
+    if (left_height > right_height) {
+      Object children[] = ((RelaxedNode)left)._children;
+      before = Arrays.copyOf(children, children.length - 1);
+      seam = _joinParts(children[children.length - 1], right);
+      after = ImmutableArray._zero;
+    } else if (left_height < right_height) {
+      Object children[] = ((RelaxedNode)right)._children;
+      before = ImmutableArray._zero;
+      seam = _joinParts(left, children[0]);
+      after = Arrays.copyOfRange(children, 1, children.length);
+    } else {
+      Object left_children[] = ((RelaxedNode)left)._children;
+      Object right_children[] = ((RelaxedNode)right)._children;
+      before = Arrays.copyOf(left_children, left_children.length - 1);
+      seam = _joinParts(left_children[left_children.length - 1], right_children[0]);
+      after = Arrays.copyOfRange(right_children, 1, right_children.length);
+    }
+    int height = Math.max(left_height, right_height);
+    int total = before.length + seam.length + after.length;
+    Object children[] = new Object[total];
+    System.arraycopy(before, 0, children, 0, before.length);
+    System.arraycopy(seam, 0, children, before.length, seam.length);
+    System.arraycopy(after, 0, children, before.length + seam.length, after.length);
+    if (total <= WIDTH) return new Object[] { new RelaxedNode(height, children) };
+    int half = total >> 1;
+    return new Object[] {
+        new RelaxedNode(height, Arrays.copyOf(children, half)),
+        new RelaxedNode(height, Arrays.copyOfRange(children, half, total)) };
+  }
+
+  // The part of a tree from index from (inclusive) to to (exclusive), as a
+  // tree.  Nodes and pieces that are entirely inside the range are shared.
+  @SuppressWarnings("unchecked")
+  private static Object _slice(Object tree, long from, long to) {
+    if (!(tree instanceof RelaxedNode)) {
+      ImmutableCollection<?> piece = (ImmutableCollection<?>)tree;
+      if (from == 0 && to == piece.longSize()) return piece;
+      return _piece(piece.subList(from, to));
+    }
+    RelaxedNode node = (RelaxedNode)tree;
+    int first = node.childAt(from);
+    int last = node.childAt(to - 1);
+    long first_start = node.childStart(first);
+    if (first == last) {
+      return _slice(node._children[first], from - first_start, to - first_start);
+    }
+    long last_start = node.childStart(last);
+    Object left = _slice(node._children[first], from - first_start, node._sizes[first] - first_start);
+    Object right = _slice(node._children[last], 0, to - last_start);
+    Object middle = null;
+    if (last - first == 2) {
+      middle = node._children[first + 1];
+    } else if (last - first > 2) {
+      middle = new RelaxedNode(node._height, Arrays.copyOfRange(node._children, first + 1, last));
+    }
+    return _join(_join(left, middle), right);
+  }
+
+  // Replaces the first or last piece of a tree with the result of an
+  // operation on it.
+  @SuppressWarnings("unchecked")
+  private static <E> Object _withEdge(Object tree, boolean last, UnaryOperator<ImmutableCollection<E>> operation) {
+    if (!(tree instanceof RelaxedNode)) return _piece(operation.apply((ImmutableCollection<E>)tree));
+    RelaxedNode node = (RelaxedNode)tree;
+    int i = last ? node._children.length - 1 : 0;
+    return node.withChild(i, _withEdge(node._children[i], last, operation));
+  }
+
+  private ImmutableCollection<E> _withLast(UnaryOperator<ImmutableCollection<E>> operation) {
+    return new ImmutableRope<E>((RelaxedNode)_withEdge(_root, true, operation));
+  }
+
+  private ImmutableCollection<E> _withFirst(UnaryOperator<ImmutableCollection<E>> operation) {
+    return new ImmutableRope<E>((RelaxedNode)_withEdge(_root, false, operation));
+  }
+
+  public int size() {
+    return _longTruncator(_root.size());
+  }
+
+  public long longSize() {
+    return _root.size();
+  }
+
+  public E get(int index) {
+    return get((long)index);
+  }
+
+  @SuppressWarnings("unchecked")
+  public E get(long index) {
+    if (index < 0 || index >= _root.size()) throw new IndexOutOfBoundsException();
+    Object tree = _root;
+    while (tree instanceof RelaxedNode) {
+      RelaxedNode node = (RelaxedNode)tree;
+      int i = node.childAt(index);
+      index -= node.childStart(i);
+      tree = node._children[i];
+    }
+    return ((ImmutableCollection<E>)tree).get(index);
+  }
+
+  public ImmutableCollection<E> atPut(long index, E value) {
+    if (index < 0 || index >= _root.size()) throw new IndexOutOfBoundsException();
+    return new ImmutableRope<E>((RelaxedNode)_atPut(_root, index, value));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object _atPut(Object tree, long index, Object value) {
+    if (!(tree instanceof RelaxedNode)) return _piece(((ImmutableCollection<Object>)tree).atPut(index, value));
+    RelaxedNode node = (RelaxedNode)tree;
+    int i = node.childAt(index);
+    return node.withChild(i, _atPut(node._children[i], index - node.childStart(i), value));
+  }
+
+  public ImmutableCollection<E> atPutAll(long indices[], E values[]) {
+    if (indices.length != values.length) throw new IllegalArgumentException();
+    if (indices.length == 0) return this;
+    long size = _root.size();
+    long positions[] = Arrays.copyOf(indices, indices.length);
+    Object sorted_values[] = values;
+    boolean sorted = true;
+    for (int i = 0; i < positions.length; i++) {
+      if (positions[i] < 0 || positions[i] >= size) throw new IndexOutOfBoundsException();
+      if (i != 0 && positions[i] < positions[i - 1]) sorted = false;
+    }
+    if (!sorted) sorted_values = ImmutableArray._sortByPosition(positions, values, size);
+    return new ImmutableRope<E>((RelaxedNode)_putAll(_root, 0, positions, sorted_values, 0, positions.length));
+  }
+
+  // The positions from from (inclusive) to to (exclusive) are sorted and all
+  // inside the tree, which starts at the given index.  Each piece gets its
+  // own run of the positions, so it is only copied once.
+  @SuppressWarnings("unchecked")
+  private static Object _putAll(Object tree, long start, long positions[], Object values[], int from, int to) {
+    if (!(tree instanceof RelaxedNode)) {
+      long piece_indices[] = new long[to - from];
+      for (int j = from; j < to; j++) piece_indices[j - from] = positions[j] - start;
+      Object piece_values[] = Arrays.copyOfRange(values, from, to);
+      return _piece(((ImmutableCollection<Object>)tree).atPutAll(piece_indices, piece_values));
+    }
+    RelaxedNode node = (RelaxedNode)tree;
+    Object children[] = Arrays.copyOf(node._children, node._children.length);
+    int j = from;
+    while (j < to) {
+      int i = node.childAt(positions[j] - start);
+      long child_end = start + node._sizes[i];
+      int k = j + 1;
+      while (k < to && positions[k] < child_end) k++;
+      children[i] = _putAll(children[i], start + node.childStart(i), positions, values, j, k);
+      j = k;
+    }
+    return new RelaxedNode(node._height, children);
+  }
+
+  public ImmutableCollection<E> updateRange(long from, long to, LongFunction<? extends E> function) {
+    if (from < 0 || from > to || to > _root.size()) throw new IndexOutOfBoundsException();
+    if (from == to) return this;
+    return new ImmutableRope<E>((RelaxedNode)_updateRange(_root, 0, from, to, function));
+  }
+
+  // Only the pieces that overlap the range are updated, each with the part
+  // of the range that falls inside it.
+  @SuppressWarnings("unchecked")
+  private static Object _updateRange(Object tree, long start, long from, long to, LongFunction<?> function) {
+    if (!(tree instanceof RelaxedNode)) {
+      return _piece(((ImmutableCollection<Object>)tree).updateRange(from - start, to - start, (index) -> function.apply(start + index)));
+    }
+    RelaxedNode node = (RelaxedNode)tree;
+    Object children[] = Arrays.copyOf(node._children, node._children.length);
+    for (int i = node.childAt(from - start); i < children.length; i++) {
+      long child_start = start + node.childStart(i);
+      if (child_start >= to) break;
+      long child_end = start + node._sizes[i];
+      children[i] = _updateRange(children[i], child_start, Math.max(from, child_start), Math.min(to, child_end), function);
+    }
+    return new RelaxedNode(node._height, children);
+  }
+
+  @SuppressWarnings("unchecked")
+  public ImmutableCollection<E> push(E value) {
+    return _withLast((piece) -> piece.push(value));
+  }
+
+  @SuppressWarnings("unchecked")
+  public ImmutableCollection<E> push(E value1, E value2) {
+    return _withLast((piece) -> piece.push(value1, value2));
+  }
+
+  @SuppressWarnings("unchecked")
+  public ImmutableCollection<E> pushAll(E array[]) {
+    if (array.length == 0) return this;
+    return _withLast((piece) -> piece.pushAll(array));
+  }
+
+  @SuppressWarnings("unchecked")
+  public ImmutableCollection<E> pushAll(Collection<? extends E> collection) {
+    if (collection.isEmpty()) return this;
+    return _withLast((piece) -> piece.pushAll(collection));
+  }
+
+  @SuppressWarnings("unchecked")
+  public ImmutableCollection<E> unshift(E value) {
+    return _withFirst((piece) -> piece.unshift(value));
+  }
+
+  @SuppressWarnings("unchecked")
+  public ImmutableCollection<E> unshiftAll(E array[]) {
+    if (array.length == 0) return this;
+    return _withFirst((piece) -> piece.unshiftAll(array));
+  }
+
+  @SuppressWarnings("unchecked")
+  public ImmutableCollection<E> unshiftAll(Collection<? extends E> collection) {
+    if (collection.isEmpty()) return this;
+    if (collection instanceof ImmutableCollection && ((ImmutableCollection<?>)collection).longSize() >= MIN_PIECE) {
+      return _concat((ImmutableCollection<E>)collection, this);
+    }
+    // Unshifting a collection onto a piece can reverse the operation and
+    // concatenate, so use the array version, which never does.
+    E array[] = (E[])collection.toArray();
+    return _withFirst((piece) -> piece.unshiftAll(array));
+  }
+
+  public ImmutableCollection<E> trim() {
+    return trim(1);
+  }
+
+  public <R> ImmutableCollection<R> mapIndexed(IndexedFunction<? super E, ? extends R> function) {
+    return new ImmutableRope<R>((RelaxedNode)_map(_root, 0, function));
+  }
+
+  // Maps each piece, and makes relaxed nodes of the same shape.
+  @SuppressWarnings("unchecked")
+  private static <E, R> Object _map(Object tree, long start, IndexedFunction<? super E, ? extends R> function) {
+    if (!(tree instanceof RelaxedNode)) {
+      return _piece(((ImmutableCollection<E>)tree).mapIndexed((index, element) -> function.apply(start + index, element)));
+    }
+    RelaxedNode node = (RelaxedNode)tree;
+    Object children[] = new Object[node._children.length];
+    for (int i = 0; i < children.length; i++) {
+      children[i] = _map(node._children[i], start + node.childStart(i), function);
+    }
+    return new RelaxedNode(node._height, children);
+  }
+
+  boolean _sameElements(ImmutableCollection<?> other) {
+    if (other instanceof ImmutableRope) {
+      Boolean same = _sameElements(_root, ((ImmutableRope<?>)other)._root);
+      if (same != null) return same;
+    }
+    return super._sameElements(other);
+  }
+
+  // Compares two trees that have the same size.  If they have the same shape
+  // the pieces are compared pairwise, which lets them skip their shared
+  // subtrees.  Returns null if the shapes differ.
+  private static Boolean _sameElements(Object tree, Object other) {
+    if (tree == other) return true;
+    if (!(tree instanceof RelaxedNode) && !(other instanceof RelaxedNode)) {
+      return tree.equals(other);
+    }
+    if (!(tree instanceof RelaxedNode) || !(other instanceof RelaxedNode)) return null;
+    RelaxedNode node = (RelaxedNode)tree;
+    RelaxedNode other_node = (RelaxedNode)other;
+    if (!Arrays.equals(node._sizes, other_node._sizes)) return null;
+    for (int i = 0; i < node._children.length; i++) {
+      Boolean same = _sameElements(node._children[i], other_node._children[i]);
+      if (same == null || !same) return same;
+    }
+    return true;
+  }
+
+  int _computeHash() {
+    return _hash(_root);
+  }
+
+  // The List hash code of a tree.  For a list of n elements it is 31**n plus
+  // the sum of element i times 31**(n - 1 - i), so the hash codes of the
+  // pieces can be combined without looking at the elements again.  The
+  // pieces cache their hash codes.
+  private static int _hash(Object tree) {
+    if (!(tree instanceof RelaxedNode)) return tree.hashCode();
+    RelaxedNode node = (RelaxedNode)tree;
+    int sum = 0;
+    for (Object child : node._children) {
+      long size = _size(child);
+      int power = _pow31(size);
+      sum = sum * power + _hash(child) - power;
+    }
+    return _pow31(node.size()) + sum;
+  }
+
+  // 31 to the power n, modulo 2**32.
+  private static int _pow31(long n) {
+    int result = 1;
+    int square = 31;
+    for (; n != 0; n >>>= 1) {
+      if ((n & 1) != 0) result *= square;
+      square *= square;
+    }
+    return result;
+  }
+
+  public ImmutableCollection<E> trim(long by) {
+    if (by < 0 || by > longSize()) throw new IndexOutOfBoundsException();
+    return subList(0, longSize() - by);
+  }
+
+  public ImmutableCollection<E> shift() {
+    return subList(1);
+  }
+
+  public ImmutableCollection<E> subList(long from) {
+    return subList(from, longSize());
+  }
+
+  public ImmutableCollection<E> subList(long from, long to) {
+    if (from < 0 || from > to || to > longSize()) throw new IndexOutOfBoundsException();
+    if (from == 0 && to == longSize()) return this;
+    if (from == to) return _empty();
+    return _wrap(_slice(_root, from, to));
+  }
+
+  public Object clone() {
+    return this;
+  }
+
+  @SuppressWarnings("unchecked")
+  public int indexOf(E needle) {
+    long start = 0;
+    for (ImmutableCollection<E> piece : _pieces()) {
+      int found = piece.indexOf(needle);
+      if (found != -1) return _longTruncator(start + found);
+      start += piece.longSize();
+    }
+    return -1;
+  }
+
+  @SuppressWarnings("unchecked")
+  public int lastIndexOf(E needle) {
+    ImmutableArray<ImmutableCollection<E>> pieces = _pieces();
+    long start = longSize();
+    for (long i = pieces.longSize() - 1; i >= 0; i--) {
+      ImmutableCollection<E> piece = pieces.get(i);
+      start -= piece.longSize();
+      int found = piece.lastIndexOf(needle);
+      if (found != -1) return _longTruncator(start + found);
+    }
+    return -1;
+  }
+
+  // The pieces in order.
+  private ImmutableArray<ImmutableCollection<E>> _pieces() {
+    ImmutableArray.Builder<ImmutableCollection<E>> builder = new ImmutableArray.Builder<>();
+    _forEachPiece(_root, builder::push);
+    return builder.build();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <E> void _forEachPiece(Object tree, Consumer<ImmutableCollection<E>> action) {
+    if (tree instanceof RelaxedNode) {
+      for (Object child : ((RelaxedNode)tree)._children) _forEachPiece(child, action);
+    } else {
+      action.accept((ImmutableCollection<E>)tree);
+    }
+  }
+
+  public void forEach(Consumer<? super E> action) {
+    _forEachInRange(_root, 0, longSize(), action);
+  }
+
+  // Calls the action on the elements from index from (inclusive) to to
+  // (exclusive), using forEach() on the pieces.
+  @SuppressWarnings("unchecked")
+  private static <E> void _forEachInRange(Object tree, long from, long to, Consumer<? super E> action) {
+    if (!(tree instanceof RelaxedNode)) {
+      ImmutableCollection<E> piece = (ImmutableCollection<E>)tree;
+      if (from == 0 && to == piece.longSize()) {
+        piece.forEach(action);
+      } else {
+        piece.subList(from, to).forEach(action);
+      }
+      return;
+    }
+    RelaxedNode node = (RelaxedNode)tree;
+    for (int i = node.childAt(from); i < node._children.length; i++) {
+      long start = node.childStart(i);
+      if (start >= to) return;
+      _forEachInRange(
+          node._children[i],
+          Math.max(from - start, 0),
+          Math.min(to, node._sizes[i]) - start,
+          action);
+    }
+  }
+
+  // Finds the piece that contains the given index, and its start index.
+  @SuppressWarnings("unchecked")
+  private ImmutableCollection<E> _pieceAt(long index, long start[]) {
+    Object tree = _root;
+    long piece_start = 0;
+    while (tree instanceof RelaxedNode) {
+      RelaxedNode node = (RelaxedNode)tree;
+      int i = node.childAt(index - piece_start);
+      piece_start += node.childStart(i);
+      tree = node._children[i];
+    }
+    start[0] = piece_start;
+    return _piece((ImmutableCollection<E>)tree);
+  }
+
+  public Iterator<E> iterator() {
+    return new ImmutableRopeListIterator(0);
+  }
+
+  public ListIterator<E> listIterator() {
+    return new ImmutableRopeListIterator(0);
+  }
+
+  public ListIterator<E> listIterator(int index) {
+    return listIterator((long)index);
+  }
+
+  public ListIterator<E> listIterator(long index) {
+    if (index < 0 || index > longSize()) throw new IndexOutOfBoundsException();
+    return new ImmutableRopeListIterator(index);
+  }
+
+  public Spliterator<E> spliterator() {
+    return new ImmutableRopeSpliterator(0, longSize());
+  }
+
+  long _bound(E key, Comparator<? super E> comparator, boolean upper) {
+    return _bound(_root, key, comparator, upper);
+  }
+
+  // Finds the first child whose last element is after the key, and
+  // continues in that child.  The pieces do the rest.
+  @SuppressWarnings("unchecked")
+  private static <E> long _bound(Object tree, E key, Comparator<? super E> comparator, boolean upper) {
+    long start = 0;
+    while (tree instanceof RelaxedNode) {
+      RelaxedNode node = (RelaxedNode)tree;
+      int low = 0;
+      int high = node._children.length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (_isAfter((E)_last(node._children[mid]), key, comparator, upper)) {
+          high = mid;
+        } else {
+          low = mid + 1;
+        }
+      }
+      if (low == node._children.length) return start + node.size();
+      start += node.childStart(low);
+      tree = node._children[low];
+    }
+    return start + ((ImmutableCollection<E>)tree)._bound(key, comparator, upper);
+  }
+
+  private static Object _last(Object tree) {
+    while (tree instanceof RelaxedNode) {
+      Object children[] = ((RelaxedNode)tree)._children;
+      tree = children[children.length - 1];
+    }
+    ImmutableCollection<?> piece = (ImmutableCollection<?>)tree;
+    return piece.get(piece.longSize() - 1);
+  }
+
+  public void forEachChunk(ChunkConsumer action) {
+    ImmutableRope.<E>_forEachPiece(_root, (piece) -> piece.forEachChunk(action));
+  }
+
+  public ChunkIterator chunkIterator() {
+    return new ImmutableRopeChunkIterator();
+  }
+
+  // Uses the chunk iterators of the pieces, one after the other.
+  private class ImmutableRopeChunkIterator implements ChunkIterator {
+    // The start of the next piece.
+    private long _index;
+    private ChunkIterator _piece;
+    private final long _start[] = new long[1];
+
+    public boolean advance() {
+      while (_piece == null || !_piece.advance()) {
+        if (_index == longSize()) return false;
+        ImmutableCollection<E> piece = _pieceAt(_index, _start);
+        _index = _start[0] + piece.longSize();
+        _piece = piece.chunkIterator();
+      }
+      return true;
+    }
+
+    public Object[] chunk() { return _piece.chunk(); }
+    public int offset() { return _piece.offset(); }
+    public int length() { return _piece.length(); }
+  }
+
+  // Iterates using a list iterator on the current piece, and looks up the
+  // next piece from the root when it reaches the end of the piece.
+  private class ImmutableRopeListIterator implements ListIterator<E> {
+    private long _index;
+    private long _pieceStart;
+    private long _pieceEnd;
+    private ListIterator<E> _iterator;
+    private final long _start[] = new long[1];
+
+    ImmutableRopeListIterator(long index) {
+      _index = index;
+    }
+
+    // Moves to the piece that contains the given index.
+    private void _seek(long index) {
+      ImmutableCollection<E> piece = _pieceAt(index, _start);
+      _pieceStart = _start[0];
+      _pieceEnd = _pieceStart + piece.longSize();
+      _iterator = piece.listIterator(_index - _pieceStart);
+    }
+
+    public boolean hasNext() {
+      return _index < longSize();
+    }
+
+    public E next() {
+      assert hasNext();
+      if (_iterator == null || _index == _pieceEnd) _seek(_index);
+      _index++;
+      return _iterator.next();
+    }
+
+    public boolean hasPrevious() {
+      return _index > 0;
+    }
+
+    public E previous() {
+      assert hasPrevious();
+      if (_iterator == null || _index == _pieceStart) _seek(_index - 1);
+      _index--;
+      return _iterator.previous();
+    }
+
+    public void forEachRemaining(Consumer<? super E> action) {
+      long from = _index;
+      _index = longSize();
+      _iterator = null;
+      if (from != _index) _forEachInRange(_root, from, _index, action);
+    }
+
+    public int nextIndex() {
+      return (int)_index;
+    }
+
+    public int previousIndex() {
+      return (int)(_index - 1);
+    }
+
+    public void add(E element) {
+      throw new UnsupportedOperationException();
+    }
+
+    public void set(E element) {
+      throw new UnsupportedOperationException();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  // Splits at the boundaries between the children of the nodes.  Once the
+  // range is inside a single piece, the spliterator of the piece takes over.
+  private class ImmutableRopeSpliterator implements Spliterator<E> {
+    private long _index;
+    private final long _end;
+    private Spliterator<E> _delegate;
+    private ListIterator<E> _iterator;
+    private long _pieceEnd;
+    private final long _start[] = new long[1];
+
+    ImmutableRopeSpliterator(long from, long to) {
+      _index = from;
+      _end = to;
+    }
+
+    public boolean tryAdvance(Consumer<? super E> action) {
+      if (_delegate != null) return _delegate.tryAdvance(action);
+      if (_index == _end) return false;
+      if (_iterator == null || _index == _pieceEnd) {
+        ImmutableCollection<E> piece = _pieceAt(_index, _start);
+        _pieceEnd = _start[0] + piece.longSize();
+        _iterator = piece.listIterator(_index - _start[0]);
+      }
+      _index++;
+      action.accept(_iterator.next());
+      return true;
+    }
+
+    public void forEachRemaining(Consumer<? super E> action) {
+      if (_delegate != null) {
+        _delegate.forEachRemaining(action);
+        return;
+      }
+      long from = _index;
+      _index = _end;
+      _iterator = null;
+      if (from != _end) _forEachInRange(_root, from, _end, action);
+    }
+
+    @SuppressWarnings("unchecked")
+    public Spliterator<E> trySplit() {
+      if (_delegate != null) return _delegate.trySplit();
+      if (_end - _index < 2) return null;
+      // Find the lowest node that contains the whole range.
+      Object tree = _root;
+      long start = 0;
+      while (tree instanceof RelaxedNode) {
+        RelaxedNode node = (RelaxedNode)tree;
+        int first = node.childAt(_index - start);
+        int last = node.childAt(_end - 1 - start);
+        if (first != last) {
+          // Split at the child boundary nearest the middle of the range.
+          int middle = (first + last + 1) >> 1;
+          long split = start + node.childStart(middle);
+          Spliterator<E> prefix = new ImmutableRopeSpliterator(_index, split);
+          _index = split;
+          _iterator = null;
+          return prefix;
+        }
+        start += node.childStart(first);
+        tree = node._children[first];
+      }
+      ImmutableCollection<E> piece = (ImmutableCollection<E>)tree;
+      _delegate = piece.subList(_index - start, _end - start).spliterator();
+      return _delegate.trySplit();
+    }
+
+    public long estimateSize() {
+      if (_delegate != null) return _delegate.estimateSize();
+      return _end - _index;
+    }
+
+    public int characteristics() {
+      return IMMUTABLE | ORDERED | SIZED | SUBSIZED;
+    }
+  }
+}
@@ -0,0 +1,201 @@
+// Copyright (C) 2019 Toitware ApS. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package com.toitware.immutable;
+
+import com.toitware.immutable.ImmutableArray;
+import com.toitware.immutable.ImmutableCollection;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/** A lazy sequence of transformations on an ImmutableCollection, created
+ *  with ImmutableCollection.view().  Calling map(), filter(), take() and
+ *  drop() only records the step and returns a new view, so a chain of them
+ *  does not create a collection for each step.  The steps are run together,
+ *  element by element, in one pass over the leaves of the collection when
+ *  toImmutable(), forEach() or count() is called.  The pass stops early
+ *  once a take() has all its elements.<p>
+ *
+ *  A take() or drop() that only comes after map() steps is done with
+ *  subList() on the collection, in O(log size) time, so the skipped
+ *  elements are never visited.<p>
+ *
+ *  Views are immutable and can be run any number of times, but the
+ *  functions are called again each time.
+ */
+public final class ImmutableView<E> {
+  // The collection the elements come from.
+  private final ImmutableCollection<?> _source;
+  // The last step, or null if the view has the elements of the source.
+  private final Step _step;
+  // Whether any step can change the number of elements.
+  private final boolean _resizing;
+
+  ImmutableView(ImmutableCollection<E> source) {
+    this(source, null, false);
+  }
+
+  private ImmutableView(ImmutableCollection<?> source, Step step, boolean resizing) {
+    _source = source;
+    _step = step;
+    _resizing = resizing;
+  }
+
+  // Receives the elements of a run, one at a time.
+  private interface Sink {
+    // Returns false if no more elements are wanted.
+    boolean accept(Object element);
+  }
+
+  // A recorded step.  The steps form a linked list from the last to the
+  // first.  Each run wraps the sink of the next step in a fresh sink, so
+  // counters are not shared between runs.
+  private abstract static class Step {
+    final Step _previous;
+
+    Step(Step previous) {
+      _previous = previous;
+    }
+
+    abstract Sink _wrap(Sink next);
+  }
+
+  /** Create a view that applies a function to each element.
+   *  @param function Called once for each element that gets this far.
+   *  @return A new view.
+   */
+  public <R> ImmutableView<R> map(Function<? super E, ? extends R> function) {
+    Step step = new Step(_step) {
+      @SuppressWarnings("unchecked")
+      Sink _wrap(Sink next) {
+        return (element) -> next.accept(function.apply((E)element));
+      }
+    };
+    return new ImmutableView<R>(_source, step, _resizing);
+  }
+
+  /** Create a view with only the elements that match a predicate.  Unlike
+   *  ImmutableCollection.filterIf(), the matching elements are kept, as in
+   *  Stream.filter().
+   *  @param predicate Returns true for the elements to keep.
+   *  @return A new view.
+   */
+  public ImmutableView<E> filter(Predicate<? super E> predicate) {
+    Step step = new Step(_step) {
+      @SuppressWarnings("unchecked")
+      Sink _wrap(Sink next) {
+        return (element) -> !predicate.test((E)element) || next.accept(element);
+      }
+    };
+    return new ImmutableView<E>(_source, step, true);
+  }
+
+  /** Create a view with at most the first n elements of this one.
+   *  @param n The maximum number of elements.
+   *  @return A new view.
+   */
+  public ImmutableView<E> take(long n) {
+    if (n < 0) throw new IllegalArgumentException();
+    if (!_resizing) {
+      long size = _source.longSize();
+      if (n >= size) return this;
+      return new ImmutableView<E>(_source.subList(0, n), _step, false);
+    }
+    Step step = new Step(_step) {
+      Sink _wrap(Sink next) {
+        long remaining[] = { n };
+        return (element) -> {
+          if (remaining[0] == 0) return false;
+          remaining[0]--;
+          return next.accept(element) && remaining[0] != 0;
+        };
+      }
+    };
+    return new ImmutableView<E>(_source, step, true);
+  }
+
+  /** Create a view without the first n elements of this one.
+   *  @param n The number of elements to skip.
+   *  @return A new view.
+   */
+  public ImmutableView<E> drop(long n) {
+    if (n < 0) throw new IllegalArgumentException();
+    if (n == 0) return this;
+    if (!_resizing) {
+      long size = _source.longSize();
+      return new ImmutableView<E>(_source.subList(Math.min(n, size)), _step, false);
+    }
+    Step step = new Step(_step) {
+      Sink _wrap(Sink next) {
+        long remaining[] = { n };
+        return (element) -> {
+          if (remaining[0] == 0) return next.accept(element);
+          remaining[0]--;
+          return true;
+        };
+      }
+    };
+    return new ImmutableView<E>(_source, step, true);
+  }
+
+  // Runs the steps over the elements of the source, stopping when the sink
+  // wants no more.
+  private void _run(Sink sink) {
+    for (Step step = _step; step != null; step = step._previous) {
+      sink = step._wrap(sink);
+    }
+    ImmutableCollection.ChunkIterator chunks = _source.chunkIterator();
+    while (chunks.advance()) {
+      Object chunk[] = chunks.chunk();
+      int end = chunks.offset() + chunks.length();
+      for (int i = chunks.offset(); i < end; i++) {
+        if (!sink.accept(chunk[i])) return;
+      }
+    }
+  }
+
+  /** Run the steps and collect the elements in a new collection.  Takes
+   *  O(size) time.  If there are no steps other than take() and drop() the
+   *  collection is made with subList() and no elements are visited.
+   *  @return An ImmutableCollection with the elements of the view.
+   */
+  @SuppressWarnings("unchecked")
+  public ImmutableCollection<E> toImmutable() {
+    if (_step == null) return (ImmutableCollection<E>)_source;
+    ImmutableArray.Builder<E> builder = new ImmutableArray.Builder<E>(_source._empty());
+    _run((element) -> {
+      builder.push((E)element);
+      return true;
+    });
+    return builder.build();
+  }
+
+  /** Run the steps and call the action with each resulting element, in
+   *  order.
+   *  @param action Called once for each element of the view.
+   */
+  @SuppressWarnings("unchecked")
+  public void forEach(Consumer<? super E> action) {
+    _run((element) -> {
+      action.accept((E)element);
+      return true;
+    });
+  }
+
+  /** The number of elements in the view.  If no step can change the number
+   *  of elements this takes O(1) time and calls no functions, otherwise the
+   *  steps are run.
+   *  @return The number of elements.
+   */
+  public long count() {
+    if (!_resizing) return _source.longSize();
+    long count[] = new long[1];
+    _run((element) -> {
+      count[0]++;
+      return true;
+    });
+    return count[0];
+  }
+}
@@ -0,0 +1,134 @@
+// Copyright (C) 2019 Toitware ApS. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package com.toitware.immutable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/** Off-heap memory for the leaves of ImmutableOffHeapLongArrays.  Memory is
+ *  allocated from large direct ByteBuffers, slabs, and is only given back
+ *  when the arena is closed.  Leaves that are no longer used by any array,
+ *  eg. because atPut made a copy, are not reused.  This suits arrays that
+ *  are mostly appended to, like long histories of measurements.<p>
+ *
+ *  Closing the arena frees the slabs at once, instead of waiting for the
+ *  GC to find the ByteBuffers.  After that, all arrays that use the arena
+ *  throw IllegalStateException.  The check is made before each read of a
+ *  leaf.  Walks over a whole array, like sum(), repeat it for each leaf,
+ *  and forEach() and count() repeat it for each element, so an action that
+ *  closes the arena gets the exception instead of reading freed memory.
+ *  The arena must still not be closed while other threads are using its
+ *  arrays: a read that has already passed the check when the slabs are
+ *  freed reads freed native memory, which can crash the JVM.  The caller
+ *  must make sure all readers are done, eg. by joining their threads,
+ *  before calling close().
+ *  @see ImmutableOffHeapLongArray
+ */
+public final class OffHeapArena implements AutoCloseable {
+  private static final int SLAB_SIZE = 1 << 20;
+  private static final MethodHandle _invokeCleaner = _findCleaner();
+
+  private final ArrayList<ByteBuffer> _slabs = new ArrayList<>();
+  private ByteBuffer _slab;
+  private int _used;
+  private long _allocated;
+  // Checked on every access.  Volatile so that other threads see the close,
+  // but this does not make a close that races with a read safe.
+  private volatile boolean _closed;
+
+  /** Create an empty arena.  Slabs are allocated as needed. */
+  public OffHeapArena() {}
+
+  // A piece of a slab.
+  static final class Block {
+    final ByteBuffer _memory;
+    final int _start;
+
+    Block(ByteBuffer memory, int start) {
+      _memory = memory;
+      _start = start;
+    }
+  }
+
+  // Blocks are 8-byte aligned, and use the native byte order.
+  synchronized Block _allocate(int bytes) {
+    _checkOpen();
+    bytes = (bytes + 7) & ~7;
+    if (_slab == null || _used + bytes > _slab.capacity()) {
+      _slab = ByteBuffer.allocateDirect(Math.max(SLAB_SIZE, bytes)).order(ByteOrder.nativeOrder());
+      _slabs.add(_slab);
+      _used = 0;
+    }
+    Block result = new Block(_slab, _used);
+    _used += bytes;
+    _allocated += bytes;
+    return result;
+  }
+
+  final void _checkOpen() {
+    if (_closed) throw new IllegalStateException("OffHeapArena is closed");
+  }
+
+  /** The number of bytes handed out to leaves so far, including leaves that
+   *  are no longer in use.
+   *  @return The number of bytes.
+   */
+  public synchronized long allocatedBytes() {
+    return _allocated;
+  }
+
+  /** Whether the arena can still be used.
+   *  @return False if the arena has been closed.
+   */
+  public boolean isOpen() {
+    return !_closed;
+  }
+
+  /** Free all the off-heap memory of the arena.  Arrays that use the arena
+   *  can no longer be used.  Closing twice has no effect.  Must not be
+   *  called while any other thread may still be reading from the arena's
+   *  arrays, since the memory is freed at once.
+   */
+  public synchronized void close() {
+    if (_closed) return;
+    _closed = true;
+    for (ByteBuffer slab : _slabs) _free(slab);
+    _slabs.clear();
+    _slab = null;
+  }
+
+  // Direct ByteBuffers are normally freed by the GC.  Where the JDK has
+  // Unsafe.invokeCleaner (9 and later) we free them right away, otherwise
+  // we drop the references and leave them to the GC.
+  private static void _free(ByteBuffer slab) {
+    if (_invokeCleaner == null) return;
+    try {
+      _invokeCleaner.invoke(slab);
+    } catch (Throwable e) {
+      // The memory is freed by the GC instead.
+    }
+  }
+
+  private static MethodHandle _findCleaner() {
+    try {
+      Class<?> unsafe_class = Class.forName("sun.misc.Unsafe");
+      Field field = unsafe_class.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      Object unsafe = field.get(null);
+      MethodHandle handle = MethodHandles.lookup().findVirtual(
+          unsafe_class,
+          "invokeCleaner",
+          MethodType.methodType(void.class, ByteBuffer.class));
+      return handle.bindTo(unsafe);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+}
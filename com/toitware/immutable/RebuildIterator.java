@@ -34,9 +34,11 @@ public class RebuildIterator<E> extends AbstractCollection<E> implements Iterato
   // The collection whose parts we are using to build the new one.
   private final Collection<E> _bricks;
 
-  // Instructions for building the new collection.
-  private byte _instructions[];
-  private int _instructionsPosn = 0;
+  // Instructions for building the new collection, run-length encoded: each
+  // entry is the count shifted up by 2, with the instruction in the low bits.
+  // Filtering a large collection usually gives long runs of COPY.
+  private long _runs[];
+  private int _runsPosn = 0;
 
   // New things to insert into the new collection.
   private ArrayList<Object> _newBricks;
@@ -54,19 +56,30 @@ public class RebuildIterator<E> extends AbstractCollection<E> implements Iterato
     _iterator = bricks.iterator();
   }
 
+  private static final int INSTRUCTION_BITS = 2;
+  private static final long INSTRUCTION_MASK = 3;
+  private static final long ONE = 1 << INSTRUCTION_BITS;
+
   private void _push(int instruction) {
-    if (_instructions == null) {
-      _instructions = new byte[16];
-    } else if (_instructionsPosn >= _instructions.length) {
-      _instructions = Arrays.copyOf(_instructions, (int)(_instructions.length * 1.4));
+    if (_runsPosn != 0 && (_runs[_runsPosn - 1] & INSTRUCTION_MASK) == instruction) {
+      _runs[_runsPosn - 1] += ONE;
+      return;
+    }
+    if (_runs == null) {
+      _runs = new long[16];
+    } else if (_runsPosn >= _runs.length) {
+      _runs = Arrays.copyOf(_runs, (int)(_runs.length * 1.4));
     }
-    _instructions[_instructionsPosn++] = (byte)instruction;
+    _runs[_runsPosn++] = ONE | instruction;
   }
 
+  // Replaces the last instruction, which is a COPY.
   private void _revise(int instruction) {
-    int last = _instructionsPosn - 1;
-    assert _instructions[last] == COPY;
-    _instructions[last] = (byte)instruction;
+    int last = _runsPosn - 1;
+    assert (_runs[last] & INSTRUCTION_MASK) == COPY;
+    _runs[last] -= ONE;
+    if (_runs[last] < ONE) _runsPosn--;
+    _push(instruction);
   }
 
   private void _addNewBrick(Object o) {
@@ -149,6 +162,7 @@ public class RebuildIterator<E> extends AbstractCollection<E> implements Iterato
    *  build() at this point.
    */
   public void insertAll(E array[]) {
+    if (array.length == 0) return;
     _size += array.length;
     _push(INSERT_ALL);
     _addNewBrick(Arrays.asList(array));
@@ -163,15 +177,84 @@ public class RebuildIterator<E> extends AbstractCollection<E> implements Iterato
   }
 
   /** Create a new immutable array based on the calls to remove(), set(),
-   *  insert() and insertAll() done on this iterator.
+   *  insert() and insertAll() done on this iterator.  If the original
+   *  collection is an ImmutableArray, the leaves and subtrees that are
+   *  copied unchanged, and land on the same alignment in the new array,
+   *  are shared with the original instead of being copied.  So if only a
+   *  few elements near the end were changed, this takes time proportional
+   *  to the number of elements after the first change.
    *  @return A new ImmutableCollection based on the items iterated over.
    */
+  @SuppressWarnings("unchecked")
   public ImmutableArray<E> build() {
-    return new ImmutableArray<E>(this);
+    // The new array is in the family of the original, so it has the same
+    // branching factor.
+    ImmutableArray<?> family = _bricks instanceof ImmutableCollection ?
+        ((ImmutableCollection<?>)_bricks)._empty() :
+        new ImmutableArray<E>();
+    ImmutableArray.Builder<E> builder = new ImmutableArray.Builder<E>(family);
+    if (!(_bricks instanceof ImmutableArray)) {
+      Iterator<E> it = iterator();
+      for (long i = 0; i < _size; i++) builder.push(it.next());
+      return builder.build();
+    }
+    ImmutableArray<E> original = ((ImmutableArray<E>)_bricks)._flush();
+    Iterator<Object> new_bricks = _newBricks == null ? null : _newBricks.iterator();
+    long position = 0;
+    for (int i = 0; i < _runsPosn; i++) {
+      long count = _runs[i] >>> INSTRUCTION_BITS;
+      int instruction = (int)(_runs[i] & INSTRUCTION_MASK);
+      if (instruction == COPY) {
+        _copy(original, position, position + count, builder);
+      }
+      if (instruction == COPY || instruction == SKIP) {
+        position += count;
+      } else if (instruction == INSERT) {
+        for (long j = 0; j < count; j++) builder.push((E)new_bricks.next());
+      } else {
+        assert instruction == INSERT_ALL;
+        for (long j = 0; j < count; j++) builder.pushAll((Collection<E>)new_bricks.next());
+      }
+    }
+    return builder.build();
+  }
+
+  // Copies the elements from..to of the original to the builder, sharing the
+  // largest subtrees that are aligned in both.
+  @SuppressWarnings("unchecked")
+  private static <E> void _copy(ImmutableArray<E> original, long from, long to, ImmutableArray.Builder<E> builder) {
+    final int SHIFT = original._bits();
+    final int M = 1 << SHIFT;
+    final int MASK = M - 1;
+    while (from < to) {
+      long alignment = from | builder.longSize();
+      if ((alignment & MASK) == 0 && to - from >= M) {
+        // Find the largest block of M**d positions that is aligned in both.
+        int d = 1;
+        while (((alignment >>> (d * SHIFT)) & MASK) == 0 &&
+               to - from >= 1L << ((d + 1) * SHIFT) &&
+               original._nodeAt(from, d + 1) != null) {
+          d++;
+        }
+        Object node[] = original._nodeAt(from, d);
+        if (node != null) {
+          builder._pushSharedNode(node, d - 1);
+          from += 1L << (d * SHIFT);
+          continue;
+        }
+      }
+      // Copy the elements up to the end of the leaf.
+      Object leaf[] = original._leafAt(from);
+      int start = (int)(from & MASK);
+      int end = (int)Math.min(M, start + to - from);
+      for (int i = start; i < end; i++) builder.push((E)leaf[i]);
+      from += end - start;
+    }
   }
 
   private class BuilderIterator<E> implements Iterator<E> {
-    private long _instructionIndex = 0;
+    private int _runIndex = 0;
+    private long _runRemaining = 0;
     private long _index = 0;
     private RebuildIterator<E> _buildIterator;
 
@@ -185,22 +268,31 @@ public class RebuildIterator<E> extends AbstractCollection<E> implements Iterato
     }
 
     public boolean hasNext() {
-      return _insertAllIterator != null ||
-             _instructionIndex < _buildIterator._instructionsPosn;
+      return _index < _buildIterator._size;
+    }
+
+    private int _nextInstruction() {
+      while (_runRemaining == 0) {
+        _runRemaining = _runs[_runIndex] >>> INSTRUCTION_BITS;
+        _runIndex++;
+      }
+      _runRemaining--;
+      return (int)(_runs[_runIndex - 1] & INSTRUCTION_MASK);
     }
 
     @SuppressWarnings("unchecked")
     public E next() {
+      _index++;
       if (_insertAllIterator != null) {
         E result = _insertAllIterator.next();
         if (!_insertAllIterator.hasNext()) _insertAllIterator = null;
         return result;
       }
       if (_brickIterator == null) _brickIterator = _buildIterator._bricks.iterator();
-      int instruction = _instructions[(int)(_instructionIndex++)];
+      int instruction = _nextInstruction();
       while (instruction == SKIP) {
         _brickIterator.next();
-        instruction = _instructions[(int)(_instructionIndex++)];
+        instruction = _nextInstruction();
       }
       if (instruction == COPY) {
         return _brickIterator.next();
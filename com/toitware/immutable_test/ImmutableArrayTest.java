@@ -3,24 +3,90 @@
 // found in the LICENSE file.
 
 package com.toitware.immutable_test;
+import com.toitware.immutable.ElementCodec;
 import com.toitware.immutable.ImmutableArray;
+import com.toitware.immutable.ImmutableArrayCodec;
 import com.toitware.immutable.ImmutableCollection;
 import com.toitware.immutable.ImmutableDeque;
+import com.toitware.immutable.ImmutableDoubleArray;
+import com.toitware.immutable.ImmutableIntArray;
+import com.toitware.immutable.ImmutableLongArray;
+import com.toitware.immutable.ImmutableOffHeapLongArray;
+import com.toitware.immutable.ImmutableRope;
+import com.toitware.immutable.ImmutableView;
+import com.toitware.immutable.OffHeapArena;
 import com.toitware.immutable.RebuildIterator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.ListIterator;
+import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 class ImmutableArrayTest {
+  // The branching factor of the arrays that the tests start from.
+  private static int _branching;
+
+  private static <E> ImmutableArray<E> empty() {
+    return ImmutableArray.empty(_branching);
+  }
+
   public static void main(String args[]) {
     mul_test();
+    branching_test();
+    for (int branching : new int[] { 16, 8, 32, 64 }) {
+      _branching = branching;
+      array_tests();
+    }
+    primitive_array_test();
+    off_heap_test();
+  }
+
+  // The tests that start from empty(), and so run for each branching factor.
+  private static void array_tests() {
     simple_test();
     random_test();
     random_test2();
     push_all_test();
     leak_deque_test();
+    trim_left_test();
+    deque_list_iterator_test();
+    empty_sub_list_test();
+    builder_test();
+    spliterator_test();
+    rope_test();
+    unshift_all_test();
+    at_put_all_test();
+    remove_test();
+    insert_test();
+    map_test();
+    equals_test();
+    diff_test();
+    codec_test();
+    chunk_test();
+    search_test();
+    cursor_test();
+    focus_test();
+    focus_leak_test();
+    queue_test();
+    collector_test();
+    rebuild_test();
+    parallel_filter_test();
+    view_test();
   }
 
   private static void mul_test() {
@@ -31,12 +97,73 @@ class ImmutableArrayTest {
     }
   }
 
+  private static void branching_test() {
+    boolean thrown = false;
+    try {
+      ImmutableArray.empty(7);
+    } catch (IllegalArgumentException e) {
+      thrown = true;
+    }
+    assert(thrown);
+    assert(new ImmutableArray<Integer>().branchingFactor() == 16);
+    ImmutableCollection<Integer> other = new ImmutableArray<Integer>(ImmutableArray.<Integer>empty(8).push(1));
+    assert(((ImmutableArray<Integer>)other).branchingFactor() == 16);
+
+    Random random = new Random(1034210342);
+    for (int m : new int[] { 8, 16, 32, 64 }) {
+      ImmutableArray<Integer> empty = ImmutableArray.empty(m);
+      assert(empty.branchingFactor() == m);
+      ImmutableArray<Integer> a = empty;
+      for (int i = 0; i < 5000; i++) a = a.push(i);
+      ImmutableArray<Integer> control = new ImmutableArray<Integer>(a);
+      assert(control.branchingFactor() == 16);
+      assert(a.equals(control) && control.equals(a));
+      assert(a.hashCode() == control.hashCode());
+
+      // Everything made from an array stays in its family.
+      ImmutableArray<?> made[] = {
+        a.atPut(100, -1),
+        a.atPut(100, -1).atPut(101, -1),
+        a.trim(3),
+        (ImmutableArray<?>)a.subList(0, 1000),
+        (ImmutableArray<?>)a.filterIf((x) -> (x & 1) == 0),
+        (ImmutableArray<?>)a.mapIndexed((index, x) -> x + 1),
+        a.asTransient().push(5000).build(),
+        new ImmutableArray.Builder<Integer>(m).push(1).build(),
+        (ImmutableArray<?>)control.stream().collect(ImmutableArray.collector(m)),
+        (ImmutableArray<?>)a.subList(1000).filterIf((x) -> (x & 1) == 0),
+        (ImmutableArray<?>)a.subList(1000).subList(3000).filterIf((x) -> x == 4500),
+      };
+      for (ImmutableArray<?> array : made) {
+        assert(array.branchingFactor() == m);
+        assert(array.getClass() == empty.getClass());
+      }
+
+      // Comparisons across families are done element by element.
+      for (int z = 0; z < 20; z++) {
+        ImmutableCollection<Integer> version = a;
+        ImmutableCollection<Integer> other_version = control;
+        for (int i = 0; i < 5; i++) {
+          int index = random.nextInt(a.size());
+          version = version.atPut(index, -1);
+          other_version = other_version.atPut(index, -1);
+        }
+        if (random.nextBoolean()) version = version.subList(random.nextInt(100));
+        if (random.nextBoolean()) other_version = other_version.subList(random.nextInt(100));
+        String expected = _diff(new ArrayList<Integer>(version), new ArrayList<Integer>(other_version));
+        assert(version.diff(other_version).toString().equals(expected));
+        assert(other_version.diff(version).toString().equals(expected));
+        assert(version.equals(other_version) == expected.equals("[]"));
+      }
+    }
+  }
+
   private static void random_test() {
     final int ITERATIONS = 1000;
     Random random = new Random(1034210342);
     for (int z = 0; z < ITERATIONS; z++) {
       int len = random.nextInt(100);
-      ImmutableCollection<Integer> a = new ImmutableArray<Integer>();
+      ImmutableCollection<Integer> a = empty();
       for (int i = 0; i < len; i++) {
         a = a.push(random.nextInt(120));
       }
@@ -51,10 +178,10 @@ class ImmutableArrayTest {
     final int ITERATIONS = 2000;
     final int ARRAYS = 20;
     ArrayList<ArrayList<Integer>> control = new ArrayList<ArrayList<Integer>>();
-    ImmutableArray<ImmutableCollection<Integer>> arrays = new ImmutableArray<>();
+    ImmutableArray<ImmutableCollection<Integer>> arrays = empty();
     for (int i = 0; i < ARRAYS; i++) {
       control.add(new ArrayList<Integer>());
-      arrays = arrays.push(new ImmutableArray<Integer>());
+      arrays = arrays.push(empty());
     }
 
     Random random = new Random(1034210342);
@@ -128,7 +255,7 @@ class ImmutableArrayTest {
           if (control.get(dest).size() > 897) {
             //System.out.println("Truncate " + dest);
             control.set(dest, new ArrayList<Integer>());
-            arrays = arrays.atPut(dest, new ImmutableArray<Integer>());
+            arrays = arrays.atPut(dest, empty());
           } else {
             // Concat.
             //System.out.println("Concat " + src + " (" + arrays.get(src) + ") onto " + dest + " (" + arrays.get(dest) + ")");
@@ -172,7 +299,7 @@ class ImmutableArrayTest {
           if (control.get(dest).size() > 897) {
             //System.out.println("Truncate " + dest);
             control.set(dest, new ArrayList<Integer>());
-            arrays = arrays.atPut(dest, new ImmutableArray<Integer>());
+            arrays = arrays.atPut(dest, empty());
           } else {
             // Prepend.
             //System.out.println("Prepend " + src + " (" + arrays.get(src) + ") onto " + dest + " (" + arrays.get(dest) + ")");
@@ -305,12 +432,12 @@ class ImmutableArrayTest {
   // the tree.
   private static void leak_deque_test() {
     final int ITERATIONS = 1000;
-    ImmutableArray<Object> accumulate = new ImmutableArray<>();
+    ImmutableArray<Object> accumulate = empty();
     Random random = new Random(1034210342);
     for (int z = 0; z < ITERATIONS; z++) {
       int size = random.nextInt(1000) + 2;
       int cut = random.nextInt(size - 1);
-      ImmutableArray<Object[]> backing = new ImmutableArray<>();
+      ImmutableArray<Object[]> backing = empty();
       int i = 0;
       for ( ; i < cut; i++) {
         backing = backing.push(new Object[10000]);
@@ -322,6 +449,1418 @@ class ImmutableArrayTest {
     }
   }
 
+  private static void unshift_all_test() {
+    Random random = new Random(1034210342);
+    for (int z = 0; z < 500; z++) {
+      // Start with a deque that has been trimmed on the left, so that
+      // there is some null space and an offset.
+      int len = random.nextInt(z < 250 ? 40 : 5000);
+      ImmutableCollection<Integer> deque = empty();
+      ArrayList<Integer> control = new ArrayList<>();
+      for (int i = 0; i < len; i++) {
+        deque = deque.push(i);
+        control.add(i);
+      }
+      int cut = random.nextInt(len + 1);
+      deque = deque.subList(cut);
+      control = new ArrayList<>(control.subList(cut, len));
+      for (int round = 0; round < 3; round++) {
+        int extra = random.nextInt(random.nextBoolean() ? 20 : 10000);
+        ArrayList<Integer> prefix = new ArrayList<>();
+        for (int i = 0; i < extra; i++) prefix.add(-i);
+        ImmutableCollection<Integer> old = deque;
+        deque = deque.unshiftAll(prefix);
+        if (old instanceof ImmutableDeque) assert(deque instanceof ImmutableDeque);
+        // The old deque is not affected.
+        assert(old.size() == control.size());
+        for (int i = 0; i < control.size(); i++) assert(old.get(i).equals(control.get(i)));
+        control.addAll(0, prefix);
+        assert(deque.size() == control.size());
+        int j = 0;
+        for (int x : deque) assert(x == control.get(j++));
+        for (j = 0; j < control.size(); j++) assert(deque.get(j).equals(control.get(j)));
+        // Also check that the result works as a normal deque.
+        if (control.size() > 0) {
+          assert(deque.shift().size() == control.size() - 1);
+          assert(deque.atPut(0, 42).get(0) == 42);
+        }
+      }
+    }
+  }
+
+  private static void at_put_all_test() {
+    Random random = new Random(1034210342);
+    for (int z = 0; z < 500; z++) {
+      int len = random.nextInt(z < 250 ? 40 : 5000) + 1;
+      ImmutableCollection<Integer> collection = empty();
+      for (int i = 0; i < len; i++) collection = collection.push(i);
+      // Sometimes make it a deque with some null space on the left, or a rope.
+      if (random.nextBoolean()) collection = collection.subList(random.nextInt(len));
+      if (random.nextInt(4) == 0) collection = collection.concat(collection);
+      // Ropes of more than two pieces.
+      if (random.nextInt(8) == 0) {
+        for (int i = 0; i < 4; i++) collection = collection.concat(collection.subList(collection.size() / 3));
+      }
+      int size = collection.size();
+      int k = random.nextInt(size * 2);
+      long indices[] = new long[k];
+      Integer values[] = new Integer[k];
+      // Cluster the updates sometimes, and allow duplicates.
+      int cluster = random.nextBoolean() ? size : Math.min(size, 40);
+      int base = random.nextInt(size - cluster + 1);
+      ImmutableCollection<Integer> expected = collection;
+      for (int i = 0; i < k; i++) {
+        indices[i] = base + random.nextInt(cluster);
+        values[i] = -i;
+        expected = expected.atPut(indices[i], values[i]);
+      }
+      ImmutableCollection<Integer> result = collection.atPutAll(indices, values);
+      assert(result.getClass() == collection.getClass());
+      assert(result.size() == size);
+      int j = 0;
+      for (int x : result) assert(x == expected.get(j++));
+
+      int from = random.nextInt(size + 1);
+      int to = from + random.nextInt(size - from + 1);
+      ImmutableCollection<Integer> updated = collection.updateRange(from, to, (i) -> (int)(i * 3));
+      assert(updated.size() == size);
+      for (j = 0; j < size; j++) {
+        int x = updated.get(j);
+        assert(x == (j >= from && j < to ? j * 3 : collection.get(j)));
+      }
+    }
+  }
+
+  private static void remove_test() {
+    Random random = new Random(1034210342);
+    ImmutableCollection<Integer> collection = empty();
+    ArrayList<Integer> control = new ArrayList<>();
+    for (int i = 0; i < 20000; i++) {
+      collection = collection.push(i);
+      control.add(i);
+    }
+    for (int z = 0; z < 3000 && control.size() > 0; z++) {
+      int size = control.size();
+      if (random.nextInt(3) == 0) {
+        int from = random.nextInt(size + 1);
+        int to = from + random.nextInt(Math.min(size - from, 300) + 1);
+        collection = collection.removeRange(from, to);
+        control.subList(from, to).clear();
+      } else {
+        int index = random.nextInt(size);
+        // Use both overloads.
+        collection = random.nextBoolean() ? collection.removeAt(index) : collection.removeAt((long)index);
+        control.remove(index);
+      }
+      assert(collection.size() == control.size());
+      if ((z & 63) == 0 || control.size() < 100) {
+        int j = 0;
+        for (int x : collection) assert(x == control.get(j++));
+        for (j = 0; j < control.size(); j += 7) assert(collection.get(j).equals(control.get(j)));
+      }
+    }
+    try {
+      collection.removeAt(collection.longSize());
+      assert(false);
+    } catch (IndexOutOfBoundsException e) {
+    }
+  }
+
+  private static void insert_test() {
+    Random random = new Random(1034210342);
+    ImmutableCollection<Integer> collection = empty();
+    ArrayList<Integer> control = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      collection = collection.push(i);
+      control.add(i);
+    }
+    // Start with a deque that has an offset.
+    collection = collection.subList(100);
+    control = new ArrayList<>(control.subList(100, control.size()));
+    for (int z = 0; z < 3000; z++) {
+      int size = control.size();
+      int index = random.nextInt(size + 1);
+      switch (random.nextInt(4)) {
+        case 0:
+        case 1: {
+          collection = collection.insertAt(index, -z);
+          control.add(index, -z);
+          break;
+        }
+        case 2: {
+          ArrayList<Integer> list = new ArrayList<>();
+          int k = random.nextInt(random.nextBoolean() ? 10 : 1000);
+          for (int i = 0; i < k; i++) list.add(-i);
+          collection = collection.insertAllAt(index, list);
+          control.addAll(index, list);
+          break;
+        }
+        case 3: {
+          // Insert a part of ourselves, which is not copied if it is large.
+          int from = random.nextInt(size + 1);
+          int to = from + random.nextInt(size - from + 1);
+          collection = collection.insertAllAt(index, collection.subList(from, to));
+          control.addAll(index, new ArrayList<Integer>(control.subList(from, to)));
+          break;
+        }
+      }
+      if (control.size() > 100000) {
+        collection = collection.subList(0, 1000);
+        control = new ArrayList<>(control.subList(0, 1000));
+      }
+      assert(collection.size() == control.size());
+      if ((z & 63) == 0) {
+        int j = 0;
+        for (int x : collection) assert(x == control.get(j++));
+        for (j = 0; j < control.size(); j += 7) assert(collection.get(j).equals(control.get(j)));
+      }
+    }
+  }
+
+  private static void map_test() {
+    Random random = new Random(1034210342);
+    for (int z = 0; z < 300; z++) {
+      int len = random.nextInt(z < 150 ? 40 : 20000);
+      ImmutableCollection<Integer> collection = empty();
+      for (int i = 0; i < len; i++) collection = collection.push(i);
+      // Sometimes make it a deque, or a rope, or both.
+      if (len > 0 && random.nextBoolean()) collection = collection.subList(random.nextInt(len));
+      if (random.nextInt(3) == 0) collection = collection.concat(collection);
+      if (collection.size() > 2 && random.nextBoolean()) collection = collection.subList(1, collection.size() - 1);
+      ImmutableCollection<String> strings = collection.map((x) -> "" + x);
+      assert(strings.getClass() == collection.getClass());
+      assert(strings.size() == collection.size());
+      int j = 0;
+      for (String x : strings) assert(x.equals("" + collection.get(j++)));
+      long next[] = new long[1];
+      ImmutableCollection<Long> indexed = collection.mapIndexed((i, x) -> {
+        // Called in order.
+        assert(i == next[0]++);
+        return i * 1000 + x;
+      });
+      assert(next[0] == collection.size());
+      assert(indexed.size() == collection.size());
+      j = 0;
+      for (long x : indexed) {
+        assert(x == j * 1000L + collection.get(j));
+        j++;
+      }
+      // The result works as a normal collection.
+      if (indexed.size() > 0) {
+        assert(indexed.push(-1L).get(indexed.size()) == -1L);
+        assert(indexed.atPut(0, -1L).get(0) == -1L);
+        assert(indexed.unshift(-1L).get(0) == -1L);
+      }
+    }
+  }
+
+  private static void equals_test() {
+    Random random = new Random(1034210342);
+    for (int z = 0; z < 300; z++) {
+      int len = random.nextInt(z < 150 ? 40 : 5000);
+      ImmutableCollection<Integer> collection = empty();
+      for (int i = 0; i < len; i++) collection = collection.push(random.nextInt(10));
+      // Sometimes make it a deque, or a rope.
+      if (len > 0 && random.nextBoolean()) collection = collection.subList(random.nextInt(len));
+      if (random.nextInt(3) == 0) collection = collection.concat(collection);
+      ArrayList<Integer> control = new ArrayList<>(collection);
+      assert(collection.hashCode() == control.hashCode());
+      assert(collection.equals(collection));
+      assert(!collection.equals(control));
+      // A copy with a different structure.
+      ImmutableCollection<Integer> copy = ImmutableArrayTest.<Integer>empty().pushAll(control);
+      assert(collection.equals(copy));
+      assert(copy.equals(collection));
+      assert(copy.hashCode() == collection.hashCode());
+      if (control.size() == 0) continue;
+      // Versions that share most of their structure.
+      int index = random.nextInt(control.size());
+      int old_value = control.get(index);
+      ImmutableCollection<Integer> same = collection.atPut(index, old_value);
+      ImmutableCollection<Integer> different = collection.atPut(index, old_value + 1);
+      assert(collection.equals(same));
+      assert(same.equals(collection));
+      assert(same.hashCode() == collection.hashCode());
+      assert(!collection.equals(different));
+      assert(!different.equals(collection));
+      control.set(index, old_value + 1);
+      assert(different.hashCode() == control.hashCode());
+      assert(different.equals(copy.atPut(index, old_value + 1)));
+      assert(!collection.equals(collection.push(0)));
+      assert(!collection.equals(collection.trim()));
+    }
+  }
+
+  private static void diff_test() {
+    Random random = new Random(1034210342);
+    for (int z = 0; z < 500; z++) {
+      int len = random.nextInt(z < 250 ? 40 : 20000);
+      ImmutableCollection<Integer> collection = empty();
+      for (int i = 0; i < len; i++) collection = collection.push(i);
+      // Sometimes make it a deque.
+      if (len > 0 && random.nextBoolean()) collection = collection.subList(random.nextInt(len));
+      ImmutableCollection<Integer> version = collection;
+      int edits = random.nextInt(10);
+      for (int i = 0; i < edits && version.size() > 0; i++) {
+        int index = random.nextInt(version.size());
+        // Some edits do not change anything.
+        version = version.atPut(index, random.nextBoolean() ? version.get(index) : -1);
+      }
+      switch (random.nextInt(4)) {
+        case 0: {
+          int extra = random.nextInt(100);
+          for (int i = 0; i < extra; i++) version = version.push(-2);
+          break;
+        }
+        case 1: {
+          version = version.trim(random.nextInt(Math.min(version.size(), 100) + 1));
+          break;
+        }
+        case 2: {
+          // A different offset, compared element by element.
+          if (version.size() > 0 && random.nextInt(4) == 0) version = version.shift();
+          break;
+        }
+      }
+      String expected = _diff(new ArrayList<Integer>(collection), new ArrayList<Integer>(version));
+      assert(collection.diff(version).toString().equals(expected));
+      assert(version.diff(collection).toString().equals(expected));
+      assert(collection.diff(collection).size() == 0);
+    }
+  }
+
+  private static String _diff(ArrayList<Integer> a, ArrayList<Integer> b) {
+    ArrayList<String> ranges = new ArrayList<>();
+    int end = Math.max(a.size(), b.size());
+    int i = 0;
+    while (i < end) {
+      int from = i;
+      while (i < end && (i >= a.size() || i >= b.size() || !a.get(i).equals(b.get(i)))) i++;
+      if (i != from) ranges.add("[" + from + ", " + i + ")");
+      if (i < end) i++;
+    }
+    return ranges.toString();
+  }
+
+  private static void chunk_test() {
+    Random random = new Random(1034210342);
+    for (int z = 0; z < 200; z++) {
+      int len = random.nextInt(4) == 0 ? 256 * random.nextInt(20) : random.nextInt(10000);
+      ImmutableCollection<Integer> a = empty();
+      for (int i = 0; i < len; i++) a = a.push(i);
+      if (len != 0 && random.nextBoolean()) {
+        // Make a deque, with an offset and nulled out subtrees on the left.
+        int first = random.nextInt(len);
+        if (random.nextBoolean()) {
+          a = a.subList(first);
+        } else {
+          for (int i = 0; i < first; i++) a = a.shift();
+        }
+        int unshifts = random.nextInt(100);
+        for (int i = 0; i < unshifts; i++) a = a.unshift(--first);
+      }
+      ArrayList<Integer> control = new ArrayList<Integer>(a);
+      assert(_chunks(a).equals(control));
+      assert(_iteratedChunks(a).equals(control));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ArrayList<Integer> _chunks(ImmutableCollection<Integer> a) {
+    ArrayList<Integer> result = new ArrayList<>();
+    a.forEachChunk((chunk, offset, length) -> {
+      assert(length > 0 && offset >= 0 && offset + length <= chunk.length);
+      for (int i = 0; i < length; i++) result.add((Integer)chunk[offset + i]);
+    });
+    return result;
+  }
+
+  private static ArrayList<Integer> _iteratedChunks(ImmutableCollection<Integer> a) {
+    ArrayList<Integer> result = new ArrayList<>();
+    ImmutableCollection.ChunkIterator it = a.chunkIterator();
+    while (it.advance()) {
+      Object chunk[] = it.chunk();
+      assert(it.length() > 0 && it.offset() + it.length() <= chunk.length);
+      for (int i = 0; i < it.length(); i++) result.add((Integer)chunk[it.offset() + i]);
+    }
+    assert(!it.advance());
+    return result;
+  }
+
+  private static void search_test() {
+    Random random = new Random(1034210342);
+    boolean saw_rope = false;
+    for (int z = 0; z < 300; z++) {
+      int len = random.nextInt(4) == 0 ? 256 * random.nextInt(20) : random.nextInt(5000);
+      int range = 1 + random.nextInt(len + 1);
+      ArrayList<Integer> control = new ArrayList<>();
+      for (int i = 0; i < len; i++) control.add(random.nextInt(range) * 2);
+      control.sort(null);
+      ImmutableCollection<Integer> a = new ImmutableArray<Integer>(control);
+      switch (random.nextInt(3)) {
+        case 1: {
+          // A deque, with an offset and nulled out subtrees on the left.
+          int first = random.nextInt(len + 1);
+          for (int i = 0; i < first; i++) a = a.shift();
+          control.subList(0, first).clear();
+          int unshifts = random.nextInt(50);
+          for (int i = 0; i < unshifts; i++) {
+            a = a.unshift(-2 * i - 2);
+            control.add(0, -2 * i - 2);
+          }
+          break;
+        }
+        case 2: {
+          // A rope.
+          int split = random.nextInt(len + 1);
+          a = a.subList(0, split).concat(a.subList(split));
+          if (a instanceof ImmutableRope) saw_rope = true;
+          break;
+        }
+      }
+      Comparator<Integer> order = random.nextBoolean() ? null : Comparator.naturalOrder();
+      for (int i = 0; i < 20; i++) {
+        // Even keys may be present, odd keys never are.
+        int key = random.nextInt(2 * range + 4) - 2;
+        long lower = 0;
+        while (lower < control.size() && control.get((int)lower) < key) lower++;
+        long upper = lower;
+        while (upper < control.size() && control.get((int)upper) == key) upper++;
+        assert(a.lowerBound(key, order) == lower);
+        assert(a.upperBound(key, order) == upper);
+        long found = a.binarySearch(key, order);
+        if (lower == upper) {
+          assert(found == -lower - 1);
+        } else {
+          assert(found >= lower && found < upper);
+        }
+        assert(a.subList(lower, upper).size() == upper - lower);
+      }
+    }
+    assert(saw_rope);
+  }
+
+  private static void cursor_test() {
+    Random random = new Random(1034210342);
+    for (int z = 0; z < 200; z++) {
+      int len = random.nextInt(4) == 0 ? 256 * random.nextInt(20) : random.nextInt(10000);
+      ImmutableCollection<Integer> a = empty();
+      for (int i = 0; i < len; i++) a = a.push(i);
+      int first = 0;
+      if (len != 0 && random.nextBoolean()) {
+        // A deque, with an offset and nulled out subtrees on the left.
+        first = random.nextInt(len);
+        for (int i = 0; i < first; i++) a = a.shift();
+        int unshifts = random.nextInt(100);
+        for (int i = 0; i < unshifts; i++) a = a.unshift(--first);
+      }
+      ImmutableArray.Cursor<Integer> cursor;
+      if (a instanceof ImmutableDeque) {
+        cursor = ((ImmutableDeque<Integer>)a).cursor();
+      } else {
+        cursor = ((ImmutableArray<Integer>)a).cursor();
+      }
+      assert(cursor.longSize() == a.longSize());
+      int size = a.size();
+      if (size == 0) continue;
+      // Strided, windowed, backwards and random access.
+      int stride = 1 + random.nextInt(100);
+      for (int i = 0; i < size; i += stride) assert(cursor.get(i) == first + i);
+      int window = 1 + random.nextInt(50);
+      for (int i = 0; i + window <= size; i += window / 2 + 1) {
+        for (int j = 0; j < window; j++) assert(cursor.get(i + j) == first + i + j);
+      }
+      for (int i = size - 1; i >= 0; i--) assert(cursor.get(i) == first + i);
+      for (int i = 0; i < 100; i++) {
+        int index = random.nextInt(size);
+        assert(cursor.get(index) == first + index);
+      }
+      boolean thrown = false;
+      try {
+        cursor.get(size);
+      } catch (IndexOutOfBoundsException e) {
+        thrown = true;
+      }
+      assert(thrown);
+    }
+  }
+
+  private static void focus_test() {
+    Random random = new Random(1034210342);
+    for (int z = 0; z < 300; z++) {
+      int len = random.nextInt(4) == 0 ? 256 * random.nextInt(20) : random.nextInt(5000);
+      ImmutableCollection<Integer> a = empty();
+      ArrayList<Integer> control = new ArrayList<>();
+      for (int i = 0; i < len; i++) {
+        a = a.push(i);
+        control.add(i);
+      }
+      if (len != 0 && random.nextBoolean()) {
+        // A deque, with nulled out subtrees on the left to update.
+        int first = random.nextInt(len);
+        for (int i = 0; i < first; i++) {
+          a = a.shift();
+          control.remove(0);
+        }
+        int unshifts = random.nextInt(100);
+        for (int i = 0; i < unshifts; i++) {
+          a = a.unshift(-i);
+          control.add(0, -i);
+        }
+      }
+      ArrayList<ImmutableCollection<Integer>> versions = new ArrayList<>();
+      ArrayList<ArrayList<Integer>> controls = new ArrayList<>();
+      for (int step = 0; step < 200 && a.size() != 0; step++) {
+        int size = a.size();
+        // Mostly runs of clustered updates, which use the focus, with
+        // scattered updates and other operations that have to see them.
+        int op = random.nextInt(10);
+        if (op < 6) {
+          int base = random.nextInt(size);
+          int run = random.nextInt(20);
+          for (int i = 0; i < run; i++) {
+            int index = Math.min(size - 1, base + random.nextInt(40));
+            int value = random.nextInt();
+            a = a.atPut(index, value);
+            control.set(index, value);
+            assert(a.get(index) == value);
+          }
+        } else if (op == 6) {
+          int value = random.nextInt();
+          a = a.push(value);
+          control.add(value);
+        } else if (op == 7) {
+          a = a.shift();
+          control.remove(0);
+        } else if (op == 8) {
+          a = a.unshift(step);
+          control.add(0, step);
+        } else {
+          a = a.trim();
+          control.remove(control.size() - 1);
+        }
+        if (random.nextInt(5) == 0) {
+          versions.add(a);
+          controls.add(new ArrayList<>(control));
+        }
+        assert(a.size() == control.size());
+      }
+      for (int i = 0; i < a.size(); i++) assert(a.get(i).equals(control.get(i)));
+      int j = 0;
+      for (int x : a) assert(x == control.get(j++));
+      assert(a.equals(new ImmutableArray<Integer>(control)));
+      assert(a.hashCode() == control.hashCode());
+      // Older versions are not affected by later updates.
+      for (int v = 0; v < versions.size(); v++) {
+        ImmutableCollection<Integer> version = versions.get(v);
+        ArrayList<Integer> expected = controls.get(v);
+        assert(version.size() == expected.size());
+        for (int i = 0; i < version.size(); i++) assert(version.get(i).equals(expected.get(i)));
+        assert(version.equals(new ImmutableArray<Integer>(expected)));
+        assert(version.stream().collect(Collectors.toList()).equals(expected));
+      }
+    }
+  }
+
+  // Once the path to the focus has been copied, the replaced element is no
+  // longer reachable from the new array.
+  private static void focus_leak_test() {
+    for (int z = 0; z < 2; z++) {
+      ImmutableCollection<Object> a = empty();
+      for (int i = 0; i < 1000; i++) a = a.push(new Object());
+      WeakReference<Object> replaced = new WeakReference<>(a.get(100));
+      a = a.atPut(100, "new");
+      if (z == 0) {
+        // An atPut in another leaf.
+        a = a.atPut(500, "other");
+      } else {
+        // An operation that does not know about the focus.
+        a = a.map((x) -> x);
+      }
+      for (int i = 0; i < 10 && replaced.get() != null; i++) System.gc();
+      assert(replaced.get() == null);
+      assert(a.get(100).equals("new"));
+    }
+  }
+
+  private static void queue_test() {
+    Random random = new Random(1034210342);
+    for (int z = 0; z < 100; z++) {
+      ImmutableCollection<Integer> queue = empty();
+      ArrayList<Integer> control = new ArrayList<>();
+      for (int step = 0; step < 3000; step++) {
+        // Runs of the same operation, so the head fills up and empties.
+        int op = random.nextInt(5);
+        int run = random.nextInt(step % 7 == 0 ? 300 : 20);
+        for (int i = 0; i < run; i++) {
+          if (op == 0 || op == 1) {
+            queue = queue.push(step);
+            control.add(step);
+          } else if (op == 2 && control.size() != 0) {
+            assert(queue.get(0).equals(control.get(0)));
+            queue = queue.shift();
+            control.remove(0);
+          } else if (op == 3) {
+            queue = queue.unshift(-step);
+            control.add(0, -step);
+          } else if (op == 4 && control.size() != 0) {
+            queue = queue.trim();
+            control.remove(control.size() - 1);
+          }
+        }
+        assert(queue.size() == control.size());
+        if (control.size() != 0) {
+          int index = random.nextInt(control.size());
+          assert(queue.get(index).equals(control.get(index)));
+          int value = random.nextInt();
+          ImmutableCollection<Integer> changed = queue.atPut(index, value);
+          assert(changed.get(index) == value);
+          assert(queue.get(index).equals(control.get(index)));
+        }
+      }
+      int j = 0;
+      for (int x : queue) assert(x == control.get(j++));
+      j = 0;
+      ListIterator<Integer> it = queue.listIterator();
+      while (it.hasNext()) assert(it.next().equals(control.get(j++)));
+      assert(queue.equals(new ImmutableArray<Integer>(control)));
+      assert(queue.hashCode() == control.hashCode());
+      assert(queue.stream().collect(Collectors.toList()).equals(control));
+      assert(queue.parallelStream().collect(Collectors.toList()).equals(control));
+      // Walk back and forth across the end of the head.
+      int start = random.nextInt(control.size() + 1);
+      it = queue.listIterator(start);
+      for (j = start; j > 0; j--) assert(it.previous().equals(control.get(j - 1)));
+      for (j = 0; j < control.size(); j++) assert(it.next().equals(control.get(j)));
+      ArrayList<Object> chunked = new ArrayList<>();
+      ImmutableCollection.ChunkIterator chunks = queue.chunkIterator();
+      while (chunks.advance()) {
+        assert(chunks.length() > 0);
+        for (int i = 0; i < chunks.length(); i++) chunked.add(chunks.chunk()[chunks.offset() + i]);
+      }
+      assert(chunked.equals(control));
+      chunked.clear();
+      queue.forEachChunk((chunk, offset, length) -> {
+        for (int i = 0; i < length; i++) chunked.add(chunk[offset + i]);
+      });
+      assert(chunked.equals(control));
+      if (control.size() > 2) {
+        int from = random.nextInt(control.size());
+        int to = from + random.nextInt(control.size() - from);
+        assert(queue.subList(from, to).equals(new ImmutableArray<Integer>(control.subList(from, to))));
+        assert(queue.subList(from).equals(new ImmutableArray<Integer>(control.subList(from, control.size()))));
+      }
+      boolean thrown = false;
+      try {
+        queue.get(queue.size());
+      } catch (IndexOutOfBoundsException e) {
+        thrown = true;
+      }
+      assert(thrown);
+    }
+
+    // A long sliding window does not keep a deep, mostly unused tree.
+    int m = _branching;
+    for (int window : new int[] { 1, 10, 1000, 5000 }) {
+      ImmutableCollection<Integer> queue = empty();
+      for (int i = 0; i < 200000; i++) {
+        queue = queue.push(i);
+        if (i >= window) {
+          assert(queue.get(0) == i - window);
+          queue = queue.shift();
+        }
+        if (queue instanceof ImmutableDeque) {
+          long wasted = ((ImmutableDeque<Integer>)queue).wastedSlots();
+          assert(wasted <= Math.max(queue.size(), m * m));
+        }
+      }
+      assert(queue.size() == window);
+      for (int i = 0; i < window; i++) assert(queue.get(i) == 200000 - window + i);
+    }
+  }
+
+  private static void collector_test() {
+    Random random = new Random(1034210342);
+    for (int z = 0; z < 100; z++) {
+      int len = random.nextInt(z < 50 ? 100 : 200000);
+      ArrayList<Integer> control = new ArrayList<>();
+      for (int i = 0; i < len; i++) control.add(random.nextInt());
+      ImmutableCollection<Integer> sequential = control.stream().collect(ImmutableArray.collector(_branching));
+      assert(sequential instanceof ImmutableArray);
+      assert(sequential.equals(new ImmutableArray<Integer>(control)));
+      ImmutableCollection<Integer> parallel = control.parallelStream().collect(ImmutableArray.collector(_branching));
+      assert(parallel.longSize() == len);
+      assert(parallel.equals(sequential));
+      for (int i = 0; i < 100 && len != 0; i++) {
+        int index = random.nextInt(len);
+        assert(parallel.get(index).equals(control.get(index)));
+      }
+      // The result can be used as usual, and collected from again.
+      ImmutableCollection<Integer> again = parallel.parallelStream().filter((x) -> (x & 1) == 0).collect(ImmutableArray.collector(_branching));
+      assert(again.equals(control.stream().filter((x) -> (x & 1) == 0).collect(ImmutableArray.collector(_branching))));
+    }
+  }
+
+  private static void rebuild_test() {
+    Random random = new Random(1034210342);
+    int m = _branching;
+    for (int z = 0; z < 200; z++) {
+      int len = random.nextInt(z < 100 ? 1000 : 100000);
+      ImmutableArray<Integer> array = empty();
+      for (int i = 0; i < len; i++) array = array.push(i);
+      ArrayList<Integer> control = new ArrayList<>();
+      // A few changes, often only near the end, and sometimes a removal that
+      // is balanced by an insertion, so the rest is aligned again.
+      int changes = random.nextInt(5);
+      int first = len == 0 ? 0 : random.nextInt(len);
+      if (random.nextBoolean()) first = Math.max(0, len - random.nextInt(100));
+      RebuildIterator<Integer> it = array.rebuildIterator();
+      int index = 0;
+      while (it.hasNext()) {
+        int x = it.next();
+        if (index >= first && changes > 0 && random.nextInt(50) == 0) {
+          changes--;
+          switch (random.nextInt(4)) {
+            case 0:
+              it.remove();
+              it.insert(-x);
+              control.add(-x);
+              break;
+            case 1:
+              it.remove();
+              break;
+            case 2:
+              it.set(-x);
+              control.add(-x);
+              break;
+            default:
+              control.add(x);
+              Integer extra[] = new Integer[random.nextInt(3 * m)];
+              for (int i = 0; i < extra.length; i++) {
+                extra[i] = -i;
+                control.add(-i);
+              }
+              it.insertAll(extra);
+          }
+        } else {
+          control.add(x);
+        }
+        index++;
+      }
+      assert(it.size() == control.size());
+      ImmutableArray<Integer> result = it.build();
+      assert(result.equals(new ImmutableArray<Integer>(control)));
+      int j = 0;
+      for (int x : it) assert(x == control.get(j++));
+      assert(j == control.size());
+      // The leaves before the first change are shared with the original.
+      ImmutableCollection.ChunkIterator original_chunks = array.chunkIterator();
+      ImmutableCollection.ChunkIterator result_chunks = result.chunkIterator();
+      for (long start = 0; start + m <= first && start + m <= result.longSize(); start += m) {
+        assert(original_chunks.advance());
+        assert(result_chunks.advance());
+        if (original_chunks.length() == m) assert(original_chunks.chunk() == result_chunks.chunk());
+      }
+    }
+  }
+
+  private static void parallel_filter_test() {
+    Random random = new Random(1034210342);
+    for (int z = 0; z < 50; z++) {
+      int len = random.nextInt(z < 25 ? 100 : 300000);
+      ImmutableCollection<Integer> collection = empty();
+      for (int i = 0; i < len; i++) collection = collection.push(random.nextInt(1000));
+      // Sometimes a deque or a rope.
+      if (len > 1 && random.nextBoolean()) collection = collection.subList(random.nextInt(len / 2));
+      if (random.nextInt(3) == 0) collection = collection.concat(collection);
+      int modulus = 1 + random.nextInt(20);
+      assert(collection.parallelFilterIf((x) -> x % modulus == 0).equals(collection.filterIf((x) -> x % modulus == 0)));
+      assert(collection.parallelFilterIf((x) -> false) == collection);
+      assert(collection.parallelFilterIf((x) -> true).size() == 0);
+      HashSet<Integer> set = new HashSet<>();
+      for (int i = 0; i < 100; i++) set.add(random.nextInt(1000));
+      assert(collection.parallelFilterAll(set).equals(collection.filterAll(set)));
+      assert(collection.parallelSelectAll(set).equals(collection.selectAll(set)));
+    }
+  }
+
+  private static void view_test() {
+    Random random = new Random(1034210342);
+    for (int z = 0; z < 300; z++) {
+      int len = random.nextInt(z < 200 ? 100 : 20000);
+      ImmutableCollection<Integer> collection = empty();
+      for (int i = 0; i < len; i++) collection = collection.push(random.nextInt(1000));
+      // Sometimes a deque or a rope.
+      if (len > 1 && random.nextBoolean()) collection = collection.subList(random.nextInt(len / 2));
+      if (random.nextInt(3) == 0) collection = collection.concat(collection);
+      // Run the same random steps on a view and on a stream.
+      ImmutableView<Integer> view = collection.view();
+      Stream<Integer> control = collection.stream();
+      int steps = random.nextInt(5);
+      for (int i = 0; i < steps; i++) {
+        int n = random.nextInt(len + 2);
+        switch (random.nextInt(4)) {
+          case 0:
+            int modulus = 1 + random.nextInt(5);
+            view = view.filter((x) -> x % modulus != 0);
+            control = control.filter((x) -> x % modulus != 0);
+            break;
+          case 1:
+            view = view.map((x) -> x * 3 + 1);
+            control = control.map((x) -> x * 3 + 1);
+            break;
+          case 2:
+            view = view.take(n);
+            control = control.limit(n);
+            break;
+          case 3:
+            view = view.drop(n);
+            control = control.skip(n);
+            break;
+        }
+      }
+      ImmutableArray<Integer> expected = new ImmutableArray<>(control.collect(Collectors.toList()));
+      assert(view.toImmutable().equals(expected));
+      // A view can be run again.
+      assert(view.toImmutable().equals(expected));
+      assert(view.count() == expected.longSize());
+      ArrayList<Integer> each = new ArrayList<>();
+      view.forEach((x) -> each.add(x));
+      assert(new ImmutableArray<Integer>(each).equals(expected));
+    }
+    ImmutableCollection<Integer> collection = empty();
+    for (int i = 0; i < 10000; i++) collection = collection.push(i);
+    // Only take and drop: no copying.
+    assert(collection.view().toImmutable() == collection);
+    assert(collection.view().drop(10).take(20).toImmutable().equals(collection.subList(10, 30)));
+    assert(collection.view().drop(20000).toImmutable().size() == 0);
+    // The functions are only called for the elements that are needed.
+    int calls[] = new int[1];
+    ImmutableView<Integer> view = collection.view().map((x) -> { calls[0]++; return x; }).drop(100).filter((x) -> (x & 1) == 0).take(5);
+    assert(calls[0] == 0);
+    assert(view.toImmutable().equals(new ImmutableArray<Integer>(Arrays.asList(100, 102, 104, 106, 108))));
+    assert(calls[0] == 9);
+    try {
+      collection.view().take(-1);
+      assert(false);
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  private static void codec_test() {
+    Random random = new Random(1034210342);
+    for (int z = 0; z < 200; z++) {
+      int len = random.nextInt(z < 100 ? 40 : 20000);
+      ImmutableCollection<Integer> ints = empty();
+      // Some runs, and some values that need long varints.
+      int value = 0;
+      for (int i = 0; i < len; i++) {
+        if (random.nextInt(4) == 0) value = random.nextInt(3) == 0 ? random.nextInt() : random.nextInt(100) - 50;
+        ints = ints.push(value);
+      }
+      // Sometimes make it a deque, or a rope.
+      if (len > 0 && random.nextBoolean()) ints = ints.subList(random.nextInt(len));
+      if (random.nextInt(3) == 0) ints = ints.concat(ints);
+      boolean run_length = random.nextBoolean();
+      // Small buffers test the refilling and the growing of the buffer.
+      int buffer_size = random.nextBoolean() ? 1 + random.nextInt(20) : 1 << 16;
+      ElementCodec<Integer> codec = random.nextBoolean() ? ElementCodec.INTS : ElementCodec.VAR_INTS;
+      ImmutableArray<Integer> result = _roundTrip(ints, new ImmutableArrayCodec<Integer>(codec, run_length, buffer_size));
+      assert(result.equals(ints));
+
+      ImmutableCollection<String> strings = ints.map((x) -> x == 0 ? null : x % 7 == 0 ? new String(new char[Math.abs(x % 1000)]).replace('\0', '\u00e5') : "" + x);
+      ImmutableArray<String> string_result = _roundTrip(strings, new ImmutableArrayCodec<String>(ElementCodec.STRINGS, run_length, buffer_size));
+      assert(string_result.equals(strings));
+
+      ImmutableCollection<Long> longs = ints.map((x) -> (long)x * x * (x & 3));
+      assert(_roundTrip(longs, new ImmutableArrayCodec<Long>(ElementCodec.VAR_LONGS, run_length, buffer_size)).equals(longs));
+      assert(_roundTrip(longs, new ImmutableArrayCodec<Long>(ElementCodec.LONGS, run_length, buffer_size)).equals(longs));
+      ImmutableCollection<Double> doubles = ints.map((x) -> x / 3.0);
+      assert(_roundTrip(doubles, new ImmutableArrayCodec<Double>(ElementCodec.DOUBLES)).equals(doubles));
+    }
+    // A truncated stream is an error.
+    ImmutableCollection<Integer> ints = empty();
+    for (int i = 0; i < 1000; i++) ints = ints.push(i);
+    ImmutableArrayCodec<Integer> codec = new ImmutableArrayCodec<>(ElementCodec.INTS);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      codec.write(ints, Channels.newChannel(out));
+      byte bytes[] = Arrays.copyOf(out.toByteArray(), out.size() - 3);
+      codec.read(Channels.newChannel(new ByteArrayInputStream(bytes)));
+      assert(false);
+    } catch (IOException e) {
+    }
+    // So is a varint of more than 10 bytes.
+    byte long_varint[] = new byte[12];
+    Arrays.fill(long_varint, 1, 11, (byte)0x80);
+    long_varint[11] = 1;
+    try {
+      codec.read(Channels.newChannel(new ByteArrayInputStream(long_varint)));
+      assert(false);
+    } catch (IOException e) {
+      assert(!(e instanceof EOFException));
+    }
+    // A channel that has no data ready is not polled forever.
+    ReadableByteChannel not_ready = new ReadableByteChannel() {
+      public int read(ByteBuffer buffer) { return 0; }
+      public boolean isOpen() { return true; }
+      public void close() {}
+    };
+    try {
+      codec.read(not_ready);
+      assert(false);
+    } catch (IOException e) {
+    }
+    // With a buffer of our own, the bytes after a collection are kept, so
+    // several collections can be read from one stream.
+    ImmutableCollection<String> strings = ints.map((x) -> "" + x / 10);
+    ImmutableArrayCodec<String> string_codec = new ImmutableArrayCodec<>(ElementCodec.STRINGS, true);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      WritableByteChannel out_channel = Channels.newChannel(out);
+      codec.write(ints, out_channel);
+      string_codec.write(strings, out_channel);
+      codec.write(ints.subList(0, 0), out_channel);
+      out.write(42);
+      for (int z = 0; z < 20; z++) {
+        ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(out.toByteArray()));
+        ByteBuffer buffer = ByteBuffer.allocate(10 + random.nextInt(5000));
+        buffer.limit(0);
+        assert(codec.read(in, buffer).equals(ints));
+        assert(string_codec.read(in, buffer).equals(strings));
+        assert(codec.read(in, buffer).size() == 0);
+        assert(buffer.remaining() == 1 && buffer.get() == 42);
+      }
+      // The buffer does not grow.
+      out.reset();
+      string_codec.write(strings, Channels.newChannel(out));
+      ByteBuffer small = ByteBuffer.allocate(2);
+      small.limit(0);
+      try {
+        string_codec.read(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), small);
+        assert(false);
+      } catch (IOException e) {
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static <E> ImmutableArray<E> _roundTrip(ImmutableCollection<E> collection, ImmutableArrayCodec<E> codec) {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      codec.write(collection, Channels.newChannel(out));
+      return codec.read(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // A deque that starts in the last leaf of its backing only keeps the tail,
+  // so later pushes build a new tree instead of landing in the old one.
+  private static void trim_left_test() {
+    for (int size = 2; size < 80; size++) {
+      ImmutableCollection<Integer> a = empty();
+      for (int i = 0; i < size; i++) a = a.push(i);
+      for (int cut = 1; cut < size; cut++) {
+        ImmutableCollection<Integer> deque = a.subList(cut);
+        for (int i = size; i < size + 40; i++) deque = deque.push(i);
+        assert(deque.size() == size + 40 - cut);
+        for (int i = 0; i < deque.size(); i++) assert(deque.get(i) == cut + i);
+      }
+    }
+  }
+
+  // The indices of the list iterator of a deque count from its start, not
+  // from the start of its backing.
+  private static void deque_list_iterator_test() {
+    ImmutableCollection<Integer> a = empty();
+    for (int i = 0; i < 100; i++) a = a.push(i);
+    for (int cut = 1; cut < 90; cut += 7) {
+      ImmutableCollection<Integer> deque = a.subList(cut);
+      ListIterator<Integer> it = deque.listIterator();
+      for (int i = 0; i < deque.size(); i++) {
+        assert(it.nextIndex() == i);
+        assert(it.previousIndex() == i - 1);
+        assert(it.next() == cut + i);
+      }
+      assert(it.nextIndex() == deque.size());
+      it = deque.listIterator(3);
+      assert(it.nextIndex() == 3);
+      assert(it.previous() == cut + 2);
+      assert(it.nextIndex() == 2);
+    }
+  }
+
+  private static void empty_sub_list_test() {
+    ImmutableCollection<Integer> a = empty();
+    for (int i = 0; i < 100; i++) a = a.push(i);
+    ImmutableCollection<Integer> deque = a.subList(10);
+    for (int i = 0; i <= 90; i++) {
+      assert(a.subList(i, i).size() == 0);
+      assert(deque.subList(i, i).size() == 0);
+      assert(deque.subList(i, i).push(42).get(0) == 42);
+    }
+  }
+
+  private static void builder_test() {
+    ImmutableArray.Builder<Integer> builder = new ImmutableArray.Builder<>(_branching);
+    ArrayList<ImmutableArray<Integer>> built = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      if ((i & 0x7f) == 0 || i < 300) built.add(builder.build());
+      builder.push(i);
+    }
+    built.add(builder.build());
+    // Continuing to push after build() must not disturb earlier results.
+    for (ImmutableArray<Integer> a : built) {
+      int j = 0;
+      for (int x : a) assert(x == j++);
+      assert(j == a.size());
+      for (j = 0; j < a.size(); j++) assert(a.get(j) == j);
+      // Also check that they work as normal ImmutableArrays.
+      ImmutableArray<Integer> pushed = a.push(a.size());
+      assert(pushed.get(a.size()) == a.size());
+      if (a.size() > 3) assert(a.trim(3).size() == a.size() - 3);
+    }
+
+    Random random = new Random(1034210342);
+    for (int z = 0; z < 200; z++) {
+      int len = random.nextInt(2000);
+      ImmutableArray<Integer> a = empty();
+      for (int i = 0; i < len; i++) a = a.push(i);
+      a = a.trim(random.nextInt(len + 1));
+      ImmutableArray.Builder<Integer> b = a.asTransient();
+      assert(b.longSize() == a.longSize());
+      int extra = random.nextInt(1000);
+      for (int i = 0; i < extra; i++) b.push(a.size() + i);
+      ImmutableArray<Integer> result = b.build();
+      assert(result.size() == a.size() + extra);
+      int j = 0;
+      for (int x : result) assert(x == j++);
+      for (j = 0; j < a.size(); j++) assert(a.get(j) == j);
+    }
+  }
+
+  private static void primitive_array_test() {
+    Random random = new Random(1034210342);
+    for (int z = 0; z < 300; z++) {
+      int len = random.nextInt(4) == 0 ? 256 * random.nextInt(20) : random.nextInt(5000);
+      ArrayList<Integer> control = new ArrayList<>();
+      ImmutableIntArray ints = new ImmutableIntArray();
+      ImmutableLongArray longs = new ImmutableLongArray();
+      ImmutableDoubleArray doubles = new ImmutableDoubleArray();
+      while (control.size() < len) {
+        if (random.nextBoolean()) {
+          int x = random.nextInt();
+          control.add(x);
+          ints = ints.push(x);
+          longs = longs.push(x);
+          doubles = doubles.push(x);
+        } else {
+          int chunk[] = new int[random.nextInt(40)];
+          long long_chunk[] = new long[chunk.length];
+          double double_chunk[] = new double[chunk.length];
+          for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = random.nextInt();
+            long_chunk[i] = chunk[i];
+            double_chunk[i] = chunk[i];
+            control.add(chunk[i]);
+          }
+          ints = ints.pushAll(chunk);
+          longs = longs.pushAll(long_chunk);
+          doubles = doubles.pushAll(double_chunk);
+        }
+      }
+      len = control.size();
+      assert(ints.size() == len && longs.size() == len && doubles.size() == len);
+      for (int i = 0; i < len; i++) {
+        assert(ints.getInt(i) == control.get(i));
+        assert(longs.getLong(i) == control.get(i));
+        assert(doubles.getDouble(i) == control.get(i));
+      }
+      if (len != 0) {
+        int posn = random.nextInt(len);
+        ImmutableIntArray changed = ints.atPut(posn, 42);
+        ImmutableLongArray changed_longs = longs.atPut(posn, 42);
+        ImmutableDoubleArray changed_doubles = doubles.atPut(posn, 42);
+        assert(changed.getInt(posn) == 42);
+        assert(changed_longs.getLong(posn) == 42);
+        assert(changed_doubles.getDouble(posn) == 42);
+        assert(ints.getInt(posn) == control.get(posn));
+        for (int i = 0; i < len; i++) {
+          if (i != posn) assert(changed.getInt(i) == control.get(i));
+        }
+      }
+      int from = random.nextInt(len + 1);
+      int to = from + random.nextInt(len - from + 1);
+      ImmutableIntArray sub = ints.subList(from, to);
+      ImmutableLongArray long_sub = longs.subList(from, to);
+      ImmutableDoubleArray double_sub = doubles.subList(from, to);
+      assert(sub.size() == to - from);
+      int index[] = new int[1];
+      sub.forEach((int x) -> { assert(x == control.get(from + index[0]++)); });
+      assert(index[0] == to - from);
+      index[0] = 0;
+      long_sub.forEach((long x) -> { assert(x == control.get(from + index[0]++)); });
+      index[0] = 0;
+      double_sub.forEach((double x) -> { assert(x == control.get(from + index[0]++)); });
+      int array[] = sub.toArray();
+      assert(array.length == to - from);
+      for (int i = 0; i < array.length; i++) assert(array[i] == control.get(from + i));
+      assert(Arrays.equals(long_sub.toArray(), Arrays.stream(array).asLongStream().toArray()));
+      assert(Arrays.equals(double_sub.toArray(), Arrays.stream(array).asDoubleStream().toArray()));
+      // Aggregates respect the offset and the end of the sublist.
+      long expected_sum = 0;
+      long evens = 0;
+      for (int x : array) {
+        expected_sum += x;
+        if ((x & 1) == 0) evens++;
+      }
+      assert(sub.sum() == expected_sum && long_sub.sum() == expected_sum);
+      assert(double_sub.sum() == expected_sum);
+      assert(sub.count((int x) -> (x & 1) == 0) == evens);
+      assert(long_sub.count((long x) -> (x & 1) == 0) == evens);
+      assert(double_sub.count((double x) -> x >= 0) == Arrays.stream(array).filter((x) -> x >= 0).count());
+      if (array.length != 0) {
+        int expected_min = Arrays.stream(array).min().getAsInt();
+        int expected_max = Arrays.stream(array).max().getAsInt();
+        assert(sub.min() == expected_min && sub.max() == expected_max);
+        assert(long_sub.min() == expected_min && long_sub.max() == expected_max);
+        assert(double_sub.min() == expected_min && double_sub.max() == expected_max);
+      } else {
+        boolean thrown = false;
+        try {
+          sub.min();
+        } catch (NoSuchElementException e) {
+          thrown = true;
+        }
+        assert(thrown);
+      }
+      if (sub.size() != 0) {
+        // Sublists can be pushed to and trimmed.
+        ImmutableIntArray grown = sub.trim(random.nextInt(sub.size() + 1)).push(-1).push(-2);
+        for (int i = 0; i < grown.size() - 2; i++) assert(grown.getInt(i) == control.get(from + i));
+        assert(grown.getInt(grown.size() - 1) == -2);
+        assert(grown.getInt(grown.size() - 2) == -1);
+      }
+      int by = random.nextInt(len + 1);
+      ImmutableIntArray trimmed = ints.trim(by);
+      ImmutableLongArray long_trimmed = longs.trim(by);
+      assert(trimmed.size() == len - by && long_trimmed.size() == len - by);
+      for (int i = 0; i < len - by; i++) {
+        assert(trimmed.getInt(i) == control.get(i));
+        assert(long_trimmed.getLong(i) == control.get(i));
+      }
+      // Pushing on a trimmed array must not disturb the original.
+      trimmed = trimmed.pushAll(new int[] {1, 2, 3});
+      for (int i = 0; i < len; i++) assert(ints.getInt(i) == control.get(i));
+      assert(new ImmutableIntArray(ints.toArray()).size() == len);
+    }
+    // The sum of doubles is added up in order, even across leaves, so the
+    // rounding is that of a simple loop.
+    for (int offset = 0; offset < 100; offset += 33) {
+      ImmutableDoubleArray doubles = new ImmutableDoubleArray();
+      for (int i = 0; i < 200; i++) doubles = doubles.push(i == offset ? 1e16 : 1.0);
+      double expected = 0;
+      for (int i = offset; i < 200; i++) expected += doubles.getDouble(i);
+      assert(doubles.subList(offset).sum() == expected);
+    }
+  }
+
+  private static void off_heap_test() {
+    Random random = new Random(1034210342);
+    OffHeapArena arena = new OffHeapArena();
+    ImmutableOffHeapLongArray kept = null;
+    for (int z = 0; z < 200; z++) {
+      int len = random.nextInt(4) == 0 ? 256 * random.nextInt(20) : random.nextInt(5000);
+      ArrayList<Long> control = new ArrayList<>();
+      ImmutableOffHeapLongArray longs = new ImmutableOffHeapLongArray(arena);
+      while (control.size() < len) {
+        if (random.nextBoolean()) {
+          long x = random.nextLong();
+          control.add(x);
+          longs = longs.push(x);
+        } else {
+          long chunk[] = new long[random.nextInt(40)];
+          for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = random.nextLong();
+            control.add(chunk[i]);
+          }
+          longs = longs.pushAll(chunk);
+        }
+      }
+      len = control.size();
+      assert(longs.size() == len);
+      for (int i = 0; i < len; i++) assert(longs.getLong(i) == control.get(i));
+      if (len != 0) {
+        // Copy-on-write: the old version is unchanged.
+        int posn = random.nextInt(len);
+        ImmutableOffHeapLongArray changed = longs.atPut(posn, 42);
+        assert(changed.getLong(posn) == 42);
+        assert(longs.getLong(posn) == control.get(posn));
+        for (int i = 0; i < len; i++) {
+          if (i != posn) assert(changed.getLong(i) == control.get(i));
+        }
+      }
+      int from = random.nextInt(len + 1);
+      int to = from + random.nextInt(len - from + 1);
+      ImmutableOffHeapLongArray sub = longs.subList(from, to);
+      assert(sub.size() == to - from);
+      int index[] = new int[1];
+      sub.forEach((long x) -> { assert(x == control.get(from + index[0]++)); });
+      assert(index[0] == to - from);
+      long array[] = sub.toArray();
+      for (int i = 0; i < array.length; i++) assert(array[i] == control.get(from + i));
+      assert(sub.sum() == Arrays.stream(array).sum());
+      assert(sub.count((long x) -> x < 0) == Arrays.stream(array).filter((x) -> x < 0).count());
+      if (array.length != 0) {
+        assert(sub.min() == Arrays.stream(array).min().getAsLong());
+        assert(sub.max() == Arrays.stream(array).max().getAsLong());
+      }
+      // Trimming brings a leaf back from the arena as the tail.
+      int by = random.nextInt(len + 1);
+      ImmutableOffHeapLongArray trimmed = longs.trim(by).push(-1);
+      assert(trimmed.size() == len - by + 1);
+      for (int i = 0; i < len - by; i++) assert(trimmed.getLong(i) == control.get(i));
+      assert(trimmed.getLong(len - by) == -1);
+      kept = longs;
+    }
+    assert(arena.allocatedBytes() > 0);
+    arena.close();
+    assert(!arena.isOpen());
+    arena.close();
+    boolean thrown = false;
+    try {
+      kept.toArray();
+    } catch (IllegalStateException e) {
+      thrown = true;
+    }
+    assert(thrown);
+    // An action that closes the arena stops the walk before the next read.
+    for (int z = 0; z < 2; z++) {
+      OffHeapArena closing = new OffHeapArena();
+      ImmutableOffHeapLongArray a = new ImmutableOffHeapLongArray(closing, new long[1000]);
+      int calls[] = new int[1];
+      thrown = false;
+      try {
+        if (z == 0) {
+          a.forEach((x) -> {
+            calls[0]++;
+            closing.close();
+          });
+        } else {
+          a.count((x) -> {
+            calls[0]++;
+            closing.close();
+            return true;
+          });
+        }
+      } catch (IllegalStateException e) {
+        thrown = true;
+      }
+      assert(thrown);
+      assert(calls[0] == 1);
+    }
+    try (OffHeapArena scoped = new OffHeapArena()) {
+      ImmutableOffHeapLongArray a = new ImmutableOffHeapLongArray(scoped, new long[] {1, 2, 3});
+      assert(a.push(4).getLong(3) == 4);
+    }
+  }
+
+  private static void spliterator_test() {
+    Random random = new Random(1034210342);
+    for (int z = 0; z < 200; z++) {
+      int len = random.nextInt(4) == 0 ? 256 * random.nextInt(20) : random.nextInt(10000);
+      ImmutableCollection<Integer> a = empty();
+      for (int i = 0; i < len; i++) a = a.push(i);
+      int first = 0;
+      if (len != 0 && random.nextBoolean()) {
+        // Make a deque, with an offset and nulled out subtrees on the left.
+        first = random.nextInt(len);
+        a = a.subList(first);
+        int unshifts = random.nextInt(100);
+        for (int i = 0; i < unshifts; i++) a = a.unshift(--first);
+      }
+      final int start = first;
+      assert(a.stream().collect(Collectors.toList()).equals(new ArrayList<Integer>(a)));
+      assert(a.parallelStream().collect(Collectors.toList()).equals(new ArrayList<Integer>(a)));
+      long expected = 0;
+      for (int x : a) expected += x;
+      assert(a.parallelStream().mapToLong((x)-> x).sum() == expected);
+
+      // Split recursively and check that the parts are in order and that
+      // their sizes are exact.
+      ArrayList<Spliterator<Integer>> parts = new ArrayList<>();
+      parts.add(a.spliterator());
+      int splits = random.nextInt(20);
+      for (int i = 0; i < splits; i++) {
+        int victim = random.nextInt(parts.size());
+        Spliterator<Integer> whole = parts.get(victim);
+        long whole_size = whole.estimateSize();
+        Spliterator<Integer> prefix = whole.trySplit();
+        if (prefix == null) continue;
+        assert(prefix.hasCharacteristics(Spliterator.SUBSIZED));
+        assert(prefix.estimateSize() > 0 && whole.estimateSize() > 0);
+        assert(prefix.estimateSize() + whole.estimateSize() == whole_size);
+        parts.add(victim, prefix);
+      }
+      int next[] = { start };
+      for (Spliterator<Integer> part : parts) {
+        assert(part.characteristics() == (Spliterator.IMMUTABLE | Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED));
+        // Mix tryAdvance and forEachRemaining.
+        int advances = random.nextInt(40);
+        for (int i = 0; i < advances; i++) {
+          if (!part.tryAdvance((x)-> { assert(x == next[0]++); })) break;
+        }
+        part.forEachRemaining((x)-> { assert(x == next[0]++); });
+        assert(!part.tryAdvance((x)-> { assert(false); }));
+        assert(part.estimateSize() == 0);
+      }
+      assert(next[0] == start + a.size());
+    }
+  }
+
+  private static void rope_test() {
+    final int ITERATIONS = 3000;
+    final int ARRAYS = 10;
+    ArrayList<ArrayList<Integer>> control = new ArrayList<>();
+    ArrayList<ImmutableCollection<Integer>> arrays = new ArrayList<>();
+    Random random = new Random(1034210342);
+    int next_value = 0;
+    for (int i = 0; i < ARRAYS; i++) {
+      control.add(new ArrayList<Integer>());
+      ImmutableCollection<Integer> a = empty();
+      int len = random.nextInt(3000);
+      for (int j = 0; j < len; j++) {
+        a = a.push(next_value);
+        control.get(i).add(next_value++);
+      }
+      arrays.add(a);
+    }
+    boolean saw_rope = false;
+    for (int z = 0; z < ITERATIONS; z++) {
+      int src = random.nextInt(ARRAYS);
+      int dest = random.nextInt(ARRAYS);
+      ArrayList<Integer> c = new ArrayList<>(control.get(src));
+      ImmutableCollection<Integer> a = arrays.get(src);
+      int len = c.size();
+      switch (random.nextInt(8)) {
+        case 0: {
+          // Concatenate.
+          ArrayList<Integer> other = control.get(random.nextInt(ARRAYS));
+          ImmutableCollection<Integer> other_array = arrays.get(control.indexOf(other));
+          if (len + other.size() > 50000) {
+            a = empty();
+            c.clear();
+          } else if (random.nextInt(3) == 0) {
+            a = a.concat(other_array);
+            c.addAll(other);
+          } else if (random.nextBoolean()) {
+            // Copies the elements, even onto a rope.
+            a = a.pushAll(other_array);
+            c.addAll(other);
+          } else {
+            a = a.unshiftAll(other_array);
+            c.addAll(0, other);
+          }
+          break;
+        }
+        case 1: {
+          int from = random.nextInt(len + 1);
+          int to = from + random.nextInt(len - from + 1);
+          a = a.subList(from, to);
+          c = new ArrayList<>(c.subList(from, to));
+          break;
+        }
+        case 2: {
+          if (len != 0) {
+            int index = random.nextInt(len);
+            a = a.atPut(index, -index);
+            c.set(index, -index);
+          }
+          break;
+        }
+        case 3: {
+          int count = random.nextInt(20);
+          for (int i = 0; i < count; i++) {
+            a = a.push(next_value);
+            c.add(next_value++);
+          }
+          a = a.unshift(next_value);
+          c.add(0, next_value++);
+          break;
+        }
+        case 4: {
+          int by = random.nextInt(Math.min(len, 300) + 1);
+          a = a.trim(by);
+          for (int i = 0; i < by; i++) c.remove(c.size() - 1);
+          if (len > by) {
+            a = a.shift();
+            c.remove(0);
+          }
+          break;
+        }
+        case 5: {
+          Integer array[] = new Integer[random.nextInt(40)];
+          for (int i = 0; i < array.length; i++) array[i] = next_value++;
+          if (random.nextBoolean()) {
+            a = a.pushAll(array);
+            c.addAll(Arrays.asList(array));
+          } else {
+            a = a.unshiftAll(array);
+            c.addAll(0, Arrays.asList(array));
+          }
+          break;
+        }
+        case 6: {
+          if (len != 0) {
+            Integer needle = c.get(random.nextInt(len));
+            assert(a.indexOf(needle) == c.indexOf(needle));
+            assert(a.lastIndexOf(needle) == c.lastIndexOf(needle));
+          }
+          assert(a.indexOf(-1000000) == -1);
+          break;
+        }
+        case 7: {
+          // Random access and iteration in both directions.
+          for (int i = 0; i < 20 && len != 0; i++) {
+            int index = random.nextInt(len);
+            assert(a.get(index).equals(c.get(index)));
+          }
+          int start = random.nextInt(len + 1);
+          ListIterator<Integer> lit = a.listIterator(start);
+          int index = start;
+          for (int i = 0; i < 600; i++) {
+            if (random.nextBoolean() && lit.hasNext()) {
+              assert(lit.next().equals(c.get(index++)));
+            } else if (lit.hasPrevious()) {
+              assert(lit.previous().equals(c.get(--index)));
+            }
+            assert(lit.nextIndex() == index);
+          }
+          break;
+        }
+      }
+      if (a instanceof ImmutableRope) saw_rope = true;
+      control.set(dest, c);
+      arrays.set(dest, a);
+      assert(a.longSize() == c.size());
+      if ((z & 7) == 0) {
+        int i = 0;
+        for (int x : a) assert(x == c.get(i++));
+        assert(i == c.size());
+        ArrayList<Integer> each = new ArrayList<>();
+        a.forEach((x)-> each.add(x));
+        assert(each.equals(c));
+        assert(_chunks(a).equals(c));
+        assert(_iteratedChunks(a).equals(c));
+        assert(a.parallelStream().collect(Collectors.toList()).equals(c));
+        if (a.size() > 1) assert(new ArrayList<Integer>(a.subList(1, a.size() - 1)).equals(c.subList(1, c.size() - 1)));
+      }
+    }
+    assert(saw_rope);
+  }
+
   private static void ft_test(ImmutableCollection<Integer> ft, ImmutableCollection<Integer> empty) {
     Iterator<Integer> it = ft.iterator();
     assert(it.hasNext());
@@ -354,7 +1893,7 @@ class ImmutableArrayTest {
   }
 
   private static void simple_test() {
-    ImmutableCollection<Integer> empty = new ImmutableArray<>();
+    ImmutableCollection<Integer> empty = empty();
     assert(empty.size() == 0);
     assert(empty.isEmpty());
     for (int i : empty) {
@@ -410,7 +1949,7 @@ class ImmutableArrayTest {
     assert(!it.hasNext());
     assert(!lit.hasNext());
 
-    ImmutableCollection<Integer> p = new ImmutableArray<>();
+    ImmutableCollection<Integer> p = empty();
     for (int i = 0; i < 10; i++) {
       p = p.push(i * i);
     }
@@ -547,7 +2086,7 @@ class ImmutableArrayTest {
   }
 
   private static ImmutableCollection<Integer> factory(int n) {
-    ImmutableCollection<Integer> a = new ImmutableArray<>();
+    ImmutableCollection<Integer> a = empty();
     for (int i = 0; i < n; i++) a = a.push(i * i);
     ListIterator<Integer> at_end = a.listIterator(n);
     if (n != 0) assert(at_end.previous() == (n - 1) * (n - 1));
@@ -579,6 +2118,7 @@ class ImmutableArrayTest {
     ImmutableCollection<Integer> both;
     if (!a1_via_array && !a2_via_array) {
       both = a1.pushAll(a2);
+      assert(a1.concat(a2).equals(both));
     } else if (a1_via_array && !a2_via_array) {
       Integer array1[] = new Integer[(int)a1.longSize()];
       a1.toArray(array1);
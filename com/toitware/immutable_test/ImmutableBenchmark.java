@@ -4,14 +4,30 @@
 
 package com.toitware.immutable_test;
 
+import com.toitware.immutable.ElementCodec;
 import com.toitware.immutable.ImmutableArray;
+import com.toitware.immutable.ImmutableArrayCodec;
 import com.toitware.immutable.ImmutableCollection;
 import com.toitware.immutable.ImmutableDeque;
 import com.toitware.immutable.ImmutableHashMap;
+import com.toitware.immutable.ImmutableIntArray;
+import com.toitware.immutable.ImmutableLongArray;
+import com.toitware.immutable.ImmutableOffHeapLongArray;
+import com.toitware.immutable.OffHeapArena;
 import com.toitware.immutable.RebuildIterator;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -19,6 +35,7 @@ import java.util.ListIterator;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.pcollections.HashPMap;
 import org.pcollections.HashTreePMap;
@@ -35,7 +52,17 @@ import org.organicdesign.fp.collections.UnmodIterable;
 import org.organicdesign.fp.collections.UnmodList;
 
 abstract class ImmutableBenchmark {
+  // The branching factor of the ImmutableArrays that the benchmarks start
+  // from, set with --branching.
+  static int branching = 16;
+
   public static void main(String args[]) {
+    if (args.length == 1 && args[0].equals("--sweep-branching")) {
+      sweepBranchingFactors(ImmutableBenchmark.class);
+      return;
+    }
+    parseBranching(args);
+    System.out.println("Branching factor " + branching);
     new MapForEachBench().runs();
     new MapForEntriesBench().runs();
     new MapForKeysBench().runs();
@@ -63,11 +90,17 @@ abstract class ImmutableBenchmark {
     new PagForEachBench().runs();
     new RrbForEachBench().runs();
     new ForEachDequeBench().runs();
+    new ForEachRopeBench().runs();
+    new IntArrayForEachBench().runs();
+    new IntArraySumBench().runs();
     new IntLoopBench().runs();
+    new CursorLoopBench().runs();
     new PIntLoopBench().runs();
     new PagIntLoopBench().runs();
     new RrbIntLoopBench().runs();
     new IntLoopDequeBench().runs();
+    new IntLoopRopeBench().runs();
+    new IntArrayIntLoopBench().runs();
     new ArrayListForInBench().runs();
     new ArrayListForEachBench().runs();
     new ArrayListIntLoopBench().runs();
@@ -84,13 +117,49 @@ abstract class ImmutableBenchmark {
     new PagForEachBench().runs();
     new RrbForEachBench().runs();
     new ForEachDequeBench().runs();
+    new ForEachRopeBench().runs();
+    new IntArrayForEachBench().runs();
     new IntLoopBench().runs();
     new PIntLoopBench().runs();
     new PagIntLoopBench().runs();
     new RrbIntLoopBench().runs();
     new IntLoopDequeBench().runs();
+    new IntLoopRopeBench().runs();
+    new IntArrayIntLoopBench().runs();
+
+    new StreamSumBench().runs();
+    new ChunkSumBench().runs();
+    new ForEachSumBench().runs();
+    new IntArraySumLargeBench().runs();
+    new IntArrayMinMaxLargeBench().runs();
+    new MapByPushBench().runs();
+    new MapBench().runs();
+    new EqualsByIterationBench().runs();
+    new EqualsVersionsBench().runs();
+    new DiffVersionsBench().runs();
+    new SerializationRoundTripBench().runs();
+    new CodecRoundTripBench(ElementCodec.INTS, "ints").runs();
+    new CodecRoundTripBench(ElementCodec.VAR_INTS, "varints").runs();
+    new SearchByGetBench().runs();
+    new LowerBoundBench().runs();
+    new StridedGetBench().runs();
+    new StridedCursorBench().runs();
+    new ClusteredAtPutBench().runs();
+    new ScatteredAtPutBench().runs();
+    new FifoQueueBench(1000).runs();
+    new FifoQueueBench(1000000).runs();
+    new LeftStackBench().runs();
+    new ParallelStreamSumBench().runs();
+    new ParallelStreamSumDequeBench().runs();
+    new CollectViaListBench(false).runs();
+    new CollectViaListBench(true).runs();
+    new CollectBench(false).runs();
+    new CollectBench(true).runs();
+    new GcPauseBench(false).runs();
+    new GcPauseBench(true).runs();
 
     new Push1AtATimeBench().runs();
+    new BuilderPush1AtATimeBench().runs();
     //new KruPush1AtATimeBench().runs();
     new PPush1AtATimeBench().runs();
     new PagPush1AtATimeBench().runs();
@@ -98,16 +167,20 @@ abstract class ImmutableBenchmark {
     new Push2AtATimeBench().runs();
     new PagPush2AtATimeBench().runs();
     new PushAllBench().runs();
+    new ConcatBench().runs();
     new PPushAllBench().runs();
     new PagPushAllBench().runs();
     new RrbPushAllBench().runs();
     new RrbJoinAllBench().runs();
+    new JoinLargeBench().runs();
+    new RrbJoinLargeBench().runs();
     new PushAllFromListBench().runs();
     new PPushAllFromListBench().runs();
     new PagPushAllFromListBench().runs();
     new RrbPushAllFromListBench().runs();
     new PushAllListList().runs();
     new Insert1AtATimeBench().runs();
+    new InsertAtBench().runs();
     new PInsert1AtATimeBench().runs();
     new RrbInsert1AtATimeBench().runs();
     new InsertAllBench().runs();
@@ -120,15 +193,52 @@ abstract class ImmutableBenchmark {
     new PUnshiftingAllBench().runs();
     new UnshiftAllFromList().runs();
     new PUnshiftAllFromList().runs();
+    new UnshiftingAllLargeBench().runs();
+    new AtPutLoopBench().runs();
+    new AtPutAllBench().runs();
+    new RemoveAtBench(1000).runs();
+    new RemoveAtBench(1000000).runs();
+    new RemoveAtBench(10000000).runs();
     new RrbUnshiftOrPush1AtATimeBench().runs();
     new UnshiftOrPush1AtATimeBench().runs();
 
     new FilterAllBench().runs();
+    new SparseFilterIfBench(SparseFilterIfBench.SIZE - 100, SparseFilterIfBench.SIZE).runs();
+    new SparseFilterIfBench(SparseFilterIfBench.SIZE / 2, SparseFilterIfBench.SIZE).runs();
+    new SparseFilterIfBench(0, 1000).runs();
     new FilterAllWithSetBench().runs();
+    new ParallelFilterAllWithSetBench().runs();
+    new FilterAllWithSetLargeBench(false).runs();
+    new FilterAllWithSetLargeBench(true).runs();
+    new ChainedTransformBench(false).runs();
+    new ChainedTransformBench(true).runs();
     new FilterAllListBench().runs();
     new FilterAllListWithSetBench().runs();
   }
 
+  static void parseBranching(String args[]) {
+    if (args.length == 2 && args[0].equals("--branching")) branching = Integer.parseInt(args[1]);
+  }
+
+  // Each branching factor is run in a new JVM, so that the JIT only sees
+  // arrays of one family, as it would in a program that uses one.
+  static void sweepBranchingFactors(Class<?> program) {
+    String java = System.getProperty("java.home") + "/bin/java";
+    String class_path = System.getProperty("java.class.path");
+    for (int m : new int[] { 8, 16, 32, 64 }) {
+      try {
+        Process process = new ProcessBuilder(
+            java,
+            "-cp", class_path,
+            program.getName(),
+            "--branching", "" + m).inheritIO().start();
+        if (process.waitFor() != 0) throw new RuntimeException("Failed with branching factor " + m);
+      } catch (IOException | InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
   void runs() {
     long now = System.nanoTime();
     setup();
@@ -138,24 +248,42 @@ abstract class ImmutableBenchmark {
     }
 
     long start = System.nanoTime();
+    long allocated = allocatedBytes();
     long iterations = 1;
     while (System.nanoTime() - start < 2000000000) {
       run();
       iterations++;
     }
     long end = System.nanoTime();
+    allocated = allocatedBytes() - allocated;
 
-    System.out.println("" + name() + " " + (end - start) / (iterations * 1000L) + "us" + "    " + (end - start) / (iterations * 1000000L) + "ms");
+    String per_element = "";
+    if (elements() != 0) {
+      long total = iterations * elements();
+      per_element = String.format("    %.2fns/element    %.2f bytes/element", (end - start) / (double)total, allocated / (double)total);
+    }
+    System.out.println("" + name() + " " + (end - start) / (iterations * 1000L) + "us" + "    " + (end - start) / (iterations * 1000000L) + "ms" + per_element);
   }
 
   abstract void run();
   void setup() {}
   abstract String name();
 
+  // Benchmarks that override this to return the number of elements handled
+  // by each call to run() also get time and allocation per element reported.
+  long elements() { return 0; }
+
+  static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) return 0;
+    return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
   private static abstract class IterationBench extends ImmutableBenchmark {
     private long _sum;
     public long sum() { return _sum; }
     protected ImmutableArray<ImmutableCollection<Integer>> _top;
+    protected ImmutableArray<ImmutableIntArray> _ints;
     protected PVector<PVector<Integer>> _pvectors;
     protected ImList<ImList<Integer>> _paguro;
     protected RrbTree.ImRrbt<RrbTree.ImRrbt<Integer>> _rrbs;
@@ -163,14 +291,16 @@ abstract class ImmutableBenchmark {
 
     public void setup() {
       Random random = new Random(1034210342);
-      _top = new ImmutableArray<>();
+      _top = ImmutableArray.empty(branching);
+      _ints = ImmutableArray.empty(branching);
       _pvectors = TreePVector.<PVector<Integer>>empty();
       _paguro = PersistentVector.<ImList<Integer>>empty();
       _rrbs = RrbTree.ImRrbt.<RrbTree.ImRrbt<Integer>>empty();
       //_krukows = new ArrayList<com.github.krukow.clj_ds.PersistentVector<Integer>>();
       long sum = 0;
       for (int i = 0; i < 1000; i++) {
-        ImmutableArray<Integer> a = new ImmutableArray<>();
+        ImmutableArray<Integer> a = ImmutableArray.empty(branching);
+        ImmutableIntArray n = new ImmutableIntArray();
         PVector<Integer> p = TreePVector.<Integer>empty();
         ImList<Integer> l = PersistentVector.<Integer>empty();
         RrbTree.ImRrbt<Integer> r = RrbTree.ImRrbt.<Integer>empty();
@@ -178,6 +308,7 @@ abstract class ImmutableBenchmark {
         for (int j = 0; j < 1000; j++) {
           int x = random.nextInt(123);
           a = a.push(x);
+          n = n.push(x);
           p = p.plus(x);
           l = l.append(x);
           r = r.append(x);
@@ -185,6 +316,7 @@ abstract class ImmutableBenchmark {
           sum += x;
         }
         _top = _top.push(a);
+        _ints = _ints.push(n);
         _pvectors = _pvectors.plus(p);
         _paguro = _paguro.append(l);
         _rrbs = _rrbs.append(r);
@@ -198,6 +330,16 @@ abstract class ImmutableBenchmark {
         _top = _top.atPut(i, _top.get(i).unshift(0));
       }
     }
+
+    // Replace each array with the concatenation of its two halves, which is
+    // an ImmutableRope.
+    protected void ropeify() {
+      for (int i = 0; i < _top.size(); i++) {
+        ImmutableCollection<Integer> a = _top.get(i);
+        int half = a.size() >> 1;
+        _top = _top.atPut(i, a.subList(0, half).concat(a.subList(half)));
+      }
+    }
   }
 
   private static class ForInBench extends IterationBench {
@@ -439,6 +581,15 @@ abstract class ImmutableBenchmark {
     }
   }
 
+  private static class ForEachRopeBench extends ForEachBench {
+    public String name() { return "ForEach-Rp"; }
+
+    public void setup() {
+      super.setup();
+      ropeify();
+    }
+  }
+
   private static class PForEachBench extends IterationBench {
     public String name() { return "PForEach   "; }
 
@@ -522,6 +673,77 @@ abstract class ImmutableBenchmark {
     }
   }
 
+  // The same data as IntLoopBench and ForEachBench, but unboxed.  Compare
+  // with those to see the speedup from not chasing a pointer per element.
+  private static class IntArrayForEachBench extends IterationBench {
+    public String name() { return "IntArrForEach"; }
+
+    long s;
+
+    public void run() {
+      long answer = sumForEach();
+      if (answer != sum()) throw new RuntimeException();
+    }
+
+    protected long sumForEach() {
+      s = 0;
+      _ints.forEach((array)-> {
+        array.forEach((int x)-> {
+          s += x;
+        });
+      });
+      return s;
+    }
+  }
+
+  // Like IntArrForEach, but with the built-in aggregate instead of an
+  // IntConsumer.  Compare with ForEach for the boxed version.
+  private static class IntArraySumBench extends IterationBench {
+    public String name() { return "IntArrSum    "; }
+
+    public void run() {
+      long answer[] = new long[1];
+      _ints.forEach((array)-> answer[0] += array.sum());
+      if (answer[0] != sum()) throw new RuntimeException();
+    }
+  }
+
+  private static class IntArrayIntLoopBench extends IterationBench {
+    public String name() { return "IntArrIntLoop"; }
+
+    public void run() {
+      long answer = sumIntLoop();
+      if (answer != sum()) throw new RuntimeException();
+    }
+
+    protected long sumIntLoop() {
+      long sum = 0;
+      for (int i = 0; i < _ints.size(); i++) {
+        ImmutableIntArray a = _ints.get(i);
+        for (int j = 0; j < a.size(); j++) {
+          sum += a.getInt(j);
+        }
+      }
+      return sum;
+    }
+  }
+
+
+  private static class CursorLoopBench extends IterationBench {
+    public String name() { return "CursorLoop"; }
+
+    public void run() {
+      long sum = 0;
+      for (int i = 0; i < _top.size(); i++) {
+        ImmutableArray.Cursor<Integer> cursor = ((ImmutableArray<Integer>)_top.get(i)).cursor();
+        for (int j = 0; j < cursor.longSize(); j++) {
+          sum += cursor.get(j);
+        }
+      }
+      if (sum != sum()) throw new RuntimeException();
+    }
+  }
+
   private static class PIntLoopBench extends IterationBench {
     public String name() { return "PIntLoop   "; }
 
@@ -591,6 +813,15 @@ abstract class ImmutableBenchmark {
     }
   }
 
+  private static class IntLoopRopeBench extends IntLoopBench {
+    public String name() { return "IntLoop-Rp"; }
+
+    public void setup() {
+      super.setup();
+      ropeify();
+    }
+  }
+
   private static abstract class ArrayListIterationBench extends ImmutableBenchmark {
     private long _sum;
     public long sum() { return _sum; }
@@ -673,6 +904,520 @@ abstract class ImmutableBenchmark {
     }
   }
 
+  // A single large ImmutableArray, for benchmarks where the size of the tree
+  // matters.
+  private static abstract class LargeArrayBench extends ImmutableBenchmark {
+    protected static final int SIZE = 10000000;
+    protected ImmutableCollection<Integer> _large;
+    protected long _largeSum;
+
+    public void setup() {
+      Random random = new Random(1034210342);
+      ImmutableArray.Builder<Integer> builder = new ImmutableArray.Builder<>(branching);
+      long sum = 0;
+      for (int i = 0; i < SIZE; i++) {
+        int x = random.nextInt(123);
+        builder.push(x);
+        sum += x;
+      }
+      _large = builder.build();
+      _largeSum = sum;
+    }
+
+    long elements() { return _large.longSize(); }
+  }
+
+  // Transforms every element the old way, by pushing onto a new array.
+  @SuppressWarnings("unchecked")
+  private static class MapByPushBench extends LargeArrayBench {
+    public String name() { return "MapByPush "; }
+
+    public void run() {
+      ImmutableCollection<Integer> result[] = new ImmutableCollection[] { ImmutableArray.<Integer>empty(branching) };
+      _large.forEach((x) -> result[0] = result[0].push(x + 1));
+      if (result[0].get(SIZE - 1) != _large.get(SIZE - 1) + 1) throw new RuntimeException();
+    }
+  }
+
+  private static class MapBench extends LargeArrayBench {
+    public String name() { return "Map "; }
+
+    public void run() {
+      ImmutableCollection<Integer> result = _large.map((x) -> x + 1);
+      if (result.get(SIZE - 1) != _large.get(SIZE - 1) + 1) throw new RuntimeException();
+    }
+  }
+
+  // Compares two versions of a large array that differ in one place.
+  private static abstract class EqualsBenchBase extends LargeArrayBench {
+    protected ImmutableCollection<Integer> _version;
+
+    public void setup() {
+      super.setup();
+      int middle = SIZE / 2;
+      _version = _large.atPut(middle, _large.get(middle) + 1).atPut(middle, _large.get(middle));
+    }
+  }
+
+  private static class EqualsByIterationBench extends EqualsBenchBase {
+    public String name() { return "EqualsByIteration "; }
+
+    public void run() {
+      Iterator<Integer> a = _large.iterator();
+      Iterator<Integer> b = _version.iterator();
+      while (a.hasNext()) {
+        if (!a.next().equals(b.next())) throw new RuntimeException();
+      }
+    }
+  }
+
+  private static class EqualsVersionsBench extends EqualsBenchBase {
+    public String name() { return "EqualsVersions "; }
+
+    public void run() {
+      if (!_large.equals(_version)) throw new RuntimeException();
+    }
+  }
+
+  // Finds the changes between two snapshots of a large array, where the
+  // second has 100 scattered updates and 1000 appended elements.  Compare
+  // with EqualsByIteration for the cost of a full scan.
+  private static class DiffVersionsBench extends LargeArrayBench {
+    private ImmutableCollection<Integer> _snapshot;
+
+    public String name() { return "DiffVersions "; }
+
+    public void setup() {
+      super.setup();
+      Random random = new Random(1034210342);
+      _snapshot = _large;
+      for (int i = 0; i < 100; i++) _snapshot = _snapshot.atPut(random.nextInt(SIZE), -1);
+      for (int i = 0; i < 1000; i++) _snapshot = _snapshot.push(-1);
+    }
+
+    public void run() {
+      ImmutableArray<ImmutableCollection.Range> changes = _large.diff(_snapshot);
+      if (changes.get(changes.size() - 1).to != SIZE + 1000) throw new RuntimeException();
+    }
+  }
+
+  // Lower-bound lookups of random keys in a sorted array of 10M elements.
+  private static abstract class SortedSearchBench extends ImmutableBenchmark {
+    protected static final int SIZE = 10000000;
+    protected static final int LOOKUPS = 10000;
+    protected ImmutableCollection<Integer> _sorted;
+    protected int _keys[];
+
+    public void setup() {
+      ImmutableArray.Builder<Integer> builder = new ImmutableArray.Builder<>(branching);
+      for (int i = 0; i < SIZE; i++) builder.push(i * 2);
+      _sorted = builder.build();
+      Random random = new Random(1034210342);
+      _keys = new int[LOOKUPS];
+      for (int i = 0; i < LOOKUPS; i++) _keys[i] = random.nextInt(SIZE * 2);
+    }
+
+    long elements() { return LOOKUPS; }
+  }
+
+  // The old way: a binary search that calls get() for each comparison.
+  private static class SearchByGetBench extends SortedSearchBench {
+    private final Comparator<Integer> _order = Comparator.naturalOrder();
+
+    public String name() { return "SearchByGet "; }
+
+    public void run() {
+      for (int key : _keys) {
+        Integer boxed = key;
+        long low = 0;
+        long high = _sorted.longSize();
+        while (low < high) {
+          long mid = (low + high) >>> 1;
+          if (_order.compare(_sorted.get(mid), boxed) >= 0) {
+            high = mid;
+          } else {
+            low = mid + 1;
+          }
+        }
+        if (low != (key + 1) / 2) throw new RuntimeException();
+      }
+    }
+  }
+
+  private static class LowerBoundBench extends SortedSearchBench {
+    public String name() { return "LowerBound "; }
+
+    public void run() {
+      for (int key : _keys) {
+        if (_sorted.lowerBound(key, null) != (key + 1) / 2) throw new RuntimeException();
+      }
+    }
+  }
+
+  // Sums a sliding window of 64 elements every 1000 elements, as when
+  // sampling a long history.
+  private static class StridedGetBench extends LargeArrayBench {
+    public String name() { return "StridedGet "; }
+
+    public void run() {
+      long sum = 0;
+      for (int i = 0; i + 64 <= SIZE; i += 1000) {
+        for (int j = i; j < i + 64; j++) sum += _large.get(j);
+      }
+      if (sum < 0) throw new RuntimeException();
+    }
+
+    long elements() { return SIZE / 1000 * 64; }
+  }
+
+  private static class StridedCursorBench extends StridedGetBench {
+    public String name() { return "StridedCursor "; }
+
+    public void run() {
+      ImmutableArray.Cursor<Integer> cursor = ((ImmutableArray<Integer>)_large).cursor();
+      long sum = 0;
+      for (int i = 0; i + 64 <= SIZE; i += 1000) {
+        for (int j = i; j < i + 64; j++) sum += cursor.get(j);
+      }
+      if (sum < 0) throw new RuntimeException();
+    }
+  }
+
+  // Updates runs of 16 neighbouring elements, as when editing one record or
+  // one region of a large array.  Within a run only the leaf is copied.
+  private static class ClusteredAtPutBench extends LargeArrayBench {
+    public String name() { return "ClusteredAtPut "; }
+
+    public void run() {
+      ImmutableCollection<Integer> array = _large;
+      for (int i = 0; i + 16 <= SIZE; i += 1024) {
+        for (int j = i; j < i + 16; j++) array = array.atPut(j, j);
+      }
+      if (array.get(1024) != 1024) throw new RuntimeException();
+    }
+
+    long elements() { return SIZE / 1024 * 16; }
+  }
+
+  // The same number of updates at random positions, which copy the whole
+  // path every time.
+  private static class ScatteredAtPutBench extends ClusteredAtPutBench {
+    public String name() { return "ScatteredAtPut "; }
+    private int _indices[];
+
+    public void setup() {
+      super.setup();
+      Random random = new Random(1034210342);
+      _indices = new int[(int)elements()];
+      for (int i = 0; i < _indices.length; i++) _indices[i] = random.nextInt(SIZE);
+    }
+
+    public void run() {
+      ImmutableCollection<Integer> array = _large;
+      for (int index : _indices) array = array.atPut(index, index);
+      if (array.get(_indices[0]) != _indices[0]) throw new RuntimeException();
+    }
+  }
+
+  // A persistent FIFO queue that stays at the same length: each step takes
+  // a job from the front with shift and adds one at the back with push.
+  private static class FifoQueueBench extends ImmutableBenchmark {
+    private static final int STEPS = 1000000;
+    private final int _length;
+    private ImmutableCollection<Integer> _queue;
+
+    FifoQueueBench(int length) {
+      _length = length;
+    }
+
+    public String name() { return "FifoQueue " + _length + " "; }
+
+    public void setup() {
+      ImmutableCollection<Integer> queue = ImmutableArray.empty(branching);
+      for (int i = 0; i < _length; i++) queue = queue.push(i);
+      _queue = queue;
+    }
+
+    public void run() {
+      ImmutableCollection<Integer> queue = _queue;
+      for (int i = 0; i < STEPS; i++) {
+        int job = queue.get(0);
+        queue = queue.shift().push(job + _length);
+      }
+      if (queue.get(0) != STEPS) throw new RuntimeException();
+    }
+
+    long elements() { return STEPS; }
+  }
+
+  // Uses the left end of a large array as a stack: 100 unshifts followed by
+  // 100 shifts, over and over.
+  private static class LeftStackBench extends LargeArrayBench {
+    private static final int STEPS = 10000;
+
+    public String name() { return "LeftStack "; }
+
+    public void run() {
+      ImmutableCollection<Integer> stack = _large;
+      for (int i = 0; i < STEPS; i++) {
+        for (int j = 0; j < 100; j++) stack = stack.unshift(j);
+        for (int j = 99; j >= 0; j--) {
+          if (stack.get(0) != j) throw new RuntimeException();
+          stack = stack.shift();
+        }
+      }
+      if (stack.size() != SIZE) throw new RuntimeException();
+    }
+
+    long elements() { return STEPS * 200; }
+  }
+
+  // The old way to snapshot an array: Java serialization of an ArrayList.
+  private static class SerializationRoundTripBench extends LargeArrayBench {
+    public String name() { return "SerializationRoundTrip "; }
+
+    @SuppressWarnings("unchecked")
+    public void run() {
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(new ArrayList<Integer>(_large));
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        ImmutableArray<Integer> result = new ImmutableArray<Integer>((ArrayList<Integer>)in.readObject());
+        if (result.longSize() != SIZE) throw new RuntimeException();
+      } catch (IOException | ClassNotFoundException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private static class CodecRoundTripBench extends LargeArrayBench {
+    private final String _name;
+    private final ImmutableArrayCodec<Integer> _codec;
+    private final MemoryChannel _channel = new MemoryChannel();
+
+    CodecRoundTripBench(ElementCodec<Integer> codec, String name) {
+      _codec = new ImmutableArrayCodec<Integer>(codec);
+      _name = name;
+    }
+
+    public String name() { return "CodecRoundTrip[" + _name + "] "; }
+
+    public void run() {
+      try {
+        _channel.clear();
+        _codec.write(_large, _channel);
+        ImmutableArray<Integer> result = _codec.read(_channel);
+        if (result.longSize() != SIZE) throw new RuntimeException();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  // An in-memory channel.  Reads return what was written.
+  private static class MemoryChannel implements ReadableByteChannel, WritableByteChannel {
+    private byte _bytes[] = new byte[1024];
+    private int _written = 0;
+    private int _read = 0;
+
+    void clear() { _written = _read = 0; }
+
+    public int write(ByteBuffer source) {
+      int length = source.remaining();
+      if (_written + length > _bytes.length) _bytes = Arrays.copyOf(_bytes, Math.max(_bytes.length * 2, _written + length));
+      source.get(_bytes, _written, length);
+      _written += length;
+      return length;
+    }
+
+    public int read(ByteBuffer destination) {
+      if (_read == _written) return -1;
+      int length = Math.min(destination.remaining(), _written - _read);
+      destination.put(_bytes, _read, length);
+      _read += length;
+      return length;
+    }
+
+    public boolean isOpen() { return true; }
+    public void close() {}
+  }
+
+  private static class StreamSumBench extends LargeArrayBench {
+    public String name() { return "StreamSum "; }
+
+    public void run() {
+      long answer = _large.stream().mapToLong((x)-> x).sum();
+      if (answer != _largeSum) throw new RuntimeException();
+    }
+  }
+
+  private static class ChunkSumBench extends LargeArrayBench {
+    public String name() { return "ChunkSum "; }
+
+    public void run() {
+      long sum[] = new long[1];
+      _large.forEachChunk((chunk, offset, length) -> {
+        long chunk_sum = 0;
+        for (int i = offset; i < offset + length; i++) chunk_sum += (Integer)chunk[i];
+        sum[0] += chunk_sum;
+      });
+      if (sum[0] != _largeSum) throw new RuntimeException();
+    }
+  }
+
+  // Sums with a boxed Consumer, as ForEach does.
+  private static class ForEachSumBench extends LargeArrayBench {
+    public String name() { return "ForEachSum "; }
+
+    public void run() {
+      long sum[] = new long[1];
+      _large.forEach((x) -> sum[0] += x);
+      if (sum[0] != _largeSum) throw new RuntimeException();
+    }
+  }
+
+  // The same elements in an ImmutableIntArray, summed per leaf.
+  private static class IntArraySumLargeBench extends LargeArrayBench {
+    protected ImmutableIntArray _ints;
+
+    public String name() { return "IntArraySumLarge "; }
+
+    public void setup() {
+      super.setup();
+      int array[] = new int[SIZE];
+      int i[] = new int[1];
+      _large.forEach((x) -> array[i[0]++] = x);
+      _ints = new ImmutableIntArray(array);
+    }
+
+    public void run() {
+      if (_ints.sum() != _largeSum) throw new RuntimeException();
+    }
+  }
+
+  private static class IntArrayMinMaxLargeBench extends IntArraySumLargeBench {
+    public String name() { return "IntArrayMinMaxLarge "; }
+
+    public void run() {
+      if (_ints.min() != 0 || _ints.max() != 122) throw new RuntimeException();
+    }
+  }
+
+  private static class ParallelStreamSumBench extends LargeArrayBench {
+    public String name() { return "ParStreamSum"; }
+
+    public void run() {
+      long answer = _large.parallelStream().mapToLong((x)-> x).sum();
+      if (answer != _largeSum) throw new RuntimeException();
+    }
+  }
+
+  private static class ParallelStreamSumDequeBench extends ParallelStreamSumBench {
+    public String name() { return "ParStreamSum-Dq"; }
+
+    public void setup() {
+      super.setup();
+      _largeSum -= _large.get(0);
+      _large = _large.shift();
+    }
+  }
+
+  // The old way to collect a stream into an ImmutableArray: into an
+  // ArrayList, and then copied.
+  private static class CollectViaListBench extends LargeArrayBench {
+    protected final boolean _parallel;
+
+    CollectViaListBench(boolean parallel) {
+      _parallel = parallel;
+    }
+
+    public String name() { return (_parallel ? "ParCollectViaList " : "CollectViaList "); }
+
+    public void run() {
+      List<Integer> list = (_parallel ? _large.parallelStream() : _large.stream()).map((x) -> x + 1).collect(Collectors.toList());
+      ImmutableArray<Integer> result = new ImmutableArray<Integer>(list);
+      if (result.longSize() != SIZE) throw new RuntimeException();
+    }
+  }
+
+  // Collects straight into Builders, which are joined without copying.
+  private static class CollectBench extends CollectViaListBench {
+    CollectBench(boolean parallel) {
+      super(parallel);
+    }
+
+    public String name() { return (_parallel ? "ParCollect " : "Collect "); }
+
+    public void run() {
+      ImmutableCollection<Integer> result = (_parallel ? _large.parallelStream() : _large.stream()).map((x) -> x + 1).collect(ImmutableArray.collector(branching));
+      if (result.longSize() != SIZE) throw new RuntimeException();
+    }
+  }
+
+  // The time for a full GC while a large array of longs is live, either on
+  // the heap or in an OffHeapArena.  The off-heap array leaves only one small
+  // object per leaf for the GC to trace and move.
+  private static class GcPauseBench extends ImmutableBenchmark {
+    private static final int SIZE = 20000000;
+    private final boolean _offHeap;
+    private ImmutableLongArray _onHeapArray;
+    private ImmutableOffHeapLongArray _offHeapArray;
+
+    GcPauseBench(boolean off_heap) {
+      _offHeap = off_heap;
+    }
+
+    public String name() { return "GcPause[" + (_offHeap ? "off-heap" : "on-heap") + "] "; }
+
+    public void setup() {
+      long chunk[] = new long[1000];
+      _onHeapArray = null;
+      _offHeapArray = null;
+      if (_offHeap) {
+        _offHeapArray = new ImmutableOffHeapLongArray(new OffHeapArena());
+      } else {
+        _onHeapArray = new ImmutableLongArray();
+      }
+      for (int i = 0; i < SIZE; i += chunk.length) {
+        for (int j = 0; j < chunk.length; j++) chunk[j] = i + j;
+        if (_offHeap) {
+          _offHeapArray = _offHeapArray.pushAll(chunk);
+        } else {
+          _onHeapArray = _onHeapArray.pushAll(chunk);
+        }
+      }
+    }
+
+    // System.gc() does a stop-the-world collection, so the time of run() is
+    // the pause.  The collectors' own accounting is printed as well.
+    public void run() {
+      long gc_time = _collectionTime();
+      System.gc();
+      _pauseTime += _collectionTime() - gc_time;
+      _pauses++;
+      long last = _offHeap ? _offHeapArray.getLong(SIZE - 1) : _onHeapArray.getLong(SIZE - 1);
+      if (last != SIZE - 1) throw new RuntimeException();
+    }
+
+    private long _pauseTime;
+    private long _pauses;
+
+    void runs() {
+      super.runs();
+      System.out.println("    " + _pauseTime / _pauses + "ms GC time per System.gc()");
+    }
+
+    private static long _collectionTime() {
+      long total = 0;
+      for (java.lang.management.GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+        total += Math.max(0, bean.getCollectionTime());
+      }
+      return total;
+    }
+  }
+
   private static abstract class BuildingBench extends ImmutableBenchmark {
     protected ImmutableArray<ImmutableArray<Integer>> _top;
     protected PVector<PVector<Integer>> _pvectors;
@@ -681,19 +1426,20 @@ abstract class ImmutableBenchmark {
     protected ImmutableArray<Long> _sums;
     protected List<List<Integer>> _lists = new ArrayList<>();
     protected List<Set<Integer>> _sets = new ArrayList<>();
+    protected long _totalSize;
     //protected List<com.github.krukow.clj_ds.PersistentVector<Integer>> _krukows = new ArrayList<>();
 
     public void setup() {
       Random random = new Random(1034210342);
-      _top = new ImmutableArray<>();
+      _top = ImmutableArray.empty(branching);
       _pvectors = TreePVector.<PVector<Integer>>empty();
       _paguro = PersistentVector.<ImList<Integer>>empty();
       _rrbs = RrbTree.ImRrbt.<RrbTree.ImRrbt<Integer>>empty();
-      _sums = new ImmutableArray<>();
+      _sums = ImmutableArray.empty(branching);
       for (int i = 0; i < 31; i++) {
         long sum = 0;
         int size = (random.nextInt(1000) & ~1) + 500;
-        ImmutableArray<Integer> a = new ImmutableArray<>();
+        ImmutableArray<Integer> a = ImmutableArray.empty(branching);
         PVector<Integer> p = TreePVector.<Integer>empty();
         ImList<Integer> l = PersistentVector.<Integer>empty();
         RrbTree.ImRrbt<Integer> r = RrbTree.ImRrbt.<Integer>empty();
@@ -717,6 +1463,7 @@ abstract class ImmutableBenchmark {
       for (int i = 0; i < _top.size(); i++) {
         _lists.add(new ArrayList<Integer>(_top.get(i)));
         _sets.add(new HashSet<Integer>(_top.get(i)));
+        _totalSize += _top.get(i).size();
       }
     }
   }
@@ -724,6 +1471,7 @@ abstract class ImmutableBenchmark {
   @SuppressWarnings("unchecked")
   private static class Push1AtATimeBench extends BuildingBench {
     public String name() { return "Push1AtATimeBench     "; }
+    long elements() { return _top.size() * _totalSize; }
     public void run() {
       int x = 0;
       for (ImmutableCollection<Integer> a1 : _top) {
@@ -748,6 +1496,33 @@ abstract class ImmutableBenchmark {
     }
   }
 
+  private static class BuilderPush1AtATimeBench extends BuildingBench {
+    public String name() { return "BuilderPush1AtATimeBench"; }
+    long elements() { return _top.size() * _totalSize; }
+    public void run() {
+      int x = 0;
+      for (ImmutableArray<Integer> a1 : _top) {
+        int y = 0;
+        for (ImmutableArray<Integer> a2 : _top) {
+          ImmutableArray.Builder<Integer> builder = a1.asTransient();
+          a2.forEach((e)-> {
+            builder.push(e);
+          });
+          ImmutableArray<Integer> both = builder.build();
+          int sum[] = new int[1];
+          both.forEach((e) -> {
+            sum[0] += e;
+          });
+          if (sum[0] != _sums.get(x) + _sums.get(y)) {
+            throw new RuntimeException();
+          }
+          y++;
+        }
+        x++;
+      }
+    }
+  }
+
   @SuppressWarnings("unchecked")
   private static class Push2AtATimeBench extends BuildingBench {
     public String name() { return "Push2AtATimeBench     "; }
@@ -925,6 +1700,33 @@ abstract class ImmutableBenchmark {
     }
   }
 
+  @SuppressWarnings("unchecked")
+  private static class InsertAtBench extends BuildingBench {
+    public String name() { return "InsertAtBench           "; }
+    public void run() {
+      int x = 0;
+      for (ImmutableCollection<Integer> a1 : _top) {
+        int y = 0;
+        for (ImmutableCollection<Integer> a2 : _top) {
+          ImmutableCollection<Integer> both[] = new ImmutableCollection[1];
+          both[0] = a1;
+          a2.forEach((e)-> {
+            both[0] = both[0].insertAt(both[0].size() >> 1, e);
+          });
+          int sum[] = new int[1];
+          both[0].forEach((e) -> {
+            sum[0] += e;
+          });
+          if (sum[0] != _sums.get(x) + _sums.get(y)) {
+            throw new RuntimeException();
+          }
+          y++;
+        }
+        x++;
+      }
+    }
+  }
+
   @SuppressWarnings("unchecked")
   private static class PInsert1AtATimeBench extends BuildingBench {
     public String name() { return "PInsert1AtATimeBench    "; }
@@ -1146,6 +1948,30 @@ abstract class ImmutableBenchmark {
     }
   }
 
+  // Like PushAllBench, but concatenates the trees instead of copying the
+  // elements.
+  private static class ConcatBench extends BuildingBench {
+    public String name() { return "ConcatBench           "; }
+    public void run() {
+      int x = 0;
+      for (ImmutableCollection<Integer> a1 : _top) {
+        int y = 0;
+        for (ImmutableCollection<Integer> a2 : _top) {
+          ImmutableCollection<Integer> both = a1.concat(a2);
+          int sum[] = new int[1];
+          both.forEach((e) -> {
+            sum[0] += e;
+          });
+          if (sum[0] != _sums.get(x) + _sums.get(y)) {
+            throw new RuntimeException();
+          }
+          y++;
+        }
+        x++;
+      }
+    }
+  }
+
   private static class PagPushAllBench extends BuildingBench {
     public String name() { return "PagPushAllBench       "; }
     public void run() {
@@ -1212,6 +2038,60 @@ abstract class ImmutableBenchmark {
     }
   }
 
+  // Concatenation of large shards, where copying is much more expensive
+  // than joining the trees.  Only a few elements are read from the result.
+  private static abstract class JoinLargeBenchBase extends ImmutableBenchmark {
+    protected static final int SHARDS = 16;
+    protected static final int SHARD_SIZE = 200000;
+    protected ArrayList<ImmutableCollection<Integer>> _shards = new ArrayList<>();
+
+    public void setup() {
+      for (int i = 0; i < SHARDS; i++) {
+        ImmutableArray.Builder<Integer> builder = new ImmutableArray.Builder<>(branching);
+        for (int j = 0; j < SHARD_SIZE; j++) builder.push(i);
+        _shards.add(builder.build());
+      }
+    }
+  }
+
+  private static class JoinLargeBench extends JoinLargeBenchBase {
+    public String name() { return "JoinLargeBench        "; }
+    public void run() {
+      for (int x = 0; x < SHARDS; x++) {
+        for (int y = 0; y < SHARDS; y++) {
+          ImmutableCollection<Integer> both = _shards.get(x).concat(_shards.get(y));
+          if (both.get(SHARD_SIZE - 1) != x || both.get(SHARD_SIZE) != y) {
+            throw new RuntimeException();
+          }
+        }
+      }
+    }
+  }
+
+  private static class RrbJoinLargeBench extends JoinLargeBenchBase {
+    public String name() { return "RrbJoinLargeBench     "; }
+    protected ArrayList<RrbTree.ImRrbt<Integer>> _rrbShards = new ArrayList<>();
+
+    public void setup() {
+      for (int i = 0; i < SHARDS; i++) {
+        RrbTree.ImRrbt<Integer> r = RrbTree.ImRrbt.<Integer>empty();
+        for (int j = 0; j < SHARD_SIZE; j++) r = r.append(i);
+        _rrbShards.add(r);
+      }
+    }
+
+    public void run() {
+      for (int x = 0; x < SHARDS; x++) {
+        for (int y = 0; y < SHARDS; y++) {
+          RrbTree<Integer> both = _rrbShards.get(x).join(_rrbShards.get(y));
+          if (both.get(SHARD_SIZE - 1) != x || both.get(SHARD_SIZE) != y) {
+            throw new RuntimeException();
+          }
+        }
+      }
+    }
+  }
+
   private static class InsertAllBench extends BuildingBench {
     public String name() { return "InsertAllBench          "; }
     public void run() {
@@ -1461,6 +2341,109 @@ abstract class ImmutableBenchmark {
     }
   }
 
+  // Prepends batches of a thousand elements at a time onto a long history.
+  private static class UnshiftingAllLargeBench extends LargeArrayBench {
+    private static final int BATCHES = 100;
+    private static final int BATCH_SIZE = 1000;
+    private List<List<Integer>> _batches = new ArrayList<>();
+    private ImmutableCollection<Integer> _history;
+
+    public String name() { return "UnshiftingAllLargeBench "; }
+
+    public void setup() {
+      super.setup();
+      // Make it a deque.
+      _history = _large.unshift(0);
+      for (int i = 0; i < BATCHES; i++) {
+        List<Integer> batch = new ArrayList<>();
+        for (int j = 0; j < BATCH_SIZE; j++) batch.add(i);
+        _batches.add(batch);
+      }
+    }
+
+    public void run() {
+      ImmutableCollection<Integer> current = _history;
+      for (List<Integer> batch : _batches) {
+        current = current.unshiftAll(batch);
+      }
+      if (current.longSize() != _history.longSize() + BATCHES * BATCH_SIZE) {
+        throw new RuntimeException();
+      }
+      if (current.get(0) != BATCHES - 1) throw new RuntimeException();
+    }
+
+    long elements() { return BATCHES * BATCH_SIZE; }
+  }
+
+  // Updates 100k positions of a 10M element array.  Half the updates are
+  // clustered in a small area, as in a bulk correction job.
+  private static abstract class AtPutBenchBase extends LargeArrayBench {
+    protected static final int UPDATES = 100000;
+    protected long _indices[] = new long[UPDATES];
+    protected Integer _values[] = new Integer[UPDATES];
+
+    public void setup() {
+      super.setup();
+      Random random = new Random(1034210342);
+      for (int i = 0; i < UPDATES; i++) {
+        _indices[i] = (i & 1) == 0 ? random.nextInt(SIZE) : 5000000 + random.nextInt(UPDATES);
+        _values[i] = random.nextInt(123);
+      }
+    }
+
+    protected void check(ImmutableCollection<Integer> result) {
+      if (result.get((int)_indices[UPDATES - 1]) != _values[UPDATES - 1]) throw new RuntimeException();
+    }
+
+    long elements() { return UPDATES; }
+  }
+
+  private static class AtPutLoopBench extends AtPutBenchBase {
+    public String name() { return "AtPutLoopBench          "; }
+
+    public void run() {
+      ImmutableCollection<Integer> current = _large;
+      for (int i = 0; i < UPDATES; i++) current = current.atPut(_indices[i], _values[i]);
+      check(current);
+    }
+  }
+
+  private static class AtPutAllBench extends AtPutBenchBase {
+    public String name() { return "AtPutAllBench           "; }
+
+    public void run() {
+      check(_large.atPutAll(_indices, _values));
+    }
+  }
+
+  // Removes 100 elements, one at a time, from random places in an array.
+  private static class RemoveAtBench extends ImmutableBenchmark {
+    private static final int REMOVALS = 100;
+    private final int _size;
+    private ImmutableCollection<Integer> _array;
+    private long _indices[] = new long[REMOVALS];
+
+    RemoveAtBench(int size) { _size = size; }
+
+    public String name() { return "RemoveAtBench[" + _size + "]"; }
+
+    public void setup() {
+      ImmutableArray.Builder<Integer> builder = new ImmutableArray.Builder<>(branching);
+      for (int i = 0; i < _size; i++) builder.push(i);
+      _array = builder.build();
+      Random random = new Random(1034210342);
+      for (int i = 0; i < REMOVALS; i++) _indices[i] = random.nextInt(_size - i);
+    }
+
+    public void run() {
+      ImmutableCollection<Integer> current = _array;
+      for (long index : _indices) current = current.removeAt(index);
+      if (current.longSize() != _size - REMOVALS) throw new RuntimeException();
+    }
+
+    long elements() { return REMOVALS; }
+  }
+
   private static class PUnshiftAllFromList extends BuildingBench {
     public String name() { return "PUnshiftAllFromList     "; }
     public void run() {
@@ -1530,6 +2513,36 @@ abstract class ImmutableBenchmark {
     }
   }
 
+  // Removes few elements from a large array: from the given position on,
+  // every so many.  Everything before the first removal, and everything
+  // that is aligned with the original again, is shared by build().
+  private static class SparseFilterIfBench extends ImmutableBenchmark {
+    static final int SIZE = 2000000;
+    private final int _from;
+    private final int _every;
+    private ImmutableArray<Integer> _array;
+
+    SparseFilterIfBench(int from, int every) {
+      _from = from;
+      _every = every;
+    }
+
+    public String name() { return "SparseFilterIf from " + _from + " every " + _every + " "; }
+
+    public void setup() {
+      ImmutableArray.Builder<Integer> builder = new ImmutableArray.Builder<>(branching);
+      for (int i = 0; i < SIZE; i++) builder.push(i);
+      _array = builder.build();
+    }
+
+    public void run() {
+      ImmutableCollection<Integer> result = _array.filterIf((x) -> x >= _from && (x - _from) % _every == 0);
+      if (result.longSize() != SIZE - (SIZE - _from + _every - 1) / _every) throw new RuntimeException();
+    }
+
+    long elements() { return SIZE; }
+  }
+
   private static class FilterAllWithSetBench extends BuildingBench {
     public String name() { return "FilterAllWithSetBench "; }
     public void run() {
@@ -1553,6 +2566,78 @@ abstract class ImmutableBenchmark {
     }
   }
 
+  private static class ParallelFilterAllWithSetBench extends BuildingBench {
+    public String name() { return "ParallelFilterAllWithSetBench "; }
+    public void run() {
+      int x = 0;
+      for (ImmutableCollection<Integer> a1 : _top) {
+        int y = 0;
+        for (Set<Integer> a2 : _sets) {
+          ImmutableCollection<Integer> a1_without_a2 = a1.parallelFilterAll(a2);
+          ImmutableCollection<Integer> a1_withonly_a2 = a1.parallelSelectAll(a2);
+          int sum[] = new int[1];
+          a1_without_a2.forEach((e) -> { sum[0] += e; });
+          a1_withonly_a2.forEach((e) -> { sum[0] += e; });
+          _lists.get(y).forEach((e) -> { sum[0] += e; });
+          if (sum[0] != _sums.get(x) + _sums.get(y)) {
+            throw new RuntimeException();
+          }
+          y++;
+        }
+        x++;
+      }
+    }
+  }
+
+  // filterAll and selectAll with a set on one large array, where splitting
+  // the work between threads can pay off.
+  private static class FilterAllWithSetLargeBench extends LargeArrayBench {
+    private final boolean _parallel;
+    private Set<Integer> _set;
+
+    FilterAllWithSetLargeBench(boolean parallel) {
+      _parallel = parallel;
+    }
+
+    public String name() { return (_parallel ? "ParallelFilterAllWithSetLarge " : "FilterAllWithSetLarge "); }
+
+    public void setup() {
+      super.setup();
+      _set = new HashSet<>();
+      for (int i = 0; i < 123; i += 3) _set.add(i);
+    }
+
+    public void run() {
+      ImmutableCollection<Integer> without = _parallel ? _large.parallelFilterAll(_set) : _large.filterAll(_set);
+      ImmutableCollection<Integer> with_only = _parallel ? _large.parallelSelectAll(_set) : _large.selectAll(_set);
+      if (without.longSize() + with_only.longSize() != SIZE) throw new RuntimeException();
+    }
+
+    long elements() { return SIZE * 2; }
+  }
+
+  // filter, map and subList on one large array, either one step at a time,
+  // making a collection for each, or fused with a view.
+  private static class ChainedTransformBench extends LargeArrayBench {
+    private final boolean _view;
+
+    ChainedTransformBench(boolean view) {
+      _view = view;
+    }
+
+    public String name() { return (_view ? "ChainedTransformView " : "ChainedTransform "); }
+
+    public void run() {
+      ImmutableCollection<Integer> result;
+      if (_view) {
+        result = _large.view().filter((x) -> x % 3 != 0).map((x) -> x + 1).drop(1000).take(SIZE / 2).toImmutable();
+      } else {
+        result = _large.filterIf((x) -> x % 3 == 0).map((x) -> x + 1).subList(1000, 1000 + SIZE / 2);
+      }
+      if (result.longSize() != SIZE / 2) throw new RuntimeException();
+    }
+  }
+
   private static class FilterAllListBench extends BuildingBench {
     public String name() { return "FilterAllListBench    "; }
     public void run() {
@@ -1687,7 +2772,7 @@ abstract class ImmutableBenchmark {
 
     public void setup() {
       Random random = new Random(1034210342);
-      _top = new ImmutableArray<>();
+      _top = ImmutableArray.empty(branching);
       _paguro = PersistentVector.<ImMap<String, Integer>>empty();
       _pmaps = TreePVector.<HashPMap<String, Integer>>empty();
       long sum = 0;
@@ -11,6 +11,7 @@ import java.util.ListIterator;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.stream.IntStream;
 
 class ImmutableHashMapTest {
   public static void main(String args[]) {
@@ -18,6 +19,28 @@ class ImmutableHashMapTest {
     randomTest(true);
     randomTest(false);
     iteratorTest();
+    collectorTest();
+  }
+
+  static private void collectorTest() {
+    for (int size : new int[] { 0, 1, 2, 3, 100, 20000 }) {
+      for (boolean parallel : new boolean[] { false, true }) {
+        IntStream stream = IntStream.range(0, size * 2);
+        if (parallel) stream = stream.parallel();
+        // Each key comes twice, and the later value must win.
+        ImmutableHashMap<String, Integer> map = stream.boxed().collect(
+            ImmutableHashMap.collector((i) -> "key " + (i % size), (i) -> i));
+        assert(map.size() == size);
+        for (int i = 0; i < size; i++) assert(map.get("key " + i) == i + size);
+        // Insertion order is stream order.
+        int i = 0;
+        for (Map.Entry<String, Integer> entry : map.entries()) {
+          assert(entry.getKey().equals("key " + i));
+          i++;
+        }
+        assert(i == size);
+      }
+    }
   }
 
   static private void check_empty(ImmutableHashMap<String, Object> empty) {
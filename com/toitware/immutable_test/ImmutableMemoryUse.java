@@ -11,7 +11,10 @@ import org.organicdesign.fp.collections.RrbTree;
 import com.toitware.immutable.ImmutableArray;
 import com.toitware.immutable.ImmutableCollection;
 import com.toitware.immutable.ImmutableDeque;
+import com.toitware.immutable.ImmutableDoubleArray;
 import com.toitware.immutable.ImmutableHashMap;
+import com.toitware.immutable.ImmutableIntArray;
+import com.toitware.immutable.ImmutableLongArray;
 import com.toitware.immutable.RebuildIterator;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -25,6 +28,12 @@ import org.pcollections.HashPMap;
 
 abstract class ImmutableMemoryUse {
   public static void main(String args[]) {
+    if (args.length == 1 && args[0].equals("--sweep-branching")) {
+      ImmutableBenchmark.sweepBranchingFactors(ImmutableMemoryUse.class);
+      return;
+    }
+    ImmutableBenchmark.parseBranching(args);
+    System.out.println("Branching factor " + ImmutableBenchmark.branching);
     new JavaUtilHashMapMemoryUse(0).runs();
     new JavaUtilHashMapMemoryUse(1).runs();
     new JavaUtilHashMapMemoryUse(4).runs();
@@ -55,6 +64,33 @@ abstract class ImmutableMemoryUse {
     new ImmutableArrayMemoryUse(16).runs();
     new ImmutableArrayMemoryUse(64).runs();
     new ImmutableArrayMemoryUse(256).runs();
+    new BoxedImmutableArrayMemoryUse(0).runs();
+    new BoxedImmutableArrayMemoryUse(1).runs();
+    new BoxedImmutableArrayMemoryUse(4).runs();
+    new BoxedImmutableArrayMemoryUse(16).runs();
+    new BoxedImmutableArrayMemoryUse(64).runs();
+    new BoxedImmutableArrayMemoryUse(256).runs();
+    new ImmutableIntArrayMemoryUse(0).runs();
+    new ImmutableIntArrayMemoryUse(1).runs();
+    new ImmutableIntArrayMemoryUse(4).runs();
+    new ImmutableIntArrayMemoryUse(16).runs();
+    new ImmutableIntArrayMemoryUse(64).runs();
+    new ImmutableIntArrayMemoryUse(256).runs();
+    new ImmutableLongArrayMemoryUse(0).runs();
+    new ImmutableLongArrayMemoryUse(1).runs();
+    new ImmutableLongArrayMemoryUse(4).runs();
+    new ImmutableLongArrayMemoryUse(16).runs();
+    new ImmutableLongArrayMemoryUse(64).runs();
+    new ImmutableLongArrayMemoryUse(256).runs();
+    new ImmutableDoubleArrayMemoryUse(0).runs();
+    new ImmutableDoubleArrayMemoryUse(1).runs();
+    new ImmutableDoubleArrayMemoryUse(4).runs();
+    new ImmutableDoubleArrayMemoryUse(16).runs();
+    new ImmutableDoubleArrayMemoryUse(64).runs();
+    new ImmutableDoubleArrayMemoryUse(256).runs();
+    new SlidingWindowMemoryUse(16).runs();
+    new SlidingWindowMemoryUse(64).runs();
+    new SlidingWindowMemoryUse(256).runs();
     new PCollectionsMemoryUse(0).runs();
     new PCollectionsMemoryUse(1).runs();
     new PCollectionsMemoryUse(4).runs();
@@ -137,7 +173,7 @@ abstract class ImmutableMemoryUse {
     public void churn() {
       Integer x = 42;
       for (int i = 0; i < length; i++) {
-        ImmutableArray<Integer> a = new ImmutableArray<>();
+        ImmutableArray<Integer> a = ImmutableArray.empty(ImmutableBenchmark.branching);
         for (int j = 0; j < elements; j++) {
           a = a.push(x);
         }
@@ -148,6 +184,158 @@ abstract class ImmutableMemoryUse {
     public String name() { return "ImmutableArray[" + elements + "]"; }
   }
 
+  // Like ImmutableArrayMemoryUse, but the elements are distinct boxed Integers,
+  // which is the fair comparison for the primitive arrays below.  The
+  // difference is the number of bytes saved per element by not boxing.
+  private static class BoxedImmutableArrayMemoryUse extends ImmutableMemoryUse {
+    int elements;
+    int length;
+
+    BoxedImmutableArrayMemoryUse(int e) {
+      elements = e;
+    }
+
+    public void setup(int size, int backing_size) {
+      holder = new Object[backing_size];
+      length = size;
+      churn();
+    }
+
+    public void churn() {
+      for (int i = 0; i < length; i++) {
+        ImmutableArray<Integer> a = ImmutableArray.empty(ImmutableBenchmark.branching);
+        for (int j = 0; j < elements; j++) {
+          a = a.push(1000 + j);
+        }
+        holder[i] = a;
+      }
+    }
+
+    public String name() { return "BoxedImmutableArray[" + elements + "]"; }
+  }
+
+  private static class ImmutableIntArrayMemoryUse extends ImmutableMemoryUse {
+    int elements;
+    int length;
+
+    ImmutableIntArrayMemoryUse(int e) {
+      elements = e;
+    }
+
+    public void setup(int size, int backing_size) {
+      holder = new Object[backing_size];
+      length = size;
+      churn();
+    }
+
+    public void churn() {
+      for (int i = 0; i < length; i++) {
+        ImmutableIntArray a = new ImmutableIntArray();
+        for (int j = 0; j < elements; j++) {
+          a = a.push(1000 + j);
+        }
+        holder[i] = a;
+      }
+    }
+
+    public String name() { return "ImmutableIntArray[" + elements + "]"; }
+  }
+
+  private static class ImmutableLongArrayMemoryUse extends ImmutableMemoryUse {
+    int elements;
+    int length;
+
+    ImmutableLongArrayMemoryUse(int e) {
+      elements = e;
+    }
+
+    public void setup(int size, int backing_size) {
+      holder = new Object[backing_size];
+      length = size;
+      churn();
+    }
+
+    public void churn() {
+      for (int i = 0; i < length; i++) {
+        ImmutableLongArray a = new ImmutableLongArray();
+        for (int j = 0; j < elements; j++) {
+          a = a.push(1000L + j);
+        }
+        holder[i] = a;
+      }
+    }
+
+    public String name() { return "ImmutableLongArray[" + elements + "]"; }
+  }
+
+  private static class ImmutableDoubleArrayMemoryUse extends ImmutableMemoryUse {
+    int elements;
+    int length;
+
+    ImmutableDoubleArrayMemoryUse(int e) {
+      elements = e;
+    }
+
+    public void setup(int size, int backing_size) {
+      holder = new Object[backing_size];
+      length = size;
+      churn();
+    }
+
+    public void churn() {
+      for (int i = 0; i < length; i++) {
+        ImmutableDoubleArray a = new ImmutableDoubleArray();
+        for (int j = 0; j < elements; j++) {
+          a = a.push(1000.0 + j);
+        }
+        holder[i] = a;
+      }
+    }
+
+    public String name() { return "ImmutableDoubleArray[" + elements + "]"; }
+  }
+
+  // Deques that have been used as a sliding window for a long time: each
+  // starts from one that has slid past a million elements, and then slides
+  // on until none of its elements are shared.  The unused left part of the
+  // backing tree is what makes these bigger than an ImmutableArray of the
+  // same size.
+  private static class SlidingWindowMemoryUse extends ImmutableMemoryUse {
+    int elements;
+    int length;
+    ImmutableCollection<Integer> start;
+
+    SlidingWindowMemoryUse(int e) {
+      elements = e;
+      Integer x = 42;
+      ImmutableCollection<Integer> a = ImmutableArray.empty(ImmutableBenchmark.branching);
+      for (int i = 0; i < 1000000; i++) {
+        a = a.push(x);
+        if (i >= elements) a = a.shift();
+      }
+      start = a;
+    }
+
+    public void setup(int size, int backing_size) {
+      holder = new Object[backing_size];
+      length = size;
+      churn();
+    }
+
+    public void churn() {
+      Integer x = 42;
+      for (int i = 0; i < length; i++) {
+        ImmutableCollection<Integer> a = start;
+        for (int j = 0; j < elements + i % elements; j++) {
+          a = a.push(x).shift();
+        }
+        holder[i] = a;
+      }
+    }
+
+    public String name() { return "SlidingWindow[" + elements + "]"; }
+  }
+
   private static class ImmutableHashMapMemoryUse extends ImmutableMemoryUse {
     int elements;
     int length;